@@ -0,0 +1,57 @@
+package net.moznion.jakotem.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixed set of templates for benchmarks. Large variants are the small ones repeated, about 200 KB each.
+ */
+public enum Corpus {
+  SMALL_RAW_HEAVY("small_raw_heavy.tx", 1),
+  SMALL_TAG_HEAVY("small_tag_heavy.tx", 1),
+  SMALL_CODE_LINES("code_lines.tx", 1),
+  LARGE_RAW_HEAVY("small_raw_heavy.tx", 150),
+  LARGE_TAG_HEAVY("small_tag_heavy.tx", 300),
+  LARGE_CODE_LINES("code_lines.tx", 600);
+
+  private final String resourceName;
+  private final int repeat;
+
+  Corpus(String resourceName, int repeat) {
+    this.resourceName = resourceName;
+    this.repeat = repeat;
+  }
+
+  public String fileName() {
+    return name().toLowerCase() + ".tx";
+  }
+
+  public String load() {
+    String template = loadInclude(resourceName);
+    StringBuilder builder = new StringBuilder(template.length() * repeat);
+    for (int i = 0; i < repeat; i++) {
+      builder.append(template);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Loads a template the corpus refers to, e.g. by {@code include}.
+   */
+  public static String loadInclude(String fileName) {
+    try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + fileName)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int read;
+      while ((read = in.read(buf)) >= 0) {
+        out.write(buf, 0, read);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package net.moznion.jakotem.benchmarks;
+
+import net.moznion.jakotem.vm.HtmlEscaper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HtmlEscaperBenchmark {
+  public enum Input {
+    ESCAPE_FREE("The quick brown fox jumps over the lazy dog. "),
+    ESCAPE_HEAVY("<a href=\"/?q=1&r=2\">'x' & 'y'</a> "),
+    NON_ASCII("いろはにほへと ちりぬるを わかよたれそ つねならむ "),
+    ;
+
+    private final String unit;
+
+    Input(String unit) {
+      this.unit = unit;
+    }
+  }
+
+  @Param
+  private Input input;
+
+  @Param({"1", "20"})
+  private int repeat;
+
+  private String value;
+  private StringBuilder out;
+
+  @Setup
+  public void setup() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < repeat; i++) {
+      builder.append(input.unit);
+    }
+    value = builder.toString();
+    out = new StringBuilder(value.length() * 6);
+  }
+
+  @Benchmark
+  public StringBuilder bulk() {
+    out.setLength(0);
+    HtmlEscaper.escape(out, value);
+    return out;
+  }
+
+  /**
+   * Character-at-a-time escaping, as the renderer did before the bulk path.
+   */
+  @Benchmark
+  public StringBuilder perCharacter() {
+    out.setLength(0);
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '&':
+          out.append("&amp;");
+          break;
+        case '<':
+          out.append("&lt;");
+          break;
+        case '>':
+          out.append("&gt;");
+          break;
+        case '"':
+          out.append("&quot;");
+          break;
+        case '\'':
+          out.append("&#39;");
+          break;
+        default:
+          out.append(c);
+      }
+    }
+    return out;
+  }
+}
@@ -0,0 +1,92 @@
+package net.moznion.jakotem.benchmarks;
+
+import net.moznion.jakotem.IllegalSyntaxException;
+import net.moznion.jakotem.Node;
+import net.moznion.jakotem.OpcodeSequence;
+import net.moznion.jakotem.Source;
+import net.moznion.jakotem.TemplateFlattener;
+import net.moznion.jakotem.Token;
+import net.moznion.jakotem.TokenBuffer;
+import net.moznion.jakotem.kolon.KolonSyntax;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KolonSyntaxBenchmark {
+  @Param
+  private Corpus corpus;
+
+  private KolonSyntax syntax;
+  private Source source;
+  private String template;
+  private List<Token> tokens;
+  private TokenBuffer tokenBuffer;
+  private Node ast;
+
+  @Setup
+  public void setup() throws IllegalSyntaxException {
+    syntax = new KolonSyntax();
+    template = corpus.load();
+    source = Source.fromString(template);
+    tokens = syntax.tokenize(source, template);
+    tokenBuffer = syntax.tokenizeToBuffer(source, template);
+    ast = TemplateFlattener.flatten(corpus.fileName(), syntax.parse(source, tokens), fileName -> {
+      String included = Corpus.loadInclude(fileName);
+      Source includedSource = Source.fromString(included);
+      return syntax.parse(includedSource, syntax.tokenCursor(includedSource, included));
+    });
+  }
+
+  @Benchmark
+  public List<Token> tokenize() {
+    return syntax.tokenize(source, template);
+  }
+
+  @Benchmark
+  public TokenBuffer tokenizeToBuffer() {
+    return syntax.tokenizeToBuffer(source, template);
+  }
+
+  @Benchmark
+  public Node parse() throws IllegalSyntaxException {
+    return syntax.parse(source, tokens);
+  }
+
+  @Benchmark
+  public Node parseTokenBuffer() throws IllegalSyntaxException {
+    return syntax.parse(source, tokenBuffer);
+  }
+
+  @Benchmark
+  public Node parseStreaming() throws IllegalSyntaxException {
+    return syntax.parse(source, syntax.tokenCursor(source, template));
+  }
+
+  @Benchmark
+  public Node optimize() {
+    return syntax.optimize(source, ast);
+  }
+
+  @Benchmark
+  public OpcodeSequence compile() throws IllegalSyntaxException {
+    return syntax.compile(source, ast);
+  }
+}
@@ -0,0 +1,110 @@
+package net.moznion.jakotem.benchmarks;
+
+import net.moznion.jakotem.IllegalSyntaxException;
+import net.moznion.jakotem.OpcodeSequence;
+import net.moznion.jakotem.TemplateCache;
+import net.moznion.jakotem.TemplateLoader;
+import net.moznion.jakotem.kolon.KolonSyntax;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateLoaderBenchmark {
+  @Param
+  private Corpus corpus;
+
+  private Path includePath;
+  private KolonSyntax syntax;
+  private TemplateLoader hitLoader;
+  private TemplateLoader missLoader;
+
+  @Setup
+  public void setup() throws IOException, IllegalSyntaxException {
+    includePath = Files.createTempDirectory("jakotem-benchmarks");
+    Files.write(includePath.resolve(corpus.fileName()), corpus.load().getBytes(StandardCharsets.UTF_8));
+    Files.write(includePath.resolve("footer.tx"), Corpus.loadInclude("footer.tx").getBytes(StandardCharsets.UTF_8));
+
+    syntax = new KolonSyntax();
+    hitLoader = new TemplateLoader(Collections.singletonList(includePath), new MapTemplateCache());
+    hitLoader.compile(corpus.fileName(), syntax);
+    missLoader = new TemplateLoader(Collections.singletonList(includePath), new NullTemplateCache());
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(includePath)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public OpcodeSequence compileCacheHit() throws IllegalSyntaxException {
+    return hitLoader.compile(corpus.fileName(), syntax);
+  }
+
+  @Benchmark
+  public OpcodeSequence compileCacheMiss() throws IllegalSyntaxException {
+    return missLoader.compile(corpus.fileName(), syntax);
+  }
+
+  private static class MapTemplateCache implements TemplateCache {
+    private final Map<String, OpcodeSequence> cache = new HashMap<>();
+
+    @Override
+    public OpcodeSequence get(String filePath) {
+      return cache.get(filePath);
+    }
+
+    @Override
+    public void set(String filePath, OpcodeSequence irep) {
+      cache.put(filePath, irep);
+    }
+
+    @Override
+    public void remove(String filePath) {
+      cache.remove(filePath);
+    }
+  }
+
+  private static class NullTemplateCache implements TemplateCache {
+    @Override
+    public OpcodeSequence get(String filePath) {
+      return null;
+    }
+
+    @Override
+    public void set(String filePath, OpcodeSequence irep) {
+    }
+
+    @Override
+    public void remove(String filePath) {
+    }
+  }
+}
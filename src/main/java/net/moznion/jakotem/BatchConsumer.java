@@ -0,0 +1,20 @@
+package net.moznion.jakotem;
+
+/**
+ * Receives the outputs of a batch render. Called on the thread that started the batch, one item at a time, so
+ * implementations need not be thread safe; a slow consumer holds back the reading of further contexts.
+ */
+@FunctionalInterface
+public interface BatchConsumer<T> {
+  /**
+   * @param output valid only during the call, as its buffer is reused for another item; copy it to keep it
+   */
+  void accept(T context, CharSequence output);
+
+  /**
+   * Called instead of {@link #accept(Object, CharSequence)} when rendering the context failed. Does nothing by
+   * default; failures are counted in the {@link BatchReport} either way.
+   */
+  default void failed(T context, RuntimeException error) {
+  }
+}
@@ -0,0 +1,53 @@
+package net.moznion.jakotem;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Settings of {@link Jakotem#renderBatch(String, Iterable, BatchOptions, BatchConsumer)}.
+ */
+@Getter
+public class BatchOptions {
+  private final Executor executor;
+  private final boolean ordered;
+  private final int maxInFlight;
+
+  @Setter
+  @Accessors(fluent = true)
+  public static class Builder {
+    /**
+     * Renders the items.
+     */
+    private Executor executor = ForkJoinPool.commonPool();
+    /**
+     * Delivers the outputs in the order of the contexts; otherwise as soon as they are rendered.
+     */
+    private boolean ordered = true;
+    /**
+     * Items read from the contexts but not delivered yet; reading pauses at this bound, which also bounds the number
+     * of output buffers.
+     */
+    private int maxInFlight = Runtime.getRuntime().availableProcessors() * 4;
+
+    public BatchOptions build() {
+      if (maxInFlight <= 0) {
+        throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+      }
+      return new BatchOptions(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private BatchOptions(Builder b) {
+    this.executor = b.executor;
+    this.ordered = b.ordered;
+    this.maxInFlight = b.maxInFlight;
+  }
+}
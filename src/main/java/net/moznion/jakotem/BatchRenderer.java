@@ -0,0 +1,169 @@
+package net.moznion.jakotem;
+
+import net.moznion.jakotem.metrics.TemplateMetricsListener;
+import net.moznion.jakotem.vm.Interpreter;
+import net.moznion.jakotem.vm.RenderContext;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs one batch of {@link Jakotem#renderBatch}. The calling thread reads the contexts, hands them to the executor
+ * and delivers the outputs; at most {@code maxInFlight} items are between reading and delivery, each holding a slot
+ * with its own output buffer and render context. Slots go back to a free list after delivery, so a batch allocates
+ * no more than {@code maxInFlight} of them however many contexts there are.
+ */
+final class BatchRenderer<T extends Map<String, ?>> {
+  private final Interpreter interpreter;
+  private final OpcodeSequence opcodeSequence;
+  private final String fileName;
+  private final TemplateMetricsListener metrics;
+  private final BatchOptions options;
+  private final BatchConsumer<? super T> consumer;
+
+  private final int maxInFlight;
+  // rendered slots; never more than maxInFlight, so adding never blocks
+  private final BlockingQueue<Slot> rendered;
+  private final ArrayDeque<Slot> free = new ArrayDeque<>();
+  // rendered slots waiting for their predecessors, by index modulo maxInFlight
+  private final Slot[] pending;
+  private long submittedCount;
+  // slots taken off the rendered queue, delivered or pending
+  private long takenCount;
+  private long deliveredCount;
+  private long renderedCount;
+  private long failedCount;
+
+  private final class Slot implements Runnable {
+    private final StringBuilder out = new StringBuilder();
+    private final RenderContext renderContext = new RenderContext();
+    private long index;
+    private T context;
+    private Throwable error;
+
+    @Override
+    public void run() {
+      long startedAt = metrics == null ? 0 : System.nanoTime();
+      out.setLength(0);
+      try {
+        interpreter.render(opcodeSequence, context, renderContext, out);
+        if (metrics != null) {
+          metrics.onStringRender(fileName, System.nanoTime() - startedAt, out.length());
+        }
+      } catch (Throwable e) {
+        error = e;
+      }
+      rendered.add(this);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  BatchRenderer(Interpreter interpreter, OpcodeSequence opcodeSequence, String fileName,
+      TemplateMetricsListener metrics, BatchOptions options, BatchConsumer<? super T> consumer) {
+    this.interpreter = interpreter;
+    this.opcodeSequence = opcodeSequence;
+    this.fileName = fileName;
+    this.metrics = metrics;
+    this.options = options;
+    this.consumer = consumer;
+    this.maxInFlight = options.getMaxInFlight();
+    this.rendered = new ArrayBlockingQueue<>(maxInFlight);
+    this.pending = options.isOrdered() ? (Slot[]) new BatchRenderer.Slot[maxInFlight] : null;
+  }
+
+  BatchReport run(Iterator<? extends T> contexts) {
+    long startedAt = System.nanoTime();
+    try {
+      while (contexts.hasNext()) {
+        T context = contexts.next();
+        while (submittedCount - deliveredCount >= maxInFlight) {
+          deliverNext();
+        }
+        Slot slot = free.isEmpty() ? new Slot() : free.pop();
+        slot.index = submittedCount;
+        slot.context = context;
+        try {
+          options.getExecutor().execute(slot);
+        } catch (RuntimeException e) {
+          slot.context = null;
+          free.push(slot);
+          throw e;
+        }
+        submittedCount++;
+      }
+      while (deliveredCount < submittedCount) {
+        deliverNext();
+      }
+    } catch (RuntimeException | Error e) {
+      // a rejected slot, a failing consumer or source, or an error of a render; no render may outlive the batch
+      awaitInFlight();
+      throw e;
+    }
+    return new BatchReport(renderedCount, failedCount, Duration.ofNanos(System.nanoTime() - startedAt));
+  }
+
+  private void awaitInFlight() {
+    boolean interrupted = false;
+    while (takenCount < submittedCount) {
+      try {
+        rendered.take();
+        takenCount++;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void deliverNext() {
+    Slot slot;
+    try {
+      slot = rendered.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while rendering a batch", e);
+    }
+    takenCount++;
+    if (pending == null) {
+      deliver(slot);
+      return;
+    }
+
+    pending[(int) (slot.index % maxInFlight)] = slot;
+    for (int next = (int) (deliveredCount % maxInFlight); pending[next] != null
+        && pending[next].index == deliveredCount; next = (int) (deliveredCount % maxInFlight)) {
+      Slot head = pending[next];
+      pending[next] = null;
+      deliver(head);
+    }
+  }
+
+  private void deliver(Slot slot) {
+    T context = slot.context;
+    Throwable error = slot.error;
+    slot.context = null;
+    slot.error = null;
+    deliveredCount++;
+    try {
+      if (error == null) {
+        renderedCount++;
+        consumer.accept(context, slot.out);
+      } else if (error instanceof Error) {
+        throw (Error) error;
+      } else {
+        failedCount++;
+        // a checked exception thrown sneakily by a user method
+        consumer.failed(context, error instanceof RuntimeException ? (RuntimeException) error
+            : new RenderException("Failed to render " + fileName, error));
+      }
+    } finally {
+      free.push(slot);
+    }
+  }
+}
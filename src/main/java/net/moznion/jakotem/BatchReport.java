@@ -0,0 +1,27 @@
+package net.moznion.jakotem;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.Duration;
+
+/**
+ * Outcome of {@link Jakotem#renderBatch(String, Iterable, BatchOptions, BatchConsumer)}.
+ */
+@Getter
+@ToString
+public class BatchReport {
+  private final long renderedCount;
+  private final long failedCount;
+  private final Duration elapsedTime;
+
+  BatchReport(long renderedCount, long failedCount, Duration elapsedTime) {
+    this.renderedCount = renderedCount;
+    this.failedCount = failedCount;
+    this.elapsedTime = elapsedTime;
+  }
+
+  public boolean isSuccessful() {
+    return failedCount == 0;
+  }
+}
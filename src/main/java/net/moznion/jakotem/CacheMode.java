@@ -0,0 +1,19 @@
+package net.moznion.jakotem;
+
+/**
+ * How {@link TemplateLoader} notices changes of cached templates.
+ */
+public enum CacheMode {
+  /**
+   * Serve cached templates forever.
+   */
+  NEVER_CHECK,
+  /**
+   * Compare modification time and size of the template file, at most once per check interval per template.
+   */
+  CHECK_MODIFIED,
+  /**
+   * Invalidate templates from a background {@link java.nio.file.WatchService} over the include paths.
+   */
+  WATCH,
+}
@@ -0,0 +1,254 @@
+package net.moznion.jakotem;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk store of compiled templates, keyed by template path and {@link Syntax#getId() syntax}, and checked against
+ * the content hash.
+ * <p>
+ * The store file is memory-mapped when opened and entries are decoded lazily on lookup. Entries compiled in this
+ * process are kept in memory and written out by {@link #flush()} (or {@link #close()}), which replaces the store file
+ * atomically. Corrupt entries, and the whole file on a format version mismatch, are ignored; the loader then
+ * recompiles those templates.
+ *
+ * <pre>
+ * file    := MAGIC formatVersion:int entryCount:int entry* payload*
+ * entry   := keyLength:int key:utf8 contentHash:byte[32] payloadOffset:int payloadLength:int payloadCrc:int
+ * key     := templatePath NUL syntaxId
+ * </pre>
+ */
+public class CompiledTemplateStore implements Closeable {
+  private static final int MAGIC = 0x4a4b544d; // "JKTM"
+  private static final int CONTENT_HASH_LENGTH = 32;
+
+  private final Path file;
+  private final MappedByteBuffer mapped;
+  private final Map<String, Entry> mappedEntries;
+  private final ConcurrentHashMap<String, Entry> pendingEntries = new ConcurrentHashMap<>();
+
+  private static final class Entry {
+    private final byte[] contentHash;
+    // either a slice of the mapped file or a freshly serialized payload
+    private final int payloadOffset;
+    private final int payloadLength;
+    private final int payloadCrc;
+    private final byte[] payload;
+
+    private Entry(byte[] contentHash, int payloadOffset, int payloadLength, int payloadCrc, byte[] payload) {
+      this.contentHash = contentHash;
+      this.payloadOffset = payloadOffset;
+      this.payloadLength = payloadLength;
+      this.payloadCrc = payloadCrc;
+      this.payload = payload;
+    }
+  }
+
+  private CompiledTemplateStore(Path file, MappedByteBuffer mapped, Map<String, Entry> mappedEntries) {
+    this.file = file;
+    this.mapped = mapped;
+    this.mappedEntries = mappedEntries;
+  }
+
+  /**
+   * Opens the store file. A missing, truncated or version-mismatched file results in an empty store.
+   */
+  public static CompiledTemplateStore open(Path file) throws IOException {
+    if (!Files.isRegularFile(file) || Files.size(file) == 0) {
+      return new CompiledTemplateStore(file, null, Collections.emptyMap());
+    }
+
+    MappedByteBuffer mapped;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    Map<String, Entry> entries = readIndex(mapped);
+    if (entries == null) {
+      return new CompiledTemplateStore(file, null, Collections.emptyMap());
+    }
+    return new CompiledTemplateStore(file, mapped, entries);
+  }
+
+  private static Map<String, Entry> readIndex(ByteBuffer buffer) {
+    try {
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != OpcodeSequenceSerializer.FORMAT_VERSION) {
+        return null;
+      }
+
+      ByteBuffer in = buffer.duplicate();
+      in.position(8);
+      int entryCount = in.getInt();
+      if (entryCount < 0) {
+        return null;
+      }
+
+      Map<String, Entry> entries = new HashMap<>();
+      for (int i = 0; i < entryCount; i++) {
+        int keyLength = in.getInt();
+        if (keyLength < 0 || keyLength > in.remaining()) {
+          return null;
+        }
+        byte[] key = new byte[keyLength];
+        in.get(key);
+        byte[] contentHash = new byte[CONTENT_HASH_LENGTH];
+        in.get(contentHash);
+        int payloadOffset = in.getInt();
+        int payloadLength = in.getInt();
+        int payloadCrc = in.getInt();
+        if (payloadOffset < 0 || payloadLength < 0 || payloadOffset > buffer.limit() - payloadLength) {
+          return null;
+        }
+        entries.put(new String(key, StandardCharsets.UTF_8),
+            new Entry(contentHash, payloadOffset, payloadLength, payloadCrc, null));
+      }
+      return entries;
+    } catch (RuntimeException e) {
+      // BufferUnderflowException, IndexOutOfBoundsException; broken index
+      return null;
+    }
+  }
+
+  public static byte[] contentHash(byte[] content) {
+    return contentHash(ByteBuffer.wrap(content));
+  }
+
+  /**
+   * Hashes the remaining bytes without moving the buffer's position.
+   */
+  public static byte[] contentHash(ByteBuffer content) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(content.duplicate());
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the stored template, or null when it is missing, stale or corrupt
+   */
+  public OpcodeSequence get(String templatePath, Syntax syntax, byte[] contentHash) {
+    String key = key(templatePath, syntax);
+    Entry entry = pendingEntries.get(key);
+    if (entry == null) {
+      entry = mappedEntries.get(key);
+    }
+    if (entry == null || !Arrays.equals(entry.contentHash, contentHash)) {
+      return null;
+    }
+
+    ByteBuffer payload = payloadOf(entry);
+    if (crc(payload.duplicate()) != entry.payloadCrc) {
+      return null;
+    }
+
+    try {
+      return OpcodeSequenceSerializer.deserialize(payload);
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  public void put(String templatePath, Syntax syntax, byte[] contentHash, OpcodeSequence opcodeSequence) {
+    byte[] payload = OpcodeSequenceSerializer.serialize(opcodeSequence);
+    pendingEntries.put(key(templatePath, syntax),
+        new Entry(contentHash, -1, payload.length, crc(ByteBuffer.wrap(payload)), payload));
+  }
+
+  // a template compiled with one syntax is never returned for another
+  private static String key(String templatePath, Syntax syntax) {
+    return templatePath + '\0' + syntax.getId();
+  }
+
+  private ByteBuffer payloadOf(Entry entry) {
+    if (entry.payload != null) {
+      return ByteBuffer.wrap(entry.payload);
+    }
+    ByteBuffer payload = mapped.duplicate();
+    payload.position(entry.payloadOffset);
+    payload.limit(entry.payloadOffset + entry.payloadLength);
+    return payload.slice();
+  }
+
+  private static int crc(ByteBuffer buffer) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(buffer);
+    return (int) crc32.getValue();
+  }
+
+  /**
+   * Writes all entries into the store file. Does nothing when no template was compiled since opening.
+   */
+  public synchronized void flush() throws IOException {
+    if (pendingEntries.isEmpty()) {
+      return;
+    }
+
+    Map<String, Entry> entries = new HashMap<>(mappedEntries);
+    entries.putAll(pendingEntries);
+
+    Map<String, byte[]> keys = new HashMap<>();
+    int indexLength = 12;
+    for (String key : entries.keySet()) {
+      byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+      keys.put(key, bytes);
+      indexLength += 4 + bytes.length + CONTENT_HASH_LENGTH + 12;
+    }
+
+    Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try (OutputStream os = Files.newOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))) {
+      out.writeInt(MAGIC);
+      out.writeInt(OpcodeSequenceSerializer.FORMAT_VERSION);
+      out.writeInt(entries.size());
+
+      int payloadOffset = indexLength;
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        byte[] key = keys.get(e.getKey());
+        Entry entry = e.getValue();
+        out.writeInt(key.length);
+        out.write(key);
+        out.write(entry.contentHash);
+        out.writeInt(payloadOffset);
+        out.writeInt(entry.payloadLength);
+        out.writeInt(entry.payloadCrc);
+        payloadOffset += entry.payloadLength;
+      }
+
+      for (Entry entry : entries.values()) {
+        ByteBuffer payload = payloadOf(entry);
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        out.write(bytes);
+      }
+    }
+
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+}
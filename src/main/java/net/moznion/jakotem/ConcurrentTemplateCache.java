@@ -0,0 +1,158 @@
+package net.moznion.jakotem;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe {@link TemplateCache} bounded by the number of templates.
+ * <p>
+ * Eviction is frequency-aware (generalized CLOCK): every hit bumps a small saturating counter on the entry, and the
+ * clock hand decrements counters until it finds an entry that has not been used since its last visit. Lookups take
+ * no lock; only insertions and evictions are serialized.
+ */
+public class ConcurrentTemplateCache implements TemplateCache {
+  private static final int MAX_FREQUENCY = 3;
+
+  private final int maximumSize;
+  private final ConcurrentHashMap<String, Entry> entries;
+  private final Entry[] clock;
+  private final Object evictionLock = new Object();
+  private int clockSize;
+  private int hand;
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+  private volatile Consumer<String> evictionListener;
+
+  private static final class Entry {
+    private final String key;
+    private volatile OpcodeSequence value;
+    private volatile int frequency;
+    private int slot; // guarded by evictionLock
+
+    private Entry(String key, OpcodeSequence value) {
+      this.key = key;
+      this.value = value;
+      this.frequency = 1;
+    }
+  }
+
+  public ConcurrentTemplateCache(int maximumSize) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+    }
+    this.maximumSize = maximumSize;
+    this.entries = new ConcurrentHashMap<>(Math.min(maximumSize, 1024));
+    this.clock = new Entry[maximumSize];
+  }
+
+  @Override
+  public OpcodeSequence get(String filePath) {
+    Entry entry = entries.get(filePath);
+    if (entry == null) {
+      missCount.increment();
+      return null;
+    }
+
+    // racy on purpose; the counter is only a hint for eviction
+    int frequency = entry.frequency;
+    if (frequency < MAX_FREQUENCY) {
+      entry.frequency = frequency + 1;
+    }
+    hitCount.increment();
+    return entry.value;
+  }
+
+  @Override
+  public OpcodeSequence peek(String filePath) {
+    Entry entry = entries.get(filePath);
+    return entry == null ? null : entry.value;
+  }
+
+  @Override
+  public void set(String filePath, OpcodeSequence irep) {
+    synchronized (evictionLock) {
+      Entry entry = entries.get(filePath);
+      if (entry != null) {
+        entry.value = irep;
+        return;
+      }
+
+      entry = new Entry(filePath, irep);
+      entry.slot = clockSize < maximumSize ? clockSize++ : evict();
+      clock[entry.slot] = entry;
+      entries.put(filePath, entry);
+    }
+  }
+
+  @Override
+  public void remove(String filePath) {
+    synchronized (evictionLock) {
+      Entry entry = entries.remove(filePath);
+      if (entry == null) {
+        return;
+      }
+
+      // fill the hole with the last entry of the clock
+      Entry last = clock[--clockSize];
+      clock[clockSize] = null;
+      if (last != entry) {
+        clock[entry.slot] = last;
+        last.slot = entry.slot;
+      }
+      if (hand >= clockSize) {
+        hand = 0;
+      }
+    }
+  }
+
+  // must be called with evictionLock held
+  private int evict() {
+    while (true) {
+      Entry candidate = clock[hand];
+      int slot = hand;
+      hand = (hand + 1) % clockSize;
+
+      if (candidate.frequency > 0) {
+        candidate.frequency = candidate.frequency - 1;
+        continue;
+      }
+
+      entries.remove(candidate.key, candidate);
+      evictionCount.increment();
+      Consumer<String> listener = evictionListener;
+      if (listener != null) {
+        listener.accept(candidate.key);
+      }
+      return slot;
+    }
+  }
+
+  @Override
+  public void setEvictionListener(Consumer<String> listener) {
+    this.evictionListener = listener;
+  }
+
+  @Override
+  public int size() {
+    return entries.size();
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictionCount.sum();
+  }
+}
@@ -1,9 +1,47 @@
 package net.moznion.jakotem;
 
+import java.io.IOException;
+import java.util.Optional;
+
 public class IllegalSyntaxException extends Exception {
   private static final long serialVersionUID = 1L;
 
+  private final transient Source source;
+  private final int lineNumber;
+
   public IllegalSyntaxException() {
-    super();
+    this(null, null, 0);
+  }
+
+  public IllegalSyntaxException(String message) {
+    this(message, null, 0);
+  }
+
+  public IllegalSyntaxException(String message, Source source, int lineNumber) {
+    super(message);
+    this.source = source;
+    this.lineNumber = lineNumber;
+  }
+
+  /**
+   * @return 0 if unknown
+   */
+  public int getLineNumber() {
+    return lineNumber;
+  }
+
+  /**
+   * Lines around the error, the erroneous one marked with "* ". They are cut out of the template text only when
+   * asked for.
+   */
+  public Optional<String> getSourceContext() {
+    if (source == null || lineNumber <= 0) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(source.getTargetLines(lineNumber));
+    } catch (IOException e) {
+      return Optional.empty();
+    }
   }
 }
@@ -1,4 +1,209 @@
 package net.moznion.jakotem;
 
+import net.moznion.jakotem.kolon.KolonSyntax;
+import net.moznion.jakotem.metrics.TemplateMetricsListener;
+import net.moznion.jakotem.vm.Interpreter;
+
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 public class Jakotem {
+  private final TemplateLoader templateLoader;
+  private final Syntax syntax;
+  private final Interpreter interpreter;
+  private final ForkJoinPool warmUpPool;
+
+  @Setter
+  @Accessors(fluent = true)
+  public static class Builder {
+    private TemplateLoader templateLoader;
+    private Syntax syntax = new KolonSyntax();
+    private Interpreter interpreter = new Interpreter();
+    /**
+     * Pool that compiles templates in {@link Jakotem#warmUp()}.
+     */
+    private ForkJoinPool warmUpPool = ForkJoinPool.commonPool();
+
+    public Jakotem build() {
+      return new Jakotem(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private Jakotem(Builder b) {
+    this.templateLoader = b.templateLoader;
+    this.syntax = b.syntax;
+    this.interpreter = b.interpreter;
+    if (templateLoader != null && templateLoader.metricsListener != null) {
+      interpreter.getFragmentCache().setMetricsListener(templateLoader.metricsListener);
+    }
+    this.warmUpPool = b.warmUpPool;
+  }
+
+  public OpcodeSequence compile(String fileName) throws IllegalSyntaxException {
+    return templateLoader.compile(fileName, syntax);
+  }
+
+  public String render(String fileName, Map<String, ?> vars) throws IllegalSyntaxException {
+    OpcodeSequence opcodeSequence = compile(fileName);
+    TemplateMetricsListener metrics = templateLoader.metricsListener;
+    if (metrics == null) {
+      return interpreter.render(opcodeSequence, vars);
+    }
+
+    long startedAt = System.nanoTime();
+    String output = interpreter.render(opcodeSequence, vars);
+    metrics.onStringRender(fileName, System.nanoTime() - startedAt, output.length());
+    return output;
+  }
+
+  public void render(String fileName, Map<String, ?> vars, OutputStream out, Charset charset)
+      throws IllegalSyntaxException {
+    render(fileName, vars, out, charset, null);
+  }
+
+  /**
+   * Streams the output, flushing the stream at the end of the blocks the predicate accepts, e.g.
+   * {@code "head"::equals}.
+   */
+  public void render(String fileName, Map<String, ?> vars, OutputStream out, Charset charset,
+      Predicate<String> flushAfter) throws IllegalSyntaxException {
+    OpcodeSequence opcodeSequence = compile(fileName);
+    TemplateMetricsListener metrics = templateLoader.metricsListener;
+    if (metrics == null) {
+      interpreter.render(opcodeSequence, vars, out, charset, flushAfter);
+      return;
+    }
+
+    long startedAt = System.nanoTime();
+    CountingOutputStream counting = new CountingOutputStream(out);
+    interpreter.render(opcodeSequence, vars, counting, charset, flushAfter);
+    metrics.onRender(fileName, System.nanoTime() - startedAt, counting.count);
+  }
+
+  public <T extends Map<String, ?>> BatchReport renderBatch(String fileName, Iterable<T> contexts,
+      BatchConsumer<? super T> consumer) throws IllegalSyntaxException {
+    return renderBatch(fileName, contexts, BatchOptions.builder().build(), consumer);
+  }
+
+  public <T extends Map<String, ?>> BatchReport renderBatch(String fileName, Stream<T> contexts,
+      BatchOptions options, BatchConsumer<? super T> consumer) throws IllegalSyntaxException {
+    return renderBatch(fileName, contexts.iterator(), options, consumer);
+  }
+
+  /**
+   * Renders one template once per context on the executor of the options and hands each output to the consumer on
+   * the calling thread, in the order of the contexts unless the options say otherwise. The contexts are read only as
+   * fast as the consumer takes the outputs, so a lazy source is never read more than {@code maxInFlight} ahead. A
+   * render error is passed to {@link BatchConsumer#failed} and does not stop the batch; an exception of the consumer
+   * or the source, or a rejection by the executor, is rethrown once the renders in flight have finished.
+   */
+  public <T extends Map<String, ?>> BatchReport renderBatch(String fileName, Iterable<T> contexts,
+      BatchOptions options, BatchConsumer<? super T> consumer) throws IllegalSyntaxException {
+    return renderBatch(fileName, contexts.iterator(), options, consumer);
+  }
+
+  private <T extends Map<String, ?>> BatchReport renderBatch(String fileName, Iterator<T> contexts,
+      BatchOptions options, BatchConsumer<? super T> consumer) throws IllegalSyntaxException {
+    OpcodeSequence opcodeSequence = compile(fileName);
+    return new BatchRenderer<T>(interpreter, opcodeSequence, fileName, templateLoader.metricsListener, options,
+        consumer).run(contexts);
+  }
+
+  /**
+   * Compiles every template in the include paths into the template cache; call it before serving requests so that
+   * no template is compiled on the request path. Only files with the {@link Syntax#getFileSuffix() suffix} of the
+   * syntax are compiled, so that images and the like next to the templates are not reported as failures.
+   */
+  public WarmUpReport warmUp() throws IOException {
+    return warmUp(fileName -> fileName.endsWith(syntax.getFileSuffix()));
+  }
+
+  /**
+   * Compiles the templates in the include paths whose names (relative to the include path, separated by '/') match
+   * the filter.
+   */
+  public WarmUpReport warmUp(Predicate<String> filter) throws IOException {
+    return compileAll(templateLoader.scanIncludePaths(syntax).stream().filter(filter).collect(Collectors.toList()));
+  }
+
+  /**
+   * Compiles the templates listed in the manifest.
+   */
+  public WarmUpReport warmUp(Collection<String> manifest) {
+    return compileAll(manifest);
+  }
+
+  private WarmUpReport compileAll(Collection<String> fileNames) {
+    long startedAt = System.nanoTime();
+
+    List<Callable<WarmUpReport.Result>> tasks = new ArrayList<>(fileNames.size());
+    for (String fileName : fileNames) {
+      tasks.add(() -> {
+        long compileStartedAt = System.nanoTime();
+        Exception error = null;
+        try {
+          templateLoader.compile(fileName, syntax);
+        } catch (IllegalSyntaxException | RuntimeException e) {
+          error = e;
+        }
+        return new WarmUpReport.Result(fileName, Duration.ofNanos(System.nanoTime() - compileStartedAt), error);
+      });
+    }
+
+    List<WarmUpReport.Result> results = new ArrayList<>(tasks.size());
+    for (Future<WarmUpReport.Result> future : warmUpPool.invokeAll(tasks)) {
+      try {
+        results.add(future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while warming up", e);
+      } catch (ExecutionException e) {
+        // compile errors are caught in the task
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+    return new WarmUpReport(results, Duration.ofNanos(System.nanoTime() - startedAt));
+  }
+
+  private static final class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
 }
@@ -1,5 +1,287 @@
 package net.moznion.jakotem;
 
+import java.util.Arrays;
+
+/**
+ * Abstract syntax tree of a template.
+ * <p>
+ * All nodes live in parallel primitive arrays of this object and are addressed by index, with {@link #ROOT} being the
+ * {@link NodeType#TEMPLATE} node. Children are linked as a first-child/next-sibling list. Positions are kept as
+ * offsets into the source of each node; line numbers are resolved from them only when asked for.
+ */
 public class Node {
+  public static final int ROOT = 0;
+  public static final int NONE = -1;
+
+  private static final NodeType[] NODE_TYPES = NodeType.values();
+  private static final int DEFAULT_CAPACITY = 64;
+
+  private byte[] types;
+  private int[] offsets;
+  // template each node was parsed from; trees flattened from several templates mix them
+  private Source[] sources;
+  private int[] firstChildren;
+  private int[] lastChildren;
+  private int[] nextSiblings;
+  private Object[] values;
+  private int size;
+  // template the tree is parsed from, given to the nodes added; null if unknown
+  private Source source;
+
+  public Node() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public Node(int initialCapacity) {
+    int capacity = Math.max(initialCapacity, 1);
+    types = new byte[capacity];
+    offsets = new int[capacity];
+    sources = new Source[capacity];
+    firstChildren = new int[capacity];
+    lastChildren = new int[capacity];
+    nextSiblings = new int[capacity];
+    values = new Object[capacity];
+    add(NodeType.TEMPLATE, null, 0);
+  }
+
+  public Source getSource() {
+    return source;
+  }
+
+  /**
+   * Sets the template the tree is parsed from, which the root and the nodes added from now on refer to.
+   */
+  public void setSource(Source source) {
+    this.source = source;
+    sources[ROOT] = source;
+  }
+
+  /**
+   * Adds a node at the offset in the {@link #getSource() source} of this tree.
+   */
+  public int add(NodeType type, Object value, int offset) {
+    return add(type, value, source, offset);
+  }
+
+  private int add(NodeType type, Object value, Source source, int offset) {
+    if (size == types.length) {
+      grow();
+    }
+    types[size] = (byte) type.ordinal();
+    offsets[size] = offset;
+    sources[size] = source;
+    firstChildren[size] = NONE;
+    lastChildren[size] = NONE;
+    nextSiblings[size] = NONE;
+    values[size] = value;
+    return size++;
+  }
+
+  /**
+   * Adds a node with the children, which must not have a parent yet.
+   */
+  public int add(NodeType type, Object value, int offset, int... children) {
+    return appendChildren(add(type, value, offset), children);
+  }
+
+  /**
+   * Adds a node with the children at the position of a node of the tree {@code at}, which may be this one.
+   */
+  public int add(NodeType type, Object value, Node at, int node, int... children) {
+    return appendChildren(add(type, value, at.sources[node], at.offsets[node]), children);
+  }
+
+  private int appendChildren(int node, int[] children) {
+    for (int child : children) {
+      appendChild(node, child);
+    }
+    return node;
+  }
+
+  public void appendChild(int parent, int child) {
+    nextSiblings[child] = NONE;
+    if (lastChildren[parent] == NONE) {
+      firstChildren[parent] = child;
+    } else {
+      nextSiblings[lastChildren[parent]] = child;
+    }
+    lastChildren[parent] = child;
+  }
+
+  /**
+   * Puts the replacement at the place of the child; {@code previous} is the sibling before it, or {@link #NONE}.
+   */
+  void replaceChild(int parent, int previous, int child, int replacement) {
+    nextSiblings[replacement] = nextSiblings[child];
+    nextSiblings[child] = NONE;
+    if (previous == NONE) {
+      firstChildren[parent] = replacement;
+    } else {
+      nextSiblings[previous] = replacement;
+    }
+    if (lastChildren[parent] == child) {
+      lastChildren[parent] = replacement;
+    }
+  }
+
+  void removeChild(int parent, int previous, int child) {
+    if (previous == NONE) {
+      firstChildren[parent] = nextSiblings[child];
+    } else {
+      nextSiblings[previous] = nextSiblings[child];
+    }
+    if (lastChildren[parent] == child) {
+      lastChildren[parent] = previous;
+    }
+    nextSiblings[child] = NONE;
+  }
+
+  void setValue(int node, Object value) {
+    values[node] = value;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public NodeType getType(int node) {
+    return NODE_TYPES[types[node]];
+  }
+
+  public Object getValue(int node) {
+    return values[node];
+  }
+
+  public int getOffset(int node) {
+    return offsets[node];
+  }
+
+  /**
+   * @return the template the node was parsed from, or null if unknown
+   */
+  public Source getSource(int node) {
+    return sources[node];
+  }
+
+  /**
+   * @return 1-origin line number of the node in its {@link #getSource(int) source}, or 0 if unknown
+   */
+  public int getLineNumber(int node) {
+    Source nodeSource = sources[node];
+    return nodeSource == null ? 0 : nodeSource.getLineNumber(offsets[node]);
+  }
+
+  public int getFirstChild(int node) {
+    return firstChildren[node];
+  }
+
+  public int getLastChild(int node) {
+    return lastChildren[node];
+  }
+
+  public int getNextSibling(int node) {
+    return nextSiblings[node];
+  }
+
+  /**
+   * @return the n-th child, or {@link #NONE}
+   */
+  public int getChild(int node, int n) {
+    int child = firstChildren[node];
+    for (int i = 0; i < n && child != NONE; i++) {
+      child = nextSiblings[child];
+    }
+    return child;
+  }
+
+  public int getChildCount(int node) {
+    int count = 0;
+    for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+      count++;
+    }
+    return count;
+  }
+
+  public boolean isConstant(int node) {
+    switch (getType(node)) {
+      case INTEGER:
+      case DOUBLE:
+      case STRING:
+      case NIL:
+      case TRUE:
+      case FALSE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Value of a constant node as seen by the renderer.
+   */
+  public Object getConstantValue(int node) {
+    switch (getType(node)) {
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      default:
+        return values[node];
+    }
+  }
+
+  /**
+   * Adds a literal node holding the value at the position of a node of the tree {@code at}, or returns {@link #NONE}
+   * if the value has no literal form.
+   */
+  public int addConstant(Object value, Node at, int node) {
+    if (value == null) {
+      return add(NodeType.NIL, null, at, node);
+    } else if (value instanceof Boolean) {
+      return add((Boolean) value ? NodeType.TRUE : NodeType.FALSE, null, at, node);
+    } else if (value instanceof Long) {
+      return add(NodeType.INTEGER, value, at, node);
+    } else if (value instanceof Double) {
+      return add(NodeType.DOUBLE, value, at, node);
+    } else if (value instanceof String) {
+      return add(NodeType.STRING, value, at, node);
+    }
+    return NONE;
+  }
+
+  /**
+   * Returns the tree as an S-expression, e.g. {@code (TEMPLATE (RAW "a") (PRINT (VARIABLE x)))}.
+   */
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    appendTo(builder, ROOT);
+    return builder.toString();
+  }
+
+  private void appendTo(StringBuilder builder, int node) {
+    builder.append('(').append(getType(node));
+    Object value = values[node];
+    if (value instanceof String) {
+      builder.append(" \"").append(value).append('"');
+    } else if (value != null) {
+      builder.append(' ').append(value);
+    }
+    for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+      builder.append(' ');
+      appendTo(builder, child);
+    }
+    builder.append(')');
+  }
 
+  private void grow() {
+    int capacity = types.length * 2;
+    types = Arrays.copyOf(types, capacity);
+    offsets = Arrays.copyOf(offsets, capacity);
+    sources = Arrays.copyOf(sources, capacity);
+    firstChildren = Arrays.copyOf(firstChildren, capacity);
+    lastChildren = Arrays.copyOf(lastChildren, capacity);
+    nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+    values = Arrays.copyOf(values, capacity);
+  }
 }
@@ -0,0 +1,365 @@
+package net.moznion.jakotem;
+
+import net.moznion.jakotem.OpcodeSequence.Label;
+import net.moznion.jakotem.vm.Opcode;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Code generation from a (optimized) {@link Node} tree to an {@link OpcodeSequence}.
+ *
+ * <p>Loop variables and the temporaries of {@link NodeOptimizer} are resolved to local slots at compile time; only
+ * the remaining names are looked up in the template parameters at run time. Property accesses with a constant name
+ * and method calls get an inline cache each.
+ */
+public final class NodeCompiler {
+  private final Node ast;
+  private final OpcodeSequence.Builder builder = OpcodeSequence.builder();
+  private final Map<String, Integer> locals = new HashMap<>();
+  // bindings shadowed by inner scopes, restored when these end
+  private final Deque<Object[]> shadowed = new ArrayDeque<>();
+
+  private NodeCompiler(Node ast) {
+    this.ast = ast;
+  }
+
+  public static OpcodeSequence compile(Node ast) {
+    NodeCompiler compiler = new NodeCompiler(ast);
+    compiler.statements(Node.ROOT);
+    return compiler.builder.build();
+  }
+
+  private void statements(int parent) {
+    final int localMark = builder.markLocals();
+    final int scopeMark = shadowed.size();
+    for (int child = ast.getFirstChild(parent); child != Node.NONE; child = ast.getNextSibling(child)) {
+      statement(child);
+    }
+    unbind(scopeMark);
+    builder.releaseLocals(localMark);
+  }
+
+  private void statement(int node) {
+    final int first = ast.getFirstChild(node);
+    switch (ast.getType(node)) {
+      case TEMPLATE:
+      case STATEMENTS:
+        statements(node);
+        break;
+      case RAW:
+        builder.emit(Opcode.RAW, builder.constant(ast.getValue(node)));
+        break;
+      case PRINT:
+        expression(first);
+        builder.emit(Opcode.PRINT);
+        break;
+      case IF: {
+        Label otherwise = builder.newLabel();
+        expression(first);
+        builder.jump(Opcode.JUMP_IF_FALSE, otherwise);
+        statements(ast.getNextSibling(first));
+        int elseBody = ast.getChild(node, 2);
+        if (elseBody == Node.NONE) {
+          builder.place(otherwise);
+        } else {
+          Label end = builder.newLabel();
+          builder.jump(Opcode.JUMP, end);
+          builder.place(otherwise);
+          statements(elseBody);
+          builder.place(end);
+        }
+        break;
+      }
+      case FOR:
+        loop(node);
+        break;
+      case WHILE: {
+        Label condition = builder.newLabel();
+        Label end = builder.newLabel();
+        builder.place(condition);
+        expression(first);
+        builder.jump(Opcode.JUMP_IF_FALSE, end);
+        statements(ast.getNextSibling(first));
+        builder.jump(Opcode.JUMP, condition);
+        builder.place(end);
+        break;
+      }
+      case SWITCH:
+        switchStatement(node);
+        break;
+      case LET:
+        // visible until the end of the enclosing statement list
+        expression(first);
+        int slot = builder.newLocal();
+        builder.emit(Opcode.STORE_LOCAL, slot);
+        bind((String) ast.getValue(node), slot);
+        break;
+      case CACHE: {
+        // a hit writes the stored output of the fragment and skips it; a miss renders and stores it
+        Label end = builder.newLabel();
+        expression(first);
+        expression(ast.getNextSibling(first));
+        builder.cacheBegin(end);
+        statement(ast.getChild(node, 2));
+        builder.emit(Opcode.CACHE_END);
+        builder.place(end);
+        break;
+      }
+      case BLOCK:
+        // its default content, followed by a flush point for streaming outputs
+        statements(first);
+        builder.emit(Opcode.BLOCK_END, builder.constant(ast.getValue(node)));
+        break;
+      default:
+        throw new IllegalArgumentException("Unexpected " + ast.getType(node) + " statement at line "
+            + ast.getLineNumber(node));
+    }
+  }
+
+  /**
+   * The LETs hoisted out of the body are evaluated once, after the first element has been fetched, so that they
+   * are not evaluated at all for an empty iterable.
+   */
+  private void loop(int node) {
+    final int localMark = builder.markLocals();
+    final int scopeMark = shadowed.size();
+    final int iterable = ast.getFirstChild(node);
+    final int body = ast.getNextSibling(iterable);
+
+    expression(iterable);
+    int iteration = builder.newLocal();
+    int variable = builder.newLocal();
+    builder.emit(Opcode.ITER_INIT, iteration);
+
+    Label end = builder.newLabel();
+    builder.iterNext(iteration, variable, end);
+    bind((String) ast.getValue(node), variable);
+    for (int let = ast.getNextSibling(body); let != Node.NONE; let = ast.getNextSibling(let)) {
+      statement(let);
+    }
+
+    Label top = builder.newLabel();
+    builder.place(top);
+    statements(body);
+    builder.iterNext(iteration, variable, end);
+    builder.jump(Opcode.JUMP, top);
+    builder.place(end);
+
+    unbind(scopeMark);
+    builder.releaseLocals(localMark);
+  }
+
+  private void switchStatement(int node) {
+    final int localMark = builder.markLocals();
+    final int subject = ast.getFirstChild(node);
+    expression(subject);
+    int slot = builder.newLocal();
+    builder.emit(Opcode.STORE_LOCAL, slot);
+
+    Label end = builder.newLabel();
+    int defaultBody = Node.NONE;
+    for (int branch = ast.getNextSibling(subject); branch != Node.NONE; branch = ast.getNextSibling(branch)) {
+      int first = ast.getFirstChild(branch);
+      if (ast.getType(branch) == NodeType.DEFAULT) {
+        defaultBody = first;
+        continue;
+      }
+      Label next = builder.newLabel();
+      builder.emit(Opcode.LOAD_LOCAL, slot);
+      expression(first);
+      builder.emit(Opcode.EQ);
+      builder.jump(Opcode.JUMP_IF_FALSE, next);
+      statements(ast.getNextSibling(first));
+      builder.jump(Opcode.JUMP, end);
+      builder.place(next);
+    }
+    if (defaultBody != Node.NONE) {
+      statements(defaultBody);
+    }
+    builder.place(end);
+    builder.releaseLocals(localMark);
+  }
+
+  private void expression(int node) {
+    final int first = ast.getFirstChild(node);
+    switch (ast.getType(node)) {
+      case INTEGER:
+      case DOUBLE:
+      case STRING:
+        builder.emit(Opcode.PUSH_CONST, builder.constant(ast.getValue(node)));
+        break;
+      case NIL:
+        builder.emit(Opcode.PUSH_NIL);
+        break;
+      case TRUE:
+        builder.emit(Opcode.PUSH_TRUE);
+        break;
+      case FALSE:
+        builder.emit(Opcode.PUSH_FALSE);
+        break;
+      case VARIABLE: {
+        String name = (String) ast.getValue(node);
+        Integer slot = locals.get(name);
+        if (slot != null) {
+          builder.emit(Opcode.LOAD_LOCAL, slot);
+        } else {
+          builder.emit(Opcode.LOAD_VAR, builder.constant(name));
+        }
+        break;
+      }
+      case VARS:
+        builder.emit(Opcode.LOAD_VARS);
+        break;
+      case ADD:
+        binary(first, Opcode.ADD);
+        break;
+      case SUB:
+        binary(first, Opcode.SUB);
+        break;
+      case MUL:
+        binary(first, Opcode.MUL);
+        break;
+      case DIV:
+        binary(first, Opcode.DIV);
+        break;
+      case MOD:
+        binary(first, Opcode.MOD);
+        break;
+      case CONCAT:
+        binary(first, Opcode.CONCAT);
+        break;
+      case BIT_AND:
+        binary(first, Opcode.BIT_AND);
+        break;
+      case BIT_OR:
+        binary(first, Opcode.BIT_OR);
+        break;
+      case BIT_XOR:
+        binary(first, Opcode.BIT_XOR);
+        break;
+      case EQ:
+        binary(first, Opcode.EQ);
+        break;
+      case NE:
+        binary(first, Opcode.NE);
+        break;
+      case LT:
+        binary(first, Opcode.LT);
+        break;
+      case LE:
+        binary(first, Opcode.LE);
+        break;
+      case GT:
+        binary(first, Opcode.GT);
+        break;
+      case GE:
+        binary(first, Opcode.GE);
+        break;
+      case MIN:
+        binary(first, Opcode.MIN);
+        break;
+      case MAX:
+        binary(first, Opcode.MAX);
+        break;
+      case AND:
+        shortCircuit(first, Opcode.JUMP_IF_FALSE_OR_POP);
+        break;
+      case OR:
+        shortCircuit(first, Opcode.JUMP_IF_TRUE_OR_POP);
+        break;
+      case NULL_OR:
+        shortCircuit(first, Opcode.JUMP_IF_NOT_NIL_OR_POP);
+        break;
+      case NEG:
+        expression(first);
+        builder.emit(Opcode.NEG);
+        break;
+      case NOT:
+        expression(first);
+        builder.emit(Opcode.NOT);
+        break;
+      case CONDITIONAL: {
+        Label otherwise = builder.newLabel();
+        Label end = builder.newLabel();
+        int then = ast.getNextSibling(first);
+        expression(first);
+        builder.jump(Opcode.JUMP_IF_FALSE, otherwise);
+        expression(then);
+        builder.jump(Opcode.JUMP, end);
+        builder.place(otherwise);
+        expression(ast.getNextSibling(then));
+        builder.place(end);
+        break;
+      }
+      case ELEMENT: {
+        int key = ast.getNextSibling(first);
+        expression(first);
+        if (ast.getType(key) == NodeType.STRING) {
+          builder.getProperty((String) ast.getValue(key));
+        } else {
+          expression(key);
+          builder.emit(Opcode.GET_ELEMENT);
+        }
+        break;
+      }
+      case METHOD_CALL: {
+        expression(first);
+        int argc = arguments(ast.getNextSibling(first));
+        builder.callMethod((String) ast.getValue(node), argc);
+        break;
+      }
+      case FUNCTION_CALL: {
+        int argc = arguments(first);
+        builder.emit(Opcode.CALL_FUNCTION, builder.constant(ast.getValue(node)), argc);
+        break;
+      }
+      case ARRAY:
+        builder.emit(Opcode.MAKE_ARRAY, arguments(first));
+        break;
+      default:
+        throw new IllegalArgumentException("Unexpected " + ast.getType(node) + " expression at line "
+            + ast.getLineNumber(node));
+    }
+  }
+
+  private void binary(int left, int opcode) {
+    expression(left);
+    expression(ast.getNextSibling(left));
+    builder.emit(opcode);
+  }
+
+  private void shortCircuit(int left, int jump) {
+    Label end = builder.newLabel();
+    expression(left);
+    builder.jump(jump, end);
+    expression(ast.getNextSibling(left));
+    builder.place(end);
+  }
+
+  private int arguments(int first) {
+    int count = 0;
+    for (int argument = first; argument != Node.NONE; argument = ast.getNextSibling(argument)) {
+      expression(argument);
+      count++;
+    }
+    return count;
+  }
+
+  private void bind(String name, int slot) {
+    shadowed.push(new Object[] {name, locals.put(name, slot)});
+  }
+
+  private void unbind(int mark) {
+    while (shadowed.size() > mark) {
+      Object[] binding = shadowed.pop();
+      if (binding[1] == null) {
+        locals.remove(binding[0]);
+      } else {
+        locals.put((String) binding[0], (Integer) binding[1]);
+      }
+    }
+  }
+}
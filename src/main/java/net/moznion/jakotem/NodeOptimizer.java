@@ -0,0 +1,389 @@
+package net.moznion.jakotem;
+
+import net.moznion.jakotem.vm.HtmlEscaper;
+import net.moznion.jakotem.vm.Operators;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Optimization pass between parsing and code generation. Copies the tree into a new {@link Node} while
+ * <ul>
+ * <li>folding constant expressions, with the same semantics as the renderer ({@link Operators}),</li>
+ * <li>turning prints of constants into RAW text and merging adjacent RAW segments,</li>
+ * <li>dropping {@code if}/{@code else} branches, {@code while} loops and {@code switch} cases that can never run,</li>
+ * <li>hoisting loop-invariant expressions out of {@code for} bodies.</li>
+ * </ul>
+ */
+public final class NodeOptimizer {
+  private static final Object NOT_FOLDABLE = new Object();
+
+  private final Node src;
+  private final Node dst;
+  private final Set<String> enclosingLoopVariables = new HashSet<>();
+  private int temporaryCount;
+
+  private NodeOptimizer(Node src) {
+    this.src = src;
+    this.dst = new Node(src.size());
+  }
+
+  public static Node optimize(Node ast) {
+    NodeOptimizer optimizer = new NodeOptimizer(ast);
+    optimizer.statements(Node.ROOT, Node.ROOT);
+    return optimizer.dst;
+  }
+
+  private void statements(int srcParent, int dstParent) {
+    for (int child = src.getFirstChild(srcParent); child != Node.NONE; child = src.getNextSibling(child)) {
+      appendStatement(dstParent, statement(child));
+    }
+  }
+
+  /**
+   * Appends to a statement list; nested STATEMENTS are spliced in and adjacent RAW segments merged.
+   */
+  private void appendStatement(int parent, int statement) {
+    if (statement == Node.NONE) {
+      return;
+    }
+    if (dst.getType(statement) == NodeType.STATEMENTS) {
+      int child = dst.getFirstChild(statement);
+      while (child != Node.NONE) {
+        int next = dst.getNextSibling(child);
+        appendStatement(parent, child);
+        child = next;
+      }
+      return;
+    }
+
+    int last = dst.getLastChild(parent);
+    if (dst.getType(statement) == NodeType.RAW && last != Node.NONE && dst.getType(last) == NodeType.RAW) {
+      dst.setValue(last, (String) dst.getValue(last) + dst.getValue(statement));
+      return;
+    }
+    dst.appendChild(parent, statement);
+  }
+
+  /**
+   * @return the copied statement, a STATEMENTS node to be spliced into the parent, or {@link Node#NONE}
+   */
+  private int statement(int node) {
+    final int first = src.getFirstChild(node);
+    switch (src.getType(node)) {
+      case RAW:
+        return ((String) src.getValue(node)).isEmpty() ? Node.NONE
+            : dst.add(NodeType.RAW, src.getValue(node), src, node);
+      case PRINT: {
+        int expression = expression(first);
+        if (!dst.isConstant(expression)) {
+          return dst.add(NodeType.PRINT, null, src, node, expression);
+        }
+        StringBuilder text = new StringBuilder();
+        HtmlEscaper.escape(text, dst.getConstantValue(expression));
+        return text.length() == 0 ? Node.NONE : dst.add(NodeType.RAW, text.toString(), src, node);
+      }
+      case STATEMENTS:
+        return body(node);
+      case IF: {
+        int condition = expression(first);
+        int otherwise = src.getChild(node, 2);
+        if (dst.isConstant(condition)) {
+          if (Operators.isTrue(dst.getConstantValue(condition))) {
+            return body(src.getNextSibling(first));
+          }
+          return otherwise == Node.NONE ? Node.NONE : body(otherwise);
+        }
+        int then = body(src.getNextSibling(first));
+        if (otherwise == Node.NONE) {
+          return dst.add(NodeType.IF, null, src, node, condition, then);
+        }
+        return dst.add(NodeType.IF, null, src, node, condition, then, body(otherwise));
+      }
+      case WHILE: {
+        int condition = expression(first);
+        if (dst.isConstant(condition) && !Operators.isTrue(dst.getConstantValue(condition))) {
+          return Node.NONE;
+        }
+        return dst.add(NodeType.WHILE, null, src, node, condition, body(src.getNextSibling(first)));
+      }
+      case FOR: {
+        String variable = (String) src.getValue(node);
+        int iterable = expression(first);
+        boolean shadowing = !enclosingLoopVariables.add(variable);
+        int loop = dst.add(NodeType.FOR, variable, src, node, iterable, body(src.getNextSibling(first)));
+        if (!shadowing) {
+          enclosingLoopVariables.remove(variable);
+        }
+        for (int let = src.getChild(node, 2); let != Node.NONE; let = src.getNextSibling(let)) {
+          dst.appendChild(loop, statement(let));
+        }
+        hoistInvariants(loop);
+        return loop;
+      }
+      case SWITCH:
+        return switchStatement(node);
+      case LET:
+        return dst.add(NodeType.LET, src.getValue(node), src, node, expression(first));
+      case BLOCK:
+      case AROUND:
+      case BEFORE:
+      case AFTER:
+        return dst.add(src.getType(node), src.getValue(node), src, node, body(first));
+      case INCLUDE:
+      case CASCADE:
+      case SUPER:
+        return dst.add(src.getType(node), src.getValue(node), src, node);
+      case CACHE: {
+        int ttl = src.getNextSibling(first);
+        return dst.add(NodeType.CACHE, null, src, node, expression(first), expression(ttl),
+            statement(src.getNextSibling(ttl)));
+      }
+      default:
+        throw new IllegalArgumentException("Unexpected " + src.getType(node) + " at line "
+            + src.getLineNumber(node));
+    }
+  }
+
+  private int body(int node) {
+    int statements = dst.add(NodeType.STATEMENTS, null, src, node);
+    statements(node, statements);
+    return statements;
+  }
+
+  private int switchStatement(int node) {
+    int subject = expression(src.getFirstChild(node));
+    List<Integer> values = new ArrayList<>();
+    List<Integer> bodies = new ArrayList<>();
+    int defaultBody = Node.NONE;
+    boolean constant = dst.isConstant(subject);
+    for (int c = src.getNextSibling(src.getFirstChild(node)); c != Node.NONE; c = src.getNextSibling(c)) {
+      if (src.getType(c) == NodeType.DEFAULT) {
+        defaultBody = body(src.getFirstChild(c));
+      } else {
+        int value = expression(src.getFirstChild(c));
+        constant &= dst.isConstant(value);
+        values.add(value);
+        bodies.add(body(src.getNextSibling(src.getFirstChild(c))));
+      }
+    }
+
+    if (constant) {
+      Object subjectValue = dst.getConstantValue(subject);
+      for (int i = 0; i < values.size(); i++) {
+        if (Operators.equals(subjectValue, dst.getConstantValue(values.get(i)))) {
+          return bodies.get(i);
+        }
+      }
+      return defaultBody;
+    }
+
+    int result = dst.add(NodeType.SWITCH, null, src, node, subject);
+    for (int i = 0; i < values.size(); i++) {
+      dst.appendChild(result, dst.add(NodeType.CASE, null, dst, values.get(i), values.get(i),
+          bodies.get(i)));
+    }
+    if (defaultBody != Node.NONE) {
+      dst.appendChild(result, dst.add(NodeType.DEFAULT, null, dst, defaultBody, defaultBody));
+    }
+    return result;
+  }
+
+  private int expression(int node) {
+    final NodeType type = src.getType(node);
+
+    int[] operands = new int[src.getChildCount(node)];
+    int n = 0;
+    for (int child = src.getFirstChild(node); child != Node.NONE; child = src.getNextSibling(child)) {
+      operands[n++] = expression(child);
+    }
+
+    switch (type) {
+      case AND:
+      case OR:
+      case NULL_OR:
+        if (dst.isConstant(operands[0])) {
+          Object left = dst.getConstantValue(operands[0]);
+          boolean takeLeft = type == NodeType.AND ? !Operators.isTrue(left)
+              : type == NodeType.OR ? Operators.isTrue(left) : left != null;
+          return takeLeft ? operands[0] : operands[1];
+        }
+        break;
+      case CONDITIONAL:
+        if (dst.isConstant(operands[0])) {
+          return Operators.isTrue(dst.getConstantValue(operands[0])) ? operands[1] : operands[2];
+        }
+        break;
+      default:
+        if (operands.length > 0 && allConstant(operands)) {
+          Object value = fold(type, operands);
+          if (value != NOT_FOLDABLE) {
+            int folded = dst.addConstant(value, src, node);
+            if (folded != Node.NONE) {
+              return folded;
+            }
+          }
+        }
+        break;
+    }
+    return dst.add(type, src.getValue(node), src, node, operands);
+  }
+
+  private boolean allConstant(int[] nodes) {
+    for (int node : nodes) {
+      if (!dst.isConstant(node)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Object fold(NodeType type, int[] operands) {
+    Object a = dst.getConstantValue(operands[0]);
+    Object b = operands.length > 1 ? dst.getConstantValue(operands[1]) : null;
+    try {
+      switch (type) {
+        case ADD:
+          return Operators.add(a, b);
+        case SUB:
+          return Operators.sub(a, b);
+        case MUL:
+          return Operators.mul(a, b);
+        case DIV:
+          return Operators.div(a, b);
+        case MOD:
+          return Operators.mod(a, b);
+        case CONCAT:
+          return Operators.concat(a, b);
+        case BIT_AND:
+          return Operators.bitAnd(a, b);
+        case BIT_OR:
+          return Operators.bitOr(a, b);
+        case BIT_XOR:
+          return Operators.bitXor(a, b);
+        case EQ:
+          return Operators.equals(a, b);
+        case NE:
+          return !Operators.equals(a, b);
+        case LT:
+          return Operators.compare(a, b) < 0;
+        case LE:
+          return Operators.compare(a, b) <= 0;
+        case GT:
+          return Operators.compare(a, b) > 0;
+        case GE:
+          return Operators.compare(a, b) >= 0;
+        case MIN:
+          return Operators.min(a, b);
+        case MAX:
+          return Operators.max(a, b);
+        case NEG:
+          return Operators.neg(a);
+        case NOT:
+          return !Operators.isTrue(a);
+        default:
+          return NOT_FOLDABLE;
+      }
+    } catch (RenderException e) {
+      // e.g. division by zero; keep it to fail at render time
+      return NOT_FOLDABLE;
+    }
+  }
+
+  /**
+   * Moves invariant expressions of the loop body into LET children of the loop, which the code generator evaluates
+   * once before the first iteration. Only expressions that cannot fail and have no side effects are moved, since the
+   * body might not have evaluated them at all: parameter lookups and the logical operators over them. Arithmetic,
+   * concatenation and comparison convert their operands, which may call into domain objects, so they stay in place.
+   */
+  private void hoistInvariants(int loop) {
+    Set<String> bound = new HashSet<>();
+    bound.add((String) dst.getValue(loop));
+    collectBoundNames(dst.getChild(loop, 1), bound);
+    hoistIn(loop, dst.getChild(loop, 1), bound);
+  }
+
+  private void collectBoundNames(int node, Set<String> bound) {
+    NodeType type = dst.getType(node);
+    if (type == NodeType.FOR || type == NodeType.LET) {
+      bound.add((String) dst.getValue(node));
+    }
+    for (int child = dst.getFirstChild(node); child != Node.NONE; child = dst.getNextSibling(child)) {
+      collectBoundNames(child, bound);
+    }
+  }
+
+  private void hoistIn(int loop, int parent, Set<String> bound) {
+    int previous = Node.NONE;
+    int child = dst.getFirstChild(parent);
+    while (child != Node.NONE) {
+      int next = dst.getNextSibling(child);
+      if (dst.getType(parent) == NodeType.FOR && dst.getType(child) == NodeType.LET
+          && isInvariant(dst.getFirstChild(child), bound)) {
+        // hoisted from a nested loop and invariant in this one too; a LET in a body is a scoped user variable
+        dst.removeChild(parent, previous, child);
+        dst.appendChild(loop, child);
+        child = next;
+        continue;
+      }
+      if (isExpression(dst.getType(child)) && isWorthHoisting(child) && isInvariant(child, bound)) {
+        String name = "%" + temporaryCount++;
+        int variable = dst.add(NodeType.VARIABLE, name, dst, child);
+        dst.replaceChild(parent, previous, child, variable);
+        dst.appendChild(loop, dst.add(NodeType.LET, name, dst, child, child));
+        child = variable;
+      } else {
+        hoistIn(loop, child, bound);
+      }
+      previous = child;
+      child = next;
+    }
+  }
+
+  private boolean isWorthHoisting(int node) {
+    if (dst.isConstant(node)) {
+      return false;
+    }
+    if (dst.getType(node) == NodeType.VARIABLE) {
+      // only template parameters need a lookup; locals are already as cheap as it gets
+      String name = (String) dst.getValue(node);
+      return !name.startsWith("%") && !enclosingLoopVariables.contains(name);
+    }
+    return true;
+  }
+
+  private static boolean isExpression(NodeType type) {
+    return type.compareTo(NodeType.INTEGER) >= 0;
+  }
+
+  private boolean isInvariant(int node, Set<String> bound) {
+    switch (dst.getType(node)) {
+      case INTEGER:
+      case DOUBLE:
+      case STRING:
+      case NIL:
+      case TRUE:
+      case FALSE:
+        return true;
+      case VARIABLE:
+        return !bound.contains(dst.getValue(node));
+      case AND:
+      case OR:
+      case NULL_OR:
+      case NEG:
+      case NOT:
+      case CONDITIONAL:
+        for (int child = dst.getFirstChild(node); child != Node.NONE; child = dst.getNextSibling(child)) {
+          if (!isInvariant(child, bound)) {
+            return false;
+          }
+        }
+        return true;
+      default:
+        // conversions, element access and calls may run arbitrary code
+        return false;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package net.moznion.jakotem;
+
+/**
+ * Kinds of {@link Node}s. The comment of each type lists its value and children.
+ */
+public enum NodeType {
+  // statements
+  TEMPLATE, // children: statements
+  STATEMENTS, // children: statements
+  RAW, // value: text
+  PRINT, // children: expression
+  IF, // children: condition, then STATEMENTS, optional else STATEMENTS
+  FOR, // value: loop variable name; children: iterable, body STATEMENTS, LETs hoisted out of the body
+  WHILE, // children: condition, body STATEMENTS
+  SWITCH, // children: subject, CASEs, optional DEFAULT
+  CASE, // children: value, body STATEMENTS
+  DEFAULT, // children: body STATEMENTS
+  LET, // value: variable name; children: expression
+  BLOCK, // value: block name; children: body STATEMENTS
+  INCLUDE, // value: file name
+  CASCADE, // value: file name of the parent template
+  AROUND, BEFORE, AFTER, // value: name of the block to modify; children: body STATEMENTS
+  SUPER, // the content an AROUND wraps
+  CACHE, // children: key expression, TTL expression in seconds, the cached BLOCK or INCLUDE
+
+  // literals
+  INTEGER, // value: Long
+  DOUBLE, // value: Double
+  STRING, // value: String
+  NIL, TRUE, FALSE,
+
+  // expressions
+  VARIABLE, // value: name
+  VARS, // the template parameters as a map
+  ADD, SUB, MUL, DIV, MOD, CONCAT,
+  BIT_AND, BIT_OR, BIT_XOR,
+  EQ, NE, LT, LE, GT, GE, MIN, MAX,
+  AND, OR, NULL_OR,
+  NEG, NOT, // children: operand
+  CONDITIONAL, // children: condition, then, else
+  ELEMENT, // children: container, key
+  METHOD_CALL, // value: method name; children: receiver, arguments
+  FUNCTION_CALL, // value: function name; children: arguments
+  ARRAY, // children: elements
+}
@@ -1,5 +1,304 @@
 package net.moznion.jakotem;
 
+import net.moznion.jakotem.vm.ExecutionProfile;
+import net.moznion.jakotem.vm.InlineCache;
+import net.moznion.jakotem.vm.Opcode;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled template: a dense instruction stream (see {@link Opcode}) with a constant pool for literals and raw text.
+ * <p>
+ * Immutable and safe to share between threads: the code and the constant pool are copied on construction and never
+ * written afterwards, and the state of a render lives in a {@link net.moznion.jakotem.vm.RenderContext}. What is
+ * attached at run time (encoded constants, inline caches, the execution profile) is published through volatile
+ * fields or call sites.
+ */
 public class OpcodeSequence {
+  private final int[] code;
+  private final Object[] constants;
+  private final int maxStack;
+  private final int localCount;
+  // not part of the serialized form
+  private final InlineCache[] inlineCaches;
+  private final ExecutionProfile executionProfile = new ExecutionProfile();
+  private volatile EncodedConstants encodedConstants;
+
+  public OpcodeSequence() {
+    this(new int[0], new Object[0], 0, 0);
+  }
+
+  public OpcodeSequence(int[] code, Object[] constants, int maxStack, int localCount) {
+    this.code = code.clone();
+    this.constants = constants.clone();
+    this.maxStack = maxStack;
+    this.localCount = localCount;
+    this.inlineCaches = link(this.code, this.constants);
+  }
+
+  // Interns the names of template parameters, so that parameter maps keyed by literals find them by identity with
+  // a precomputed hash, and gives every property access and method call site its own inline cache.
+  private static InlineCache[] link(int[] code, Object[] constants) {
+    List<InlineCache> caches = new ArrayList<>();
+    for (int pc = 0; pc < code.length; pc += 1 + Opcode.operandCount(code[pc])) {
+      switch (code[pc]) {
+        case Opcode.LOAD_VAR:
+          constants[code[pc + 1]] = ((String) constants[code[pc + 1]]).intern();
+          break;
+        case Opcode.GET_PROPERTY:
+          setCache(caches, code[pc + 2], InlineCache.forProperty((String) constants[code[pc + 1]]));
+          break;
+        case Opcode.CALL_METHOD:
+          setCache(caches, code[pc + 3], InlineCache.forMethod((String) constants[code[pc + 1]], code[pc + 2]));
+          break;
+        default:
+          break;
+      }
+    }
+    return caches.toArray(new InlineCache[caches.size()]);
+  }
+
+  private static void setCache(List<InlineCache> caches, int index, InlineCache cache) {
+    while (caches.size() <= index) {
+      caches.add(null);
+    }
+    caches.set(index, cache);
+  }
+
+  /**
+   * Returns the instruction stream itself; callers must not modify it.
+   */
+  public int[] getCode() {
+    return code;
+  }
+
+  /**
+   * Returns the constant pool itself; callers must not modify it.
+   */
+  public Object[] getConstants() {
+    return constants;
+  }
+
+  public int getMaxStack() {
+    return maxStack;
+  }
+
+  public int getLocalCount() {
+    return localCount;
+  }
+
+  /**
+   * Returns the string constants encoded in the charset, indexed like the constant pool, so that static text can be
+   * written to byte oriented outputs without encoding it on every render. Non-string entries are null. The last
+   * requested charset is cached.
+   */
+  public byte[][] getEncodedConstants(Charset charset) {
+    EncodedConstants encoded = encodedConstants;
+    if (encoded == null || !encoded.charset.equals(charset)) {
+      encoded = new EncodedConstants(charset, constants);
+      encodedConstants = encoded;
+    }
+    return encoded.bytes;
+  }
+
+  /**
+   * Returns the inline caches indexed by the cache operand of {@link Opcode#GET_PROPERTY} and
+   * {@link Opcode#CALL_METHOD}; callers must not modify it.
+   */
+  public InlineCache[] getInlineCaches() {
+    return inlineCaches;
+  }
+
+  public ExecutionProfile getExecutionProfile() {
+    return executionProfile;
+  }
+
+  public String disassemble() {
+    StringBuilder builder = new StringBuilder();
+    for (int pc = 0; pc < code.length; pc += 1 + Opcode.operandCount(code[pc])) {
+      builder.append(pc).append(": ").append(Opcode.nameOf(code[pc]));
+      for (int i = 1; i <= Opcode.operandCount(code[pc]); i++) {
+        builder.append(' ').append(code[pc + i]);
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private static final class EncodedConstants {
+    private final Charset charset;
+    private final byte[][] bytes;
+
+    private EncodedConstants(Charset charset, Object[] constants) {
+      this.charset = charset;
+      this.bytes = new byte[constants.length][];
+      for (int i = 0; i < constants.length; i++) {
+        if (constants[i] instanceof String) {
+          bytes[i] = ((String) constants[i]).getBytes(charset);
+        }
+      }
+    }
+  }
+
+  public static final class Label {
+    private int position = -1;
+    private int depth = -1;
+    private final List<Integer> references = new ArrayList<>();
+  }
+
+  /**
+   * Assembles an {@link OpcodeSequence}: resolves labels, deduplicates constants and computes the maximum stack depth.
+   */
+  public static class Builder {
+    private int[] code = new int[64];
+    private int length;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+    private final List<Label> labels = new ArrayList<>();
+    private int depth;
+    private int maxDepth;
+    private boolean reachable = true;
+    private int localCount;
+    private int nextLocal;
+    private int inlineCacheCount;
+
+    public Builder emit(int opcode) {
+      return emit(opcode, new int[0]);
+    }
+
+    public Builder emit(int opcode, int... operands) {
+      if (operands.length != Opcode.operandCount(opcode)) {
+        throw new IllegalArgumentException(Opcode.nameOf(opcode) + " takes " + Opcode.operandCount(opcode)
+            + " operands");
+      }
+      ensureCapacity(1 + operands.length);
+      final int pc = length;
+      code[length++] = opcode;
+      for (int operand : operands) {
+        code[length++] = operand;
+      }
+      adjustDepth(Opcode.stackEffect(opcode, code, pc));
+      return this;
+    }
+
+    /**
+     * Emits JUMP and the conditional jumps.
+     */
+    public Builder jump(int opcode, Label label) {
+      int takenDepth = opcode == Opcode.JUMP_IF_FALSE ? depth - 1 : depth;
+      emit(opcode, -1);
+      reference(label, length - 1, takenDepth);
+      if (opcode == Opcode.JUMP) {
+        reachable = false;
+      }
+      return this;
+    }
+
+    public Builder getProperty(String name) {
+      return emit(Opcode.GET_PROPERTY, constant(name), inlineCacheCount++);
+    }
+
+    public Builder callMethod(String name, int argc) {
+      return emit(Opcode.CALL_METHOD, constant(name), argc, inlineCacheCount++);
+    }
+
+    public Builder iterNext(int slot, int variableSlot, Label exhausted) {
+      emit(Opcode.ITER_NEXT, slot, variableSlot, -1);
+      reference(exhausted, length - 1, depth);
+      return this;
+    }
+
+    /**
+     * Emits CACHE_BEGIN, which jumps to the label on a hit.
+     */
+    public Builder cacheBegin(Label hit) {
+      emit(Opcode.CACHE_BEGIN, -1);
+      reference(hit, length - 1, depth);
+      return this;
+    }
+
+    public Label newLabel() {
+      Label label = new Label();
+      labels.add(label);
+      return label;
+    }
+
+    public Builder place(Label label) {
+      label.position = length;
+      if (!reachable) {
+        depth = Math.max(label.depth, 0);
+      } else {
+        depth = Math.max(depth, label.depth);
+      }
+      reachable = true;
+      return this;
+    }
+
+    public int constant(Object value) {
+      Integer index = constantIndexes.get(value);
+      if (index == null || constants.get(index).getClass() != value.getClass()) {
+        index = constants.size();
+        constants.add(value);
+        constantIndexes.putIfAbsent(value, index);
+      }
+      return index;
+    }
+
+    public int newLocal() {
+      localCount = Math.max(localCount, nextLocal + 1);
+      return nextLocal++;
+    }
+
+    /**
+     * Returns a mark to pass to {@link #releaseLocals(int)} when the locals allocated after it go out of scope.
+     */
+    public int markLocals() {
+      return nextLocal;
+    }
+
+    public void releaseLocals(int mark) {
+      nextLocal = mark;
+    }
+
+    public int position() {
+      return length;
+    }
+
+    public OpcodeSequence build() {
+      for (Label label : labels) {
+        for (int reference : label.references) {
+          if (label.position < 0) {
+            throw new IllegalStateException("Label is not placed");
+          }
+          code[reference] = label.position;
+        }
+      }
+      return new OpcodeSequence(Arrays.copyOf(code, length), constants.toArray(), maxDepth, localCount);
+    }
+
+    private void reference(Label label, int operandIndex, int takenDepth) {
+      label.references.add(operandIndex);
+      label.depth = Math.max(label.depth, takenDepth);
+    }
+
+    private void adjustDepth(int delta) {
+      depth += delta;
+      maxDepth = Math.max(maxDepth, depth);
+    }
 
+    private void ensureCapacity(int extra) {
+      if (length + extra > code.length) {
+        code = Arrays.copyOf(code, Math.max(code.length * 2, length + extra));
+      }
+    }
+  }
 }
@@ -0,0 +1,207 @@
+package net.moznion.jakotem;
+
+import net.moznion.jakotem.vm.Opcode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * Binary format of {@link OpcodeSequence}. Bump {@link #FORMAT_VERSION} on every change of the layout.
+ */
+final class OpcodeSequenceSerializer {
+  static final int FORMAT_VERSION = 6;
+
+  private static final byte TAG_NULL = 0;
+  private static final byte TAG_STRING = 1;
+  private static final byte TAG_LONG = 2;
+  private static final byte TAG_DOUBLE = 3;
+  private static final byte TAG_BOOLEAN = 4;
+
+  private OpcodeSequenceSerializer() {
+  }
+
+  static byte[] serialize(OpcodeSequence opcodeSequence) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(opcodeSequence.getMaxStack());
+      out.writeInt(opcodeSequence.getLocalCount());
+
+      int[] code = opcodeSequence.getCode();
+      out.writeInt(code.length);
+      for (int word : code) {
+        out.writeInt(word);
+      }
+
+      Object[] constants = opcodeSequence.getConstants();
+      out.writeInt(constants.length);
+      for (Object constant : constants) {
+        writeConstant(out, constant);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeConstant(DataOutputStream out, Object constant) throws IOException {
+    if (constant == null) {
+      out.writeByte(TAG_NULL);
+    } else if (constant instanceof String) {
+      byte[] utf8 = ((String) constant).getBytes(StandardCharsets.UTF_8);
+      out.writeByte(TAG_STRING);
+      out.writeInt(utf8.length);
+      out.write(utf8);
+    } else if (constant instanceof Long) {
+      out.writeByte(TAG_LONG);
+      out.writeLong((Long) constant);
+    } else if (constant instanceof Double) {
+      out.writeByte(TAG_DOUBLE);
+      out.writeDouble((Double) constant);
+    } else if (constant instanceof Boolean) {
+      out.writeByte(TAG_BOOLEAN);
+      out.writeBoolean((Boolean) constant);
+    } else {
+      throw new IllegalArgumentException("Unserializable constant: " + constant.getClass().getName());
+    }
+  }
+
+  static OpcodeSequence deserialize(ByteBuffer buffer) throws IOException {
+    try {
+      int maxStack = buffer.getInt();
+      int localCount = buffer.getInt();
+
+      int[] code = new int[checkedLength(buffer.getInt(), buffer.remaining() / 4)];
+      buffer.asIntBuffer().get(code);
+      buffer.position(buffer.position() + code.length * 4);
+
+      Object[] constants = new Object[checkedLength(buffer.getInt(), buffer.remaining())];
+      for (int i = 0; i < constants.length; i++) {
+        constants[i] = readConstant(buffer);
+      }
+
+      if (buffer.hasRemaining()) {
+        throw new IOException("Unexpected " + buffer.remaining() + " trailing bytes");
+      }
+      validate(code, constants, localCount);
+      return new OpcodeSequence(code, constants, maxStack, localCount);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated opcode sequence", e);
+    }
+  }
+
+  private static Object readConstant(ByteBuffer buffer) throws IOException {
+    byte tag = buffer.get();
+    switch (tag) {
+      case TAG_NULL:
+        return null;
+      case TAG_STRING: {
+        byte[] utf8 = new byte[checkedLength(buffer.getInt(), buffer.remaining())];
+        buffer.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+      }
+      case TAG_LONG:
+        return buffer.getLong();
+      case TAG_DOUBLE:
+        return buffer.getDouble();
+      case TAG_BOOLEAN:
+        return buffer.get() != 0;
+      default:
+        throw new IOException("Unknown constant tag " + tag);
+    }
+  }
+
+  private static int checkedLength(int length, int limit) throws IOException {
+    if (length < 0 || length > limit) {
+      throw new IOException("Invalid length " + length);
+    }
+    return length;
+  }
+
+  // a corrupted sequence must not be able to make the interpreter read out of bounds
+  private static void validate(int[] code, Object[] constants, int localCount) throws IOException {
+    int inlineCacheCount = 0;
+    for (int pc = 0; pc < code.length; pc += 1 + Opcode.operandCount(code[pc])) {
+      int opcode = code[pc];
+      if (!Opcode.isValid(opcode) || pc + Opcode.operandCount(opcode) >= code.length) {
+        throw new IOException("Invalid instruction at " + pc);
+      }
+      if (opcode == Opcode.GET_PROPERTY || opcode == Opcode.CALL_METHOD) {
+        inlineCacheCount++;
+      }
+    }
+
+    BitSet inlineCaches = new BitSet(inlineCacheCount);
+    int pc = 0;
+    while (pc < code.length) {
+      int opcode = code[pc];
+      switch (opcode) {
+        case Opcode.RAW:
+        case Opcode.PUSH_CONST:
+        case Opcode.CALL_FUNCTION:
+          checkOperand(code[pc + 1], constants.length, pc);
+          break;
+        case Opcode.LOAD_VAR:
+        case Opcode.BLOCK_END:
+          checkName(code[pc + 1], constants, pc);
+          break;
+        case Opcode.GET_PROPERTY:
+          checkName(code[pc + 1], constants, pc);
+          checkInlineCache(code[pc + 2], inlineCaches, inlineCacheCount, pc);
+          break;
+        case Opcode.CALL_METHOD:
+          checkName(code[pc + 1], constants, pc);
+          checkInlineCache(code[pc + 3], inlineCaches, inlineCacheCount, pc);
+          break;
+        case Opcode.LOAD_LOCAL:
+        case Opcode.STORE_LOCAL:
+        case Opcode.ITER_INIT:
+          checkOperand(code[pc + 1], localCount, pc);
+          break;
+        case Opcode.ITER_NEXT:
+          checkOperand(code[pc + 1], localCount, pc);
+          checkOperand(code[pc + 2], localCount, pc);
+          checkOperand(code[pc + 3], code.length + 1, pc);
+          break;
+        case Opcode.JUMP:
+        case Opcode.JUMP_IF_FALSE:
+        case Opcode.JUMP_IF_FALSE_OR_POP:
+        case Opcode.JUMP_IF_TRUE_OR_POP:
+        case Opcode.JUMP_IF_NOT_NIL_OR_POP:
+        case Opcode.CACHE_BEGIN:
+          checkOperand(code[pc + 1], code.length + 1, pc);
+          break;
+        default:
+          break;
+      }
+      pc += 1 + Opcode.operandCount(opcode);
+    }
+  }
+
+  private static void checkName(int operand, Object[] constants, int pc) throws IOException {
+    checkOperand(operand, constants.length, pc);
+    if (!(constants[operand] instanceof String)) {
+      throw new IOException("Invalid name operand " + operand + " at " + pc);
+    }
+  }
+
+  // every call site needs its own cache
+  private static void checkInlineCache(int operand, BitSet used, int count, int pc) throws IOException {
+    checkOperand(operand, count, pc);
+    if (used.get(operand)) {
+      throw new IOException("Shared inline cache " + operand + " at " + pc);
+    }
+    used.set(operand);
+  }
+
+  private static void checkOperand(int operand, int limit, int pc) throws IOException {
+    if (operand < 0 || operand >= limit) {
+      throw new IOException("Invalid operand " + operand + " at " + pc);
+    }
+  }
+}
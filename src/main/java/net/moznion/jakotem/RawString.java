@@ -0,0 +1,27 @@
+package net.moznion.jakotem;
+
+/**
+ * String that is already safe to output; printed without escaping (see {@code mark_raw}).
+ */
+public final class RawString {
+  private final String value;
+
+  public RawString(String value) {
+    this.value = value;
+  }
+
+  @Override
+  public String toString() {
+    return value;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof RawString && ((RawString) o).value.equals(value);
+  }
+
+  @Override
+  public int hashCode() {
+    return value.hashCode();
+  }
+}
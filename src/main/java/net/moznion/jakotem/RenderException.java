@@ -0,0 +1,13 @@
+package net.moznion.jakotem;
+
+public class RenderException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public RenderException(String message) {
+    super(message);
+  }
+
+  public RenderException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -2,46 +2,111 @@ package net.moznion.jakotem;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
+/**
+ * Origin and text of a template. Positions are tracked as character offsets into the text, and are turned into line
+ * and column numbers on demand through an index of line start offsets, built once per text.
+ */
 public class Source {
   private final SourceType type;
   private final String source;
+  private volatile CharSequence text;
+  private volatile int[] lineStarts;
 
   enum SourceType {
     FROM_FILE, FROM_STRING
   }
 
-  private Source(SourceType type, String source) {
+  private Source(SourceType type, String source, CharSequence text) {
     this.type = type;
     this.source = source;
+    this.text = text;
   }
 
   public static Source fromString(String source) {
-    return new Source(SourceType.FROM_STRING, source);
+    return new Source(SourceType.FROM_STRING, source, source);
   }
 
+  /**
+   * The file is read only if its text is needed, e.g. for an error message, and no text was given to
+   * {@link #withText(CharSequence)}.
+   */
   public static Source fromFile(String filePath) {
-    return new Source(SourceType.FROM_FILE, filePath);
+    return new Source(SourceType.FROM_FILE, filePath, null);
+  }
+
+  public static Source fromFile(String filePath, CharSequence text) {
+    return new Source(SourceType.FROM_FILE, filePath, text);
+  }
+
+  /**
+   * Returns a source whose offsets refer to the text: this one if it has the very text or no text yet (the text is
+   * adopted then), a copy otherwise.
+   */
+  public Source withText(CharSequence text) {
+    if (this.text == text) {
+      return this;
+    }
+    if (this.text == null) {
+      synchronized (this) {
+        if (this.text == null) {
+          this.text = text;
+          return this;
+        }
+      }
+    }
+    return new Source(type, source, text);
+  }
+
+  public CharSequence getText() throws IOException {
+    CharSequence loaded = text;
+    if (loaded == null) {
+      // the file is decoded as UTF-8 like TemplateLoader does by default
+      loaded = withText(new String(Files.readAllBytes(new File(source).toPath()), StandardCharsets.UTF_8)).text;
+    }
+    return loaded;
+  }
+
+  /**
+   * @return 1-origin line number of the offset
+   */
+  public int getLineNumber(int offset) {
+    int[] starts = lineStarts();
+    int index = Arrays.binarySearch(starts, offset);
+    // an offset within a line falls between two line starts
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  /**
+   * @return 1-origin column number of the offset
+   */
+  public int getColumnNumber(int offset) {
+    return offset - lineStarts()[getLineNumber(offset) - 1] + 1;
   }
 
   public List<String> getSourceLines() throws IOException {
-    if (type == SourceType.FROM_FILE) {
-      return Files.readAllLines(new File(source).toPath());
-    } else {
-      return Arrays.asList(source.split("\r?\n"));
+    CharSequence content = getText();
+    int[] starts = lineStarts();
+    List<String> lines = new ArrayList<>(starts.length);
+    for (int line = 1; line <= starts.length; line++) {
+      lines.add(getLine(content, starts, line));
     }
+    return lines;
   }
 
   public String getTargetLines(int line) throws IOException {
+    CharSequence content = getText();
+    int[] starts = lineStarts();
     StringBuilder buf = new StringBuilder();
-    List<String> lines = getSourceLines();
-    for (int i = Math.max(0, line - 3); i < Math.min(lines.size(), line + 3); ++i) {
-      buf.append(i == line - 1 ? "* " : "  ");
-      buf.append(lines.get(i) + "\n");
+    for (int i = Math.max(1, line - 2); i <= Math.min(starts.length, line + 2); ++i) {
+      buf.append(i == line ? "* " : "  ");
+      buf.append(getLine(content, starts, i)).append('\n');
     }
     return new String(buf);
   }
@@ -53,4 +118,55 @@ public class Source {
       return Optional.empty();
     }
   }
+
+  private static String getLine(CharSequence content, int[] starts, int line) {
+    int start = starts[line - 1];
+    int end = line < starts.length ? starts[line] - 1 : content.length();
+    if (end > start && content.charAt(end - 1) == '\r') {
+      end--;
+    }
+    return content.subSequence(start, Math.max(start, end)).toString();
+  }
+
+  private int[] lineStarts() {
+    int[] starts = lineStarts;
+    if (starts == null) {
+      CharSequence content = text;
+      if (content == null) {
+        throw new IllegalStateException("No text is attached to " + source);
+      }
+      starts = indexLineStarts(content);
+      lineStarts = starts;
+    }
+    return starts;
+  }
+
+  private static int[] indexLineStarts(CharSequence content) {
+    int[] starts = new int[16];
+    int count = 1;
+    final int length = content.length();
+    if (content instanceof String) {
+      String string = (String) content;
+      for (int i = string.indexOf('\n'); i >= 0; i = string.indexOf('\n', i + 1)) {
+        if (count == starts.length) {
+          starts = Arrays.copyOf(starts, count * 2);
+        }
+        starts[count++] = i + 1;
+      }
+    } else {
+      for (int i = 0; i < length; i++) {
+        if (content.charAt(i) == '\n') {
+          if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+          }
+          starts[count++] = i + 1;
+        }
+      }
+    }
+    // a trailing newline does not start another line
+    if (count > 1 && starts[count - 1] == length) {
+      count--;
+    }
+    return Arrays.copyOf(starts, count);
+  }
 }
@@ -1,11 +1,72 @@
 package net.moznion.jakotem;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.List;
 
 public interface Syntax {
-	List<Token> tokenize(Source source, String src);
+	/**
+	 * Identifies the syntax and its settings. Compiled templates are cached per id, so two syntaxes that compile the
+	 * same file differently must have different ids.
+	 */
+	default String getId() {
+		return getClass().getName();
+	}
 
-	Node parse(Source source, List<Token> tokens) throws IllegalSyntaxException;
+	/**
+	 * Suffix of the template files written in this syntax; {@link Jakotem#warmUp()} compiles only those.
+	 */
+	default String getFileSuffix() {
+		return ".tx";
+	}
+
+	TokenCursor tokenCursor(Source source, CharSequence src);
+
+	default TokenCursor tokenCursor(Source source, Reader reader) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		char[] buf = new char[8192];
+		int read;
+		while ((read = reader.read(buf)) >= 0) {
+			builder.append(buf, 0, read);
+		}
+		return tokenCursor(source, builder);
+	}
+
+	default List<Token> tokenize(Source source, String src) {
+		List<Token> tokens = new ArrayList<>();
+		TokenCursor cursor = tokenCursor(source, src);
+		while (cursor.next()) {
+			tokens.add(cursor.getToken());
+		}
+		return tokens;
+	}
+
+	default TokenBuffer tokenizeToBuffer(Source source, CharSequence src) {
+		TokenCursor cursor = tokenCursor(source, src);
+		TokenBuffer buffer = new TokenBuffer(cursor.getSource(), src);
+		while (cursor.next()) {
+			buffer.add(cursor.getType(), cursor.getTokenString().orElse(null), cursor.getOffset());
+		}
+		return buffer;
+	}
+
+	Node parse(Source source, TokenCursor tokens) throws IllegalSyntaxException;
+
+	default Node parse(Source source, TokenBuffer tokens) throws IllegalSyntaxException {
+		return parse(source, tokens.cursor());
+	}
+
+	default Node parse(Source source, List<Token> tokens) throws IllegalSyntaxException {
+		return parse(source, new TokenListCursor(source, tokens));
+	}
+
+	/**
+	 * Rewrites the tree before {@link #compile(Source, Node)}; see {@link NodeOptimizer}.
+	 */
+	default Node optimize(Source source, Node ast) {
+		return NodeOptimizer.optimize(ast);
+	}
 
 	OpcodeSequence compile(Source source, Node ast) throws IllegalSyntaxException;
 }
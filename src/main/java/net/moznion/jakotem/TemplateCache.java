@@ -1,6 +1,36 @@
 package net.moznion.jakotem;
 
+import java.util.function.Consumer;
+
 public interface TemplateCache {
 	public OpcodeSequence get(String filePath);
 	public void set(String filePath, OpcodeSequence irep);
+
+	/**
+	 * Looks the template up for the loader's own re-checks, which should not count as a hit or a miss; caches without
+	 * statistics may leave it to {@link #get(String)}.
+	 */
+	public default OpcodeSequence peek(String filePath) {
+		return get(filePath);
+	}
+
+	/**
+	 * Called when a template file changes; caches that cannot remove entries may ignore it, but then keep serving
+	 * the old template until it is replaced.
+	 */
+	public default void remove(String filePath) {
+	}
+
+	/**
+	 * @return the number of cached templates, or -1 if unknown
+	 */
+	public default int size() {
+		return -1;
+	}
+
+	/**
+	 * Sets the callback for templates dropped by the cache on its own; caches without eviction may ignore it.
+	 */
+	public default void setEvictionListener(Consumer<String> listener) {
+	}
 }
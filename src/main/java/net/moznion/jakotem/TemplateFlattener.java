@@ -0,0 +1,264 @@
+package net.moznion.jakotem;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves template inheritance and inclusion at compile time. The result is a single tree per template, without
+ * CASCADE, INCLUDE, AROUND, BEFORE, AFTER or SUPER nodes, so that rendering never looks at other templates.
+ *
+ * <p>A template that cascades from a parent contributes only the block modifiers at its top level: {@code block}
+ * replaces the content of the block, {@code around} wraps it (the wrapped content is spliced in at each
+ * {@code super}), {@code before} and {@code after} add to it. Modifiers are applied from the root of the chain down
+ * to the template being compiled; within a template, replacements come before the others. Included templates are
+ * flattened on their own and spliced in; they see the variables of the including template.
+ */
+public final class TemplateFlattener {
+  /**
+   * Supplies the parsed, not yet flattened, tree of a template referred to by {@code cascade} or {@code include}.
+   */
+  @FunctionalInterface
+  public interface Loader {
+    Node load(String fileName) throws IllegalSyntaxException;
+  }
+
+  private final Loader loader;
+  private final Node dst = new Node();
+  // templates being flattened, to reject recursion
+  private final Set<String> loading = new HashSet<>();
+
+  private static final class Modifier {
+    private final NodeType type;
+    private final Node src;
+    private final int node;
+    private final String fileName;
+
+    private Modifier(NodeType type, Node src, int node, String fileName) {
+      this.type = type;
+      this.src = src;
+      this.node = node;
+      this.fileName = fileName;
+    }
+  }
+
+  // the cascade chain of a template: block name -> modifiers in the order of application
+  private static final class Chain {
+    private final Map<String, List<Modifier>> modifiers = new LinkedHashMap<>();
+    private final Set<String> expanded = new HashSet<>();
+    private final Set<String> expanding = new HashSet<>();
+  }
+
+  // the content SUPER stands for within an AROUND
+  private static final class Super {
+    private final Node src;
+    private final int body;
+    private final String fileName;
+    private final List<Modifier> modifiers;
+    private final int applied;
+
+    private Super(Node src, int body, String fileName, List<Modifier> modifiers, int applied) {
+      this.src = src;
+      this.body = body;
+      this.fileName = fileName;
+      this.modifiers = modifiers;
+      this.applied = applied;
+    }
+  }
+
+  private TemplateFlattener(Loader loader) {
+    this.loader = loader;
+  }
+
+  /**
+   * @return the tree itself if it neither cascades nor includes, a flattened copy otherwise
+   */
+  public static Node flatten(String fileName, Node ast, Loader loader) throws IllegalSyntaxException {
+    if (!needsFlattening(ast)) {
+      return ast;
+    }
+    TemplateFlattener flattener = new TemplateFlattener(loader);
+    int body = flattener.template(fileName, ast);
+    for (int child = flattener.dst.getFirstChild(body); child != Node.NONE;) {
+      int next = flattener.dst.getNextSibling(child);
+      flattener.dst.appendChild(Node.ROOT, child);
+      child = next;
+    }
+    return flattener.dst;
+  }
+
+  private static boolean needsFlattening(Node ast) {
+    for (int node = 0; node < ast.size(); node++) {
+      switch (ast.getType(node)) {
+        case INCLUDE:
+        case CASCADE:
+        case AROUND:
+        case BEFORE:
+        case AFTER:
+        case SUPER:
+          return true;
+        default:
+          break;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return STATEMENTS of the flattened template
+   */
+  private int template(String fileName, Node ast) throws IllegalSyntaxException {
+    if (!loading.add(fileName)) {
+      throw new IllegalSyntaxException("Recursive cascade or include of " + fileName);
+    }
+
+    // walk up to the root of the chain, collecting the modifiers of each level
+    List<String> names = new ArrayList<>();
+    List<Node> levels = new ArrayList<>();
+    names.add(fileName);
+    levels.add(ast);
+    for (String parent = cascadeOf(fileName, ast); parent != null;
+        parent = cascadeOf(parent, levels.get(levels.size() - 1))) {
+      if (!loading.add(parent)) {
+        throw new IllegalSyntaxException("Recursive cascade or include of " + parent);
+      }
+      names.add(parent);
+      levels.add(loader.load(parent));
+    }
+
+    Chain chain = new Chain();
+    for (int level = levels.size() - 2; level >= 0; level--) {
+      Node src = levels.get(level);
+      // overrides first, so that the other modifiers of the level apply to them
+      for (boolean overrides : new boolean[] {true, false}) {
+        for (int child = src.getFirstChild(Node.ROOT); child != Node.NONE; child = src.getNextSibling(child)) {
+          NodeType type = src.getType(child);
+          if (overrides && type == NodeType.CACHE) {
+            throw error("'cache' must be declared where the block is defined", src, child, names.get(level));
+          }
+          if (overrides ? type == NodeType.BLOCK
+              : type == NodeType.AROUND || type == NodeType.BEFORE || type == NodeType.AFTER) {
+            chain.modifiers.computeIfAbsent((String) src.getValue(child), name -> new ArrayList<>())
+                .add(new Modifier(type, src, child, names.get(level)));
+          }
+          // anything else in a cascading template is not rendered
+        }
+      }
+    }
+
+    String rootName = names.get(names.size() - 1);
+    int body = copyBody(levels.get(levels.size() - 1), Node.ROOT, rootName, chain, null);
+    for (Map.Entry<String, List<Modifier>> entry : chain.modifiers.entrySet()) {
+      if (!chain.expanded.contains(entry.getKey())) {
+        Modifier modifier = entry.getValue().get(0);
+        throw error("Block '" + entry.getKey() + "' is not defined in " + rootName, modifier.src, modifier.node,
+            modifier.fileName);
+      }
+    }
+
+    loading.removeAll(names);
+    return body;
+  }
+
+  private static String cascadeOf(String fileName, Node ast) throws IllegalSyntaxException {
+    String parent = null;
+    for (int child = ast.getFirstChild(Node.ROOT); child != Node.NONE; child = ast.getNextSibling(child)) {
+      if (ast.getType(child) == NodeType.CASCADE) {
+        if (parent != null) {
+          throw error("Multiple cascades", ast, child, fileName);
+        }
+        parent = (String) ast.getValue(child);
+      }
+    }
+    return parent;
+  }
+
+  private int copyBody(Node src, int parent, String fileName, Chain chain, Super sup)
+      throws IllegalSyntaxException {
+    int body = dst.add(NodeType.STATEMENTS, null, src, parent);
+    for (int child = src.getFirstChild(parent); child != Node.NONE; child = src.getNextSibling(child)) {
+      dst.appendChild(body, copy(src, child, fileName, chain, sup));
+    }
+    return body;
+  }
+
+  private int copy(Node src, int node, String fileName, Chain chain, Super sup) throws IllegalSyntaxException {
+    switch (src.getType(node)) {
+      case BLOCK: {
+        String name = (String) src.getValue(node);
+        int body = src.getFirstChild(node);
+        List<Modifier> modifiers = chain.modifiers.get(name);
+        if (modifiers == null || !chain.expanding.add(name)) {
+          // not modified, or the block occurs again within its own modification
+          return dst.add(NodeType.BLOCK, name, src, node, copyBody(src, body, fileName, chain, sup));
+        }
+        chain.expanded.add(name);
+        int content = modify(src, body, fileName, chain, modifiers, modifiers.size());
+        chain.expanding.remove(name);
+        return dst.add(NodeType.BLOCK, name, src, node, content);
+      }
+      case INCLUDE: {
+        String included = (String) src.getValue(node);
+        return template(included, loader.load(included));
+      }
+      case SUPER:
+        if (sup == null) {
+          throw error("'super' outside of 'around'", src, node, fileName);
+        }
+        return modify(sup.src, sup.body, sup.fileName, chain, sup.modifiers, sup.applied);
+      case CASCADE:
+        throw error("'cascade' must be at the top level", src, node, fileName);
+      case AROUND:
+      case BEFORE:
+      case AFTER:
+        throw error("'" + src.getType(node).name().toLowerCase() + "' must be at the top level of a cascading"
+            + " template", src, node, fileName);
+      default: {
+        int copied = dst.add(src.getType(node), src.getValue(node), src, node);
+        for (int child = src.getFirstChild(node); child != Node.NONE; child = src.getNextSibling(child)) {
+          dst.appendChild(copied, copy(src, child, fileName, chain, sup));
+        }
+        return copied;
+      }
+    }
+  }
+
+  /**
+   * @return STATEMENTS of the block content after applying the first {@code applied} modifiers to its default
+   */
+  private int modify(Node base, int baseBody, String baseFileName, Chain chain, List<Modifier> modifiers,
+      int applied) throws IllegalSyntaxException {
+    if (applied == 0) {
+      return copyBody(base, baseBody, baseFileName, chain, null);
+    }
+    Modifier modifier = modifiers.get(applied - 1);
+    int body = modifier.src.getFirstChild(modifier.node);
+    switch (modifier.type) {
+      case AROUND:
+        return copyBody(modifier.src, body, modifier.fileName, chain,
+            new Super(base, baseBody, baseFileName, modifiers, applied - 1));
+      case BEFORE: {
+        int content = copyBody(modifier.src, body, modifier.fileName, chain, null);
+        dst.appendChild(content, modify(base, baseBody, baseFileName, chain, modifiers, applied - 1));
+        return content;
+      }
+      case AFTER: {
+        int previous = modify(base, baseBody, baseFileName, chain, modifiers, applied - 1);
+        int content = dst.add(NodeType.STATEMENTS, null, dst, previous, previous);
+        dst.appendChild(content, copyBody(modifier.src, body, modifier.fileName, chain, null));
+        return content;
+      }
+      default:
+        // BLOCK replaces whatever came before
+        return copyBody(modifier.src, body, modifier.fileName, chain, null);
+    }
+  }
+
+  private static IllegalSyntaxException error(String message, Node src, int node, String fileName) {
+    int line = src.getLineNumber(node);
+    return new IllegalSyntaxException(message + " at line " + line + " in " + fileName, src.getSource(node), line);
+  }
+}
@@ -1,60 +1,665 @@
 package net.moznion.jakotem;
 
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import net.moznion.jakotem.metrics.TemplateMetricsListener;
+
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import javax.management.RuntimeErrorException;
 
-public class TemplateLoader {
+public class TemplateLoader implements Closeable {
+  private static final Duration DEFAULT_CHECK_INTERVAL = Duration.ofSeconds(1);
+  private static final Duration DEFAULT_MISSING_TEMPLATE_TTL = Duration.ofSeconds(1);
+  private static final int MAX_RESOLUTIONS_PER_SYNTAX = 65536;
+  private static final int DEFAULT_PARSED_DEPENDENCY_CACHE_SIZE = 32;
+  // below this size reading is cheaper than setting up a mapping
+  private static final int MAPPING_THRESHOLD = 64 * 1024;
+
   final List<Path> includePaths;
   final TemplateCache templateCache;
+  private final CacheMode cacheMode;
+  private final long checkIntervalNanos;
+  private final TemplateWatcher templateWatcher;
+  private final CompiledTemplateStore compiledTemplateStore;
+  private final long missingTemplateTtlNanos;
+  private final Supplier<CharsetDecoder> charsetDecoder;
+  final TemplateMetricsListener metricsListener;
+  // syntax -> logical template name -> resolved full path (or miss)
+  private final ConcurrentHashMap<Syntax, ConcurrentHashMap<String, ResolvedTemplate>> resolutions =
+      new ConcurrentHashMap<>();
+  // by cache key
+  private final ConcurrentHashMap<String, FutureTask<OpcodeSequence>> compilingTasks = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, FileStamp> fileStamps = new ConcurrentHashMap<>();
+  // dependency graph through cascade and include: cache key -> full paths, and full path -> full paths
+  private final ConcurrentHashMap<String, Set<String>> dependencies = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<String>> dependents = new ConcurrentHashMap<>();
+  // unflattened trees of the templates others depend on, by cache key, shared by all their dependents
+  private final Map<String, Node> parsedDependencies;
+
+  private static final class FileStamp {
+    private final long lastModified;
+    private final long size;
+    private volatile long checkedAt;
+
+    private FileStamp(long lastModified, long size, long checkedAt) {
+      this.lastModified = lastModified;
+      this.size = size;
+      this.checkedAt = checkedAt;
+    }
+  }
+
+  @Setter
+  @Accessors(fluent = true)
+  public static class Builder {
+    private List<Path> includePaths;
+    private TemplateCache templateCache;
+    private CacheMode cacheMode = CacheMode.NEVER_CHECK;
+    /**
+     * Minimum interval between two modification checks of a template; used by {@link CacheMode#CHECK_MODIFIED}.
+     */
+    private Duration checkInterval = DEFAULT_CHECK_INTERVAL;
+    /**
+     * Second-level cache behind {@link TemplateCache}; optional.
+     */
+    private CompiledTemplateStore compiledTemplateStore;
+    /**
+     * How long a template that was not found in any include path is remembered as missing.
+     */
+    private Duration missingTemplateTtl = DEFAULT_MISSING_TEMPLATE_TTL;
+    /**
+     * Creates the decoder of template files. Called for every compile, as decoders are not thread safe; defaults to
+     * UTF-8 that rejects malformed input.
+     */
+    private Supplier<CharsetDecoder> charsetDecoder = StandardCharsets.UTF_8::newDecoder;
+    /**
+     * Receives cache, compile and render events, see {@link net.moznion.jakotem.metrics.TemplateMetrics}; nothing
+     * is measured if null.
+     */
+    private TemplateMetricsListener metricsListener;
+    /**
+     * Number of parsed layouts and included templates kept for the next template that depends on them; 0 keeps
+     * none, so that no syntax tree outlives the compile it was parsed for.
+     */
+    private int parsedDependencyCacheSize = DEFAULT_PARSED_DEPENDENCY_CACHE_SIZE;
+
+    public TemplateLoader build() {
+      return new TemplateLoader(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private static final class ResolvedTemplate {
+    // null when no include path has the template
+    private final String fullpath;
+    // key in the template cache, computed once so that a cache hit does no string work
+    private final String cacheKey;
+    private final long expiresAt;
+
+    private ResolvedTemplate(String fullpath, String cacheKey, long expiresAt) {
+      this.fullpath = fullpath;
+      this.cacheKey = cacheKey;
+      this.expiresAt = expiresAt;
+    }
+
+    private boolean isUsable() {
+      return fullpath != null || System.nanoTime() - expiresAt < 0;
+    }
+  }
 
   public TemplateLoader(List<Path> includePaths, TemplateCache templateCache) {
-    this.includePaths = includePaths;
-    this.templateCache = templateCache;
+    this(includePaths, templateCache, CacheMode.NEVER_CHECK);
+  }
+
+  public TemplateLoader(List<Path> includePaths, TemplateCache templateCache, CacheMode cacheMode) {
+    this(includePaths, templateCache, cacheMode, DEFAULT_CHECK_INTERVAL);
+  }
+
+  public TemplateLoader(List<Path> includePaths, TemplateCache templateCache, CacheMode cacheMode,
+      Duration checkInterval) {
+    this(builder()
+        .includePaths(includePaths)
+        .templateCache(templateCache)
+        .cacheMode(cacheMode)
+        .checkInterval(checkInterval));
+  }
+
+  private TemplateLoader(Builder b) {
+    this.includePaths = b.includePaths;
+    this.templateCache = b.templateCache;
+    this.cacheMode = b.cacheMode;
+    this.checkIntervalNanos = b.checkInterval.toNanos();
+    this.compiledTemplateStore = b.compiledTemplateStore;
+    this.missingTemplateTtlNanos = b.missingTemplateTtl.toNanos();
+    this.charsetDecoder = b.charsetDecoder;
+    this.metricsListener = b.metricsListener;
+    int parsedDependencyCacheSize = b.parsedDependencyCacheSize;
+    this.parsedDependencies = Collections.synchronizedMap(new LinkedHashMap<String, Node>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
+        return size() > parsedDependencyCacheSize;
+      }
+    });
+    if (metricsListener != null) {
+      templateCache.setEvictionListener(key -> metricsListener.onCacheEviction(fullpathOf(key)));
+      metricsListener.cacheAttached(templateCache);
+    }
+
+    if (cacheMode == CacheMode.WATCH) {
+      try {
+        this.templateWatcher = new TemplateWatcher(includePaths, this::invalidate, this::invalidateAll);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Cannot watch include paths", e);
+      }
+    } else {
+      this.templateWatcher = null;
+    }
   }
 
   public OpcodeSequence compile(String fileName, Syntax syntax) throws IllegalSyntaxException {
+    ConcurrentHashMap<String, ResolvedTemplate> resolved = resolutionsOf(syntax);
+
+    ResolvedTemplate template = resolved.get(fileName);
+    if (template == null || !template.isUsable()) {
+      template = resolve(resolved, syntax, fileName);
+    }
+
+    if (template.fullpath != null) {
+      OpcodeSequence opcodeSequence = this.templateCache.get(template.cacheKey);
+      if (opcodeSequence != null && isFresh(template.cacheKey, template.fullpath)) {
+        if (metricsListener != null) {
+          metricsListener.onCacheHit(template.fullpath);
+        }
+        return opcodeSequence;
+      }
+
+      if (!new File(template.fullpath).exists()) {
+        // has gone since resolved; it may exist in another include path
+        resolved.remove(fileName, template);
+        template = resolve(resolved, syntax, fileName);
+      }
+    }
+
+    if (template.fullpath == null) {
+      if (metricsListener != null) {
+        metricsListener.onResolutionMiss(fileName);
+      }
+      // TODO throw more suitable exception
+      throw new RuntimeErrorException(null, "Nanka okashi yo!");
+    }
+    if (metricsListener != null) {
+      metricsListener.onCacheMiss(template.fullpath);
+    }
+    return this.compileOnce(template.fullpath, template.cacheKey, syntax);
+  }
+
+  /**
+   * Key of a template file compiled with the syntax in the {@link TemplateCache}; a file compiled with two syntaxes
+   * is cached twice.
+   */
+  public static String cacheKey(Syntax syntax, String fullpath) {
+    return fullpath + '\0' + syntax.getId();
+  }
+
+  private static String fullpathOf(String cacheKey) {
+    int end = cacheKey.indexOf('\0');
+    return end < 0 ? cacheKey : cacheKey.substring(0, end);
+  }
+
+  /**
+   * Fills the resolution index for the syntax by scanning all include paths once, so that no template lookup has to
+   * touch the filesystem to find out which include path has it.
+   *
+   * @return the names of all templates found
+   */
+  public Set<String> scanIncludePaths(Syntax syntax) throws IOException {
+    ConcurrentHashMap<String, ResolvedTemplate> resolved = resolutionsOf(syntax);
+    Set<String> fileNames = new LinkedHashSet<>();
+    for (Path path : includePaths) {
+      if (!Files.isDirectory(path)) {
+        continue;
+      }
+      try (Stream<Path> files = Files.walk(path)) {
+        files.filter(Files::isRegularFile).forEach(file -> {
+          String fileName = path.relativize(file).toString().replace(File.separatorChar, '/');
+          fileNames.add(fileName);
+          // earlier include paths win; misses are overwritten
+          String fullpath = path.toString() + "/" + fileName;
+          resolved.merge(fileName, new ResolvedTemplate(fullpath, cacheKey(syntax, fullpath), 0),
+              (current, found) -> current.fullpath == null ? found : current);
+        });
+      }
+    }
+    return fileNames;
+  }
+
+  private ConcurrentHashMap<String, ResolvedTemplate> resolutionsOf(Syntax syntax) {
+    ConcurrentHashMap<String, ResolvedTemplate> resolved = resolutions.get(syntax);
+    if (resolved == null) {
+      resolutions.putIfAbsent(syntax, new ConcurrentHashMap<>());
+      resolved = resolutions.get(syntax);
+    }
+    return resolved;
+  }
+
+  private ResolvedTemplate resolve(ConcurrentHashMap<String, ResolvedTemplate> resolved, Syntax syntax,
+      String fileName) {
+    ResolvedTemplate template = null;
     for (Path path : includePaths) {
       String fullpath = path.toString() + "/" + fileName;
+      if (new File(fullpath).exists()) {
+        template = new ResolvedTemplate(fullpath, cacheKey(syntax, fullpath), 0);
+        break;
+      }
+    }
 
-      // TODO
-      // Support cache mode
-      {
-        OpcodeSequence opcodeSequence = this.templateCache.get(fullpath.toString());
-        if (opcodeSequence != null) {
-          return opcodeSequence;
+    if (template == null) {
+      template = new ResolvedTemplate(null, null, System.nanoTime() + missingTemplateTtlNanos);
+      if (resolved.size() >= MAX_RESOLUTIONS_PER_SYNTAX) {
+        // keep the index bounded against lookups of arbitrary names
+        resolved.values().removeIf(r -> r.fullpath == null);
+      }
+    }
+
+    resolved.put(fileName, template);
+    return template;
+  }
+
+  private boolean isFresh(String key, String fullpath) {
+    if (cacheMode != CacheMode.CHECK_MODIFIED) {
+      // WATCH mode removes stale templates from the cache by itself
+      return true;
+    }
+
+    if (!isUnchanged(fullpath)) {
+      return false;
+    }
+    // a changed dependency invalidates this template too
+    Set<String> templateDependencies = dependencies.get(key);
+    if (templateDependencies != null) {
+      for (String dependency : templateDependencies) {
+        if (!isUnchanged(dependency)) {
+          return false;
         }
       }
+    }
+    return true;
+  }
+
+  private boolean isUnchanged(String fullpath) {
+    FileStamp stamp = fileStamps.get(fullpath);
+    if (stamp == null) {
+      return true;
+    }
+
+    long now = System.nanoTime();
+    if (now - stamp.checkedAt < checkIntervalNanos) {
+      return true;
+    }
+    stamp.checkedAt = now;
+
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(Paths.get(fullpath), BasicFileAttributes.class);
+      if (attributes.lastModifiedTime().toMillis() == stamp.lastModified && attributes.size() == stamp.size) {
+        return true;
+      }
+    } catch (IOException e) {
+      // deleted; fall through
+    }
 
-      File fullpathFile = new File(fullpath);
-      if (fullpathFile.exists()) {
-        OpcodeSequence opcodeSequence = this.compileFile(fullpath, syntax);
-        this.templateCache.set(fullpath.toString(), opcodeSequence);
-        return opcodeSequence;
+    invalidate(fullpath);
+    return false;
+  }
+
+  private void invalidate(Path path) {
+    String changed = path.toString();
+    invalidate(changed);
+
+    // a created file may satisfy a missing template, or shadow one in a later include path
+    for (Path includePath : includePaths) {
+      if (path.startsWith(includePath)) {
+        String fileName = includePath.relativize(path).toString().replace(File.separatorChar, '/');
+        for (ConcurrentHashMap<String, ResolvedTemplate> resolved : resolutions.values()) {
+          resolved.remove(fileName);
+        }
       }
     }
 
-    // TODO throw more suitable exception
-    throw new RuntimeErrorException(null, "Nanka okashi yo!");
+    // a deleted directory takes its templates with it
+    String prefix = changed + File.separator;
+    for (String fullpath : fileStamps.keySet()) {
+      if (fullpath.startsWith(prefix)) {
+        invalidate(fullpath);
+      }
+    }
   }
 
-  private OpcodeSequence compileFile(String fullpath, Syntax syntax) throws IllegalSyntaxException {
+  private void invalidate(String fullpath) {
+    // the stamp goes first, so that a compile that read the old file and stores its result later sees it gone
+    fileStamps.remove(fullpath);
+    for (Syntax syntax : resolutions.keySet()) {
+      String key = cacheKey(syntax, fullpath);
+      templateCache.remove(key);
+      parsedDependencies.remove(key);
+    }
+    for (ConcurrentHashMap<String, ResolvedTemplate> resolved : resolutions.values()) {
+      resolved.values().removeIf(r -> fullpath.equals(r.fullpath));
+    }
+
+    // only the templates compiled with this one; removed first, so that cycles end
+    Set<String> templateDependents = dependents.remove(fullpath);
+    if (templateDependents != null) {
+      for (String dependent : templateDependents) {
+        invalidate(dependent);
+      }
+    }
+  }
+
+  private void invalidateAll() {
+    for (String fullpath : fileStamps.keySet()) {
+      invalidate(fullpath);
+    }
+  }
+
+  /**
+   * Compiles a template and stores it into the cache. Concurrent misses on the same template wait for a single
+   * compilation instead of compiling it on their own.
+   */
+  private OpcodeSequence compileOnce(String fullpath, String key, Syntax syntax) throws IllegalSyntaxException {
+    FutureTask<OpcodeSequence> task = new FutureTask<>(() -> {
+      // the previous compile may have finished between our cache miss and this task winning the race
+      OpcodeSequence cached = this.templateCache.peek(key);
+      if (cached != null && isFresh(key, fullpath)) {
+        return cached;
+      }
+      Map<String, FileStamp> stamps = new HashMap<>();
+      OpcodeSequence opcodeSequence = this.compileFile(fullpath, syntax, stamps);
+      if (isCurrent(stamps)) {
+        this.templateCache.set(key, opcodeSequence);
+        // an invalidation between the check and the set found nothing to remove yet
+        if (!isCurrent(stamps)) {
+          this.templateCache.remove(key);
+        }
+      }
+      return opcodeSequence;
+    });
+
+    FutureTask<OpcodeSequence> compiling = compilingTasks.putIfAbsent(key, task);
+    if (compiling == null) {
+      compiling = task;
+      try {
+        task.run();
+      } finally {
+        compilingTasks.remove(key, task);
+      }
+    }
+
+    try {
+      return compiling.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      // TODO throw more suitable exception
+      throw new RuntimeException("Interrupted while waiting for compilation of " + fullpath);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IllegalSyntaxException) {
+        throw (IllegalSyntaxException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * @param stamps receives the full paths of the template and the templates it depends on, with their stamps taken
+   *     before reading them (null in {@link CacheMode#NEVER_CHECK})
+   */
+  private OpcodeSequence compileFile(String fullpath, Syntax syntax, Map<String, FileStamp> stamps)
+      throws IllegalSyntaxException {
     try {
-      byte[] bytes = Files.readAllBytes(Paths.get(fullpath));
-      String src = new String(bytes, StandardCharsets.UTF_8); // TODO
-      Source source = Source.fromFile(fullpath.toString());
-      List<Token> tokens = syntax.tokenize(source, src);
-      Node ast = syntax.parse(source, tokens);
-      return syntax.compile(source, ast);
+      stamps.put(fullpath, stamp(fullpath));
+      ByteBuffer bytes = readFile(Paths.get(fullpath));
+
+      byte[] contentHash = null;
+      if (compiledTemplateStore != null) {
+        contentHash = CompiledTemplateStore.contentHash(bytes);
+        OpcodeSequence stored = compiledTemplateStore.get(fullpath, syntax, contentHash);
+        if (stored != null) {
+          return stored;
+        }
+      }
+
+      CharBuffer src = decode(bytes);
+      Source source = Source.fromFile(fullpath.toString(), src);
+      OpcodeSequence opcodeSequence;
+      if (metricsListener != null) {
+        opcodeSequence = compileMeasured(fullpath, syntax, source, src, stamps);
+      } else {
+        Node ast = syntax.parse(source, syntax.tokenCursor(source, src));
+        ast = flatten(fullpath, ast, syntax, stamps);
+        opcodeSequence = syntax.compile(source, syntax.optimize(source, ast));
+      }
+      Set<String> templateDependencies = new LinkedHashSet<>(stamps.keySet());
+      templateDependencies.remove(fullpath);
+      recordDependencies(syntax, fullpath, templateDependencies);
+
+      // the store is keyed by the content of this file alone
+      if (compiledTemplateStore != null && templateDependencies.isEmpty()) {
+        compiledTemplateStore.put(fullpath, syntax, contentHash, opcodeSequence);
+      }
+      return opcodeSequence;
     } catch (IOException e) {
       // TODO throw more suitable exception
       throw new RuntimeException("Cannot load " + fullpath + " : " + e.getMessage());
     }
   }
+
+  // the same streaming path as without metrics; the lexer runs interleaved with the parser and is timed by the cursor
+  private OpcodeSequence compileMeasured(String fullpath, Syntax syntax, Source source, CharSequence src,
+      Map<String, FileStamp> stamps) throws IllegalSyntaxException, IOException {
+    long startedAt = System.nanoTime();
+    TimedTokenCursor tokens = new TimedTokenCursor(syntax.tokenCursor(source, src));
+    Node ast = flatten(fullpath, syntax.parse(source, tokens), syntax, stamps);
+    long parsedAt = System.nanoTime();
+    OpcodeSequence opcodeSequence = syntax.compile(source, syntax.optimize(source, ast));
+    metricsListener.onCompile(fullpath, tokens.getNanos(), parsedAt - startedAt - tokens.getNanos(),
+        System.nanoTime() - parsedAt);
+    return opcodeSequence;
+  }
+
+  /**
+   * Inlines the templates this one cascades from or includes, see {@link TemplateFlattener}.
+   *
+   * @param stamps receives the full paths of those templates with their stamps
+   */
+  private Node flatten(String fullpath, Node ast, Syntax syntax, Map<String, FileStamp> stamps)
+      throws IllegalSyntaxException, IOException {
+    try {
+      return TemplateFlattener.flatten(fullpath, ast, fileName -> {
+        try {
+          return parseDependency(fileName, syntax, stamps);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private Node parseDependency(String fileName, Syntax syntax, Map<String, FileStamp> stamps)
+      throws IllegalSyntaxException, IOException {
+    ConcurrentHashMap<String, ResolvedTemplate> resolved = resolutionsOf(syntax);
+    ResolvedTemplate template = resolved.get(fileName);
+    if (template == null || !template.isUsable()) {
+      template = resolve(resolved, syntax, fileName);
+    }
+    if (template.fullpath == null) {
+      if (metricsListener != null) {
+        metricsListener.onResolutionMiss(fileName);
+      }
+      throw new IllegalSyntaxException("Template " + fileName + " is not found in the include paths");
+    }
+
+    String fullpath = template.fullpath;
+    String key = template.cacheKey;
+    // the stamp is read before the tree, so that a tree parsed after an invalidation is never paired with the stamp
+    // from before it
+    FileStamp stamp = fileStamps.get(fullpath);
+    Node ast = parsedDependencies.get(key);
+    if (ast == null || stamp == null && cacheMode != CacheMode.NEVER_CHECK) {
+      stamp = stamp(fullpath);
+      CharBuffer src = decode(readFile(Paths.get(fullpath)));
+      Source source = Source.fromFile(fullpath, src);
+      ast = syntax.parse(source, syntax.tokenCursor(source, src));
+      parsedDependencies.put(key, ast);
+    }
+    stamps.put(fullpath, stamp);
+    return ast;
+  }
+
+  private void recordDependencies(Syntax syntax, String fullpath, Set<String> templateDependencies) {
+    String key = cacheKey(syntax, fullpath);
+    // added before the template is cached, so that an invalidation of a dependency from now on reaches it
+    for (String dependency : templateDependencies) {
+      dependents.computeIfAbsent(dependency, k -> ConcurrentHashMap.newKeySet()).add(fullpath);
+    }
+    Set<String> previous = templateDependencies.isEmpty() ? dependencies.remove(key)
+        : dependencies.put(key, templateDependencies);
+    if (previous != null) {
+      for (String dependency : previous) {
+        if (!templateDependencies.contains(dependency) && !isDependedOnByAnySyntax(fullpath, dependency)) {
+          Set<String> templateDependents = dependents.get(dependency);
+          if (templateDependents != null) {
+            templateDependents.remove(fullpath);
+          }
+        }
+      }
+    }
+  }
+
+  private boolean isDependedOnByAnySyntax(String fullpath, String dependency) {
+    for (Syntax syntax : resolutions.keySet()) {
+      Set<String> templateDependencies = dependencies.get(cacheKey(syntax, fullpath));
+      if (templateDependencies != null && templateDependencies.contains(dependency)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return null in {@link CacheMode#NEVER_CHECK}, where nothing is invalidated
+   */
+  private FileStamp stamp(String fullpath) throws IOException {
+    if (cacheMode == CacheMode.NEVER_CHECK) {
+      return null;
+    }
+    // take the stamp before reading, so that a concurrent edit is caught by the next check
+    BasicFileAttributes attributes = Files.readAttributes(Paths.get(fullpath), BasicFileAttributes.class);
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    long size = attributes.size();
+    // kept while the file is unchanged, so that compiles sharing the file do not reject each other
+    return fileStamps.compute(fullpath, (key, current) ->
+        current != null && current.lastModified == lastModified && current.size == size ? current
+            : new FileStamp(lastModified, size, System.nanoTime()));
+  }
+
+  /**
+   * An invalidation drops the stamps of the files it concerns, so a compile that read a file before it changed
+   * finds its stamp gone or replaced and is not cached.
+   */
+  private boolean isCurrent(Map<String, FileStamp> stamps) {
+    if (cacheMode == CacheMode.NEVER_CHECK) {
+      return true;
+    }
+    for (Map.Entry<String, FileStamp> stamp : stamps.entrySet()) {
+      if (fileStamps.get(stamp.getKey()) != stamp.getValue()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Maps large files instead of copying them to the heap. Nothing unmaps the buffer: the mapping lives until the
+   * buffer is garbage collected, and on Windows the file cannot be replaced or deleted until then.
+   */
+  private static ByteBuffer readFile(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Template is too large: " + size + " bytes");
+      }
+      if (size >= MAPPING_THRESHOLD) {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate((int) size);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        // read until the end
+      }
+      buffer.flip();
+      return buffer;
+    }
+  }
+
+  private CharBuffer decode(ByteBuffer bytes) throws CharacterCodingException {
+    CharsetDecoder decoder = charsetDecoder.get();
+    // sized for the worst case, so that decoding is a single pass without regrowing
+    CharBuffer chars = CharBuffer.allocate((int) Math.ceil(bytes.remaining() * (double) decoder.maxCharsPerByte()));
+    CoderResult result = decoder.decode(bytes, chars, true);
+    if (result.isUnderflow()) {
+      result = decoder.flush(chars);
+    }
+    if (result.isError()) {
+      result.throwException();
+    }
+    chars.flip();
+    return chars;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (templateWatcher != null) {
+      templateWatcher.close();
+    }
+  }
 }
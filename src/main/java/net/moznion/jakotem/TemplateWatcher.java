@@ -0,0 +1,102 @@
+package net.moznion.jakotem;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Watches include paths recursively and reports changed, created and deleted paths from a daemon thread.
+ */
+class TemplateWatcher implements Closeable {
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+  private final Consumer<Path> onChange;
+  private final Runnable onOverflow;
+  private final Thread thread;
+
+  TemplateWatcher(List<Path> roots, Consumer<Path> onChange, Runnable onOverflow) throws IOException {
+    this.watchService = FileSystems.getDefault().newWatchService();
+    this.onChange = onChange;
+    this.onOverflow = onOverflow;
+
+    for (Path root : roots) {
+      if (Files.isDirectory(root)) {
+        registerAll(root);
+      }
+    }
+
+    thread = new Thread(this::run, "jakotem-template-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void registerAll(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void run() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watchService.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+
+      Path dir = directories.get(key);
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == OVERFLOW) {
+          onOverflow.run();
+          continue;
+        }
+        if (dir == null) {
+          continue;
+        }
+
+        Path changed = dir.resolve((Path) event.context());
+        if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+          try {
+            registerAll(changed);
+          } catch (IOException e) {
+            // directory has gone already; nothing to watch
+          }
+        }
+        onChange.accept(changed);
+      }
+
+      if (!key.reset()) {
+        directories.remove(key);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+    thread.interrupt();
+  }
+}
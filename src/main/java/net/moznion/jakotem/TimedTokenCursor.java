@@ -0,0 +1,57 @@
+package net.moznion.jakotem;
+
+import java.util.Optional;
+
+/**
+ * Measures the time spent in the wrapped cursor, so that tokenizing can be told apart from parsing while both run
+ * interleaved on the streaming path.
+ */
+class TimedTokenCursor implements TokenCursor {
+  private final TokenCursor cursor;
+  private long nanos;
+
+  TimedTokenCursor(TokenCursor cursor) {
+    this.cursor = cursor;
+  }
+
+  long getNanos() {
+    return nanos;
+  }
+
+  @Override
+  public boolean next() {
+    long startedAt = System.nanoTime();
+    boolean hasNext = cursor.next();
+    nanos += System.nanoTime() - startedAt;
+    return hasNext;
+  }
+
+  @Override
+  public TokenType getType() {
+    return cursor.getType();
+  }
+
+  @Override
+  public Optional<String> getTokenString() {
+    // the text of a token is sliced out of the source on demand
+    long startedAt = System.nanoTime();
+    Optional<String> tokenString = cursor.getTokenString();
+    nanos += System.nanoTime() - startedAt;
+    return tokenString;
+  }
+
+  @Override
+  public int getOffset() {
+    return cursor.getOffset();
+  }
+
+  @Override
+  public int getLineNumber() {
+    return cursor.getLineNumber();
+  }
+
+  @Override
+  public Source getSource() {
+    return cursor.getSource();
+  }
+}
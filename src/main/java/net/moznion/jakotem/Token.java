@@ -1,17 +1,36 @@
 package net.moznion.jakotem;
 
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
 import java.util.Optional;
 
+@Getter
+@ToString(exclude = "source")
+@EqualsAndHashCode(exclude = "source")
 public class Token {
   private final TokenType type;
   private final Optional<String> tokenString;
-  private final int lineNumber;
+  private final int offset;
   private final Optional<String> fileName;
+  @Getter(AccessLevel.NONE)
+  private final Source source;
 
-  public Token(TokenType type, Optional<String> tokenString, int lineNumber, Optional<String> fileName) {
+  public Token(TokenType type, Optional<String> tokenString, int offset, Source source) {
     this.type = type;
     this.tokenString = tokenString;
-    this.lineNumber = lineNumber;
-    this.fileName = fileName;
+    this.offset = offset;
+    this.fileName = source.getFileName();
+    this.source = source;
+  }
+
+  public int getLineNumber() {
+    return source.getLineNumber(offset);
+  }
+
+  public int getColumnNumber() {
+    return source.getColumnNumber(offset);
   }
 }
@@ -0,0 +1,171 @@
+package net.moznion.jakotem;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Compact token list stored as parallel primitive arrays.
+ * <p>
+ * Token text is kept as an offset and a length into the source, and is turned into a String only on demand.
+ * Tokens whose text is not a plain slice of the source (e.g. string literals with escapes) are stored decoded.
+ * Line numbers are not stored; they are resolved from the offsets through {@link Source#getLineNumber(int)}.
+ */
+public class TokenBuffer {
+  private static final TokenType[] TOKEN_TYPES = TokenType.values();
+  private static final int DEFAULT_CAPACITY = 64;
+
+  private final Source source;
+  private final CharSequence text;
+
+  private byte[] types;
+  private int[] offsets;
+  private int[] lengths; // -1 unless the text is a slice of the source
+  private String[] decodedStrings; // allocated only when a decoded token is added
+  private int size;
+
+  public TokenBuffer(Source source, CharSequence text) {
+    this(source, text, DEFAULT_CAPACITY);
+  }
+
+  public TokenBuffer(Source source, CharSequence text, int initialCapacity) {
+    this.source = source.withText(text);
+    this.text = text;
+
+    int capacity = Math.max(initialCapacity, 1);
+    types = new byte[capacity];
+    offsets = new int[capacity];
+    lengths = new int[capacity];
+  }
+
+  /**
+   * Appends a token whose text is the slice [offset, offset + length) of the source.
+   */
+  public void add(TokenType type, int offset, int length) {
+    if (size == types.length) {
+      grow();
+    }
+    types[size] = (byte) type.ordinal();
+    offsets[size] = offset;
+    lengths[size] = length;
+    ++size;
+  }
+
+  /**
+   * Appends a token whose text is not a slice of the source, or that has no text if tokenString is null.
+   */
+  public void add(TokenType type, String tokenString, int offset) {
+    add(type, offset, -1);
+    if (tokenString != null) {
+      if (decodedStrings == null) {
+        decodedStrings = new String[types.length];
+      }
+      decodedStrings[size - 1] = tokenString;
+    }
+  }
+
+  private void grow() {
+    int capacity = types.length * 2;
+    types = Arrays.copyOf(types, capacity);
+    offsets = Arrays.copyOf(offsets, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
+    if (decodedStrings != null) {
+      decodedStrings = Arrays.copyOf(decodedStrings, capacity);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public TokenType getType(int index) {
+    return TOKEN_TYPES[types[index]];
+  }
+
+  public int getOffset(int index) {
+    return offsets[index];
+  }
+
+  public int getLineNumber(int index) {
+    return source.getLineNumber(offsets[index]);
+  }
+
+  public int getColumnNumber(int index) {
+    return source.getColumnNumber(offsets[index]);
+  }
+
+  public Source getSource() {
+    return source;
+  }
+
+  public Optional<String> getFileName() {
+    return source.getFileName();
+  }
+
+  public Optional<String> getTokenString(int index) {
+    if (lengths[index] >= 0) {
+      return Optional.of(text.subSequence(offsets[index], offsets[index] + lengths[index]).toString());
+    }
+    if (decodedStrings != null && decodedStrings[index] != null) {
+      return Optional.of(decodedStrings[index]);
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Compares the text of a token without materializing it.
+   */
+  public boolean tokenStringEquals(int index, String other) {
+    if (lengths[index] < 0) {
+      return decodedStrings != null && other.equals(decodedStrings[index]);
+    }
+    if (lengths[index] != other.length()) {
+      return false;
+    }
+    final int start = offsets[index];
+    for (int i = 0; i < other.length(); i++) {
+      if (text.charAt(start + i) != other.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public Token getToken(int index) {
+    return new Token(getType(index), getTokenString(index), offsets[index], source);
+  }
+
+  public TokenCursor cursor() {
+    return new TokenCursor() {
+      private int index = -1;
+
+      @Override
+      public boolean next() {
+        if (index + 1 < size) {
+          ++index;
+          return true;
+        }
+        return false;
+      }
+
+      @Override
+      public TokenType getType() {
+        return TokenBuffer.this.getType(index);
+      }
+
+      @Override
+      public Optional<String> getTokenString() {
+        return TokenBuffer.this.getTokenString(index);
+      }
+
+      @Override
+      public int getOffset() {
+        return offsets[index];
+      }
+
+      @Override
+      public Source getSource() {
+        return source;
+      }
+    };
+  }
+}
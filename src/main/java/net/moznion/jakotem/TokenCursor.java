@@ -0,0 +1,38 @@
+package net.moznion.jakotem;
+
+import java.util.Optional;
+
+/**
+ * Pull-based view of a token stream. Tokens are produced on demand by {@link #next()}.
+ */
+public interface TokenCursor {
+  /**
+   * Advances to the next token.
+   *
+   * @return false when no token is left
+   */
+  boolean next();
+
+  TokenType getType();
+
+  Optional<String> getTokenString();
+
+  /**
+   * @return offset of the token in the text of {@link #getSource()}
+   */
+  int getOffset();
+
+  Source getSource();
+
+  default int getLineNumber() {
+    return getSource().getLineNumber(getOffset());
+  }
+
+  default Optional<String> getFileName() {
+    return getSource().getFileName();
+  }
+
+  default Token getToken() {
+    return new Token(getType(), getTokenString(), getOffset(), getSource());
+  }
+}
@@ -0,0 +1,55 @@
+package net.moznion.jakotem;
+
+import java.util.List;
+import java.util.Optional;
+
+class TokenListCursor implements TokenCursor {
+  private final Source source;
+  private final List<Token> tokens;
+  private int index;
+
+  TokenListCursor(Source source, List<Token> tokens) {
+    this.source = source;
+    this.tokens = tokens;
+    this.index = -1;
+  }
+
+  @Override
+  public boolean next() {
+    if (index + 1 < tokens.size()) {
+      ++index;
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public TokenType getType() {
+    return tokens.get(index).getType();
+  }
+
+  @Override
+  public Optional<String> getTokenString() {
+    return tokens.get(index).getTokenString();
+  }
+
+  @Override
+  public int getOffset() {
+    return tokens.get(index).getOffset();
+  }
+
+  @Override
+  public int getLineNumber() {
+    return tokens.get(index).getLineNumber();
+  }
+
+  @Override
+  public Source getSource() {
+    return source;
+  }
+
+  @Override
+  public Token getToken() {
+    return tokens.get(index);
+  }
+}
@@ -17,4 +17,5 @@ public enum TokenType {
   NIL, TRUE, FALSE, FOR, WHILE, MIN, MAX, IF, ELSE,
   SWITCH, CASE, INCLUDE, BLOCK, CASCADE, AROUND, BEFORE,
   AFTER, SUPER,
+  VARIABLE, DOT,
 }
@@ -0,0 +1,53 @@
+package net.moznion.jakotem;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Outcome of {@link Jakotem#warmUp()}.
+ */
+@Getter
+@ToString
+public class WarmUpReport {
+  private final List<Result> results;
+  private final Duration elapsedTime;
+
+  @Getter
+  @ToString
+  public static class Result {
+    private final String fileName;
+    private final Duration compileTime;
+    /**
+     * {@link IllegalSyntaxException} or the error that prevented loading; null on success.
+     */
+    private final Exception error;
+
+    Result(String fileName, Duration compileTime, Exception error) {
+      this.fileName = fileName;
+      this.compileTime = compileTime;
+      this.error = error;
+    }
+
+    public boolean isSuccessful() {
+      return error == null;
+    }
+  }
+
+  WarmUpReport(List<Result> results, Duration elapsedTime) {
+    this.results = Collections.unmodifiableList(results);
+    this.elapsedTime = elapsedTime;
+  }
+
+  public List<Result> getFailures() {
+    return results.stream().filter(result -> !result.isSuccessful()).collect(Collectors.toList());
+  }
+
+  public boolean isSuccessful() {
+    return results.stream().allMatch(Result::isSuccessful);
+  }
+}
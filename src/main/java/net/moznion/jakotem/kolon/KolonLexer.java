@@ -6,6 +6,8 @@ import lombok.experimental.Accessors;
 import net.moznion.jakotem.LexerMode;
 import net.moznion.jakotem.Source;
 import net.moznion.jakotem.Token;
+import net.moznion.jakotem.TokenBuffer;
+import net.moznion.jakotem.TokenCursor;
 import net.moznion.jakotem.TokenType;
 
 import java.util.ArrayList;
@@ -13,29 +15,14 @@ import java.util.EnumMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-public class KolonLexer {
+public class KolonLexer implements TokenCursor {
   private final Source src;
-  private final String srcString;
+  private final CharSequence srcString;
   private final String openTag;
   private final String closeTag;
   private final String codeLineDelimiter;
 
-  private final Pattern codeLineRe;
-  private final Pattern openTagRe;
-  private final Pattern closeTagRe;
-  private final Pattern commentInTagRe;
-
-  private static final Pattern IDENT_RE = Pattern.compile("\\A(?:[a-zA-Z][_a-zA-Z0-9]*)");
-  private static final Pattern POSITION_RE = Pattern.compile("\\A__(FILE|LINE|ROOT)__");
-  private static final Pattern DOUBLE_RE = Pattern.compile("\\A(?:(?:[1-9][0-9]*|0)\\.[0-9]+)");
-  private static final Pattern INT_RE = Pattern.compile("\\A(?:[1-9][0-9]*|0)");
-  private static final Pattern HEX_RE = Pattern.compile("\\A0[xX][0-9a-fA-F]+");
-  private static final Pattern OCTAL_RE = Pattern.compile("\\A0[0-7]+");
-  private static final Pattern BINARY_RE = Pattern.compile("\\A0[bB][10]+");
-
   private static final EnumMap<TokenType, String> keywords;
   static {
     keywords = new EnumMap<>(TokenType.class);
@@ -59,16 +46,39 @@ public class KolonLexer {
     keywords.put(TokenType.SUPER, "super");
   }
 
-  private List<Token> tokens;
+  // open addressing table over the full identifier, so that `format` is no longer lexed as `for`
+  private static final int KEYWORD_TABLE_MASK = 63;
+  private static final String[] keywordTable = new String[KEYWORD_TABLE_MASK + 1];
+  private static final TokenType[] keywordTypeTable = new TokenType[KEYWORD_TABLE_MASK + 1];
+  static {
+    for (final Entry<TokenType, String> entry : keywords.entrySet()) {
+      String keyword = entry.getValue();
+      int slot = hashKeyword(keyword, 0, keyword.length()) & KEYWORD_TABLE_MASK;
+      while (keywordTable[slot] != null) {
+        slot = (slot + 1) & KEYWORD_TABLE_MASK;
+      }
+      keywordTable[slot] = keyword;
+      keywordTypeTable[slot] = entry.getKey();
+    }
+  }
+
   private LexerMode mode;
   private int pos;
-  private int lineNumber;
+  // next open tag at or after pos (the length if none); searched again only once pos has passed it
+  private int nextOpenTag = -1;
+
+  // current token; the text is kept as a [tokenStart, tokenEnd) slice of the source
+  private boolean hasToken;
+  private TokenType tokenType;
+  private int tokenStart;
+  private int tokenEnd;
+  private int tokenOffset;
 
   @Setter
   @Accessors(fluent = true)
   public static class Builder {
     private Source src;
-    private String srcString;
+    private CharSequence srcString;
     private String openTag;
     private String closeTag;
     private String codeLineDelimiter;
@@ -83,81 +93,120 @@ public class KolonLexer {
   }
 
   private KolonLexer(Builder b) {
-    src = b.src;
+    // line numbers are resolved from token offsets on demand, through the index of this text
+    src = b.src.withText(b.srcString);
     srcString = b.srcString;
     openTag = b.openTag;
     closeTag = b.closeTag;
     codeLineDelimiter = b.codeLineDelimiter;
 
-    openTagRe = Pattern.compile(new StringBuilder()
-        .append("\\A")
-        .append(openTag)
-        .toString());
-    closeTagRe = Pattern.compile(new StringBuilder()
-        .append("\\A")
-        .append(closeTag)
-        .toString());
-    codeLineRe = Pattern.compile(new StringBuilder()
-        .append("\\A[ \t]*")
-        .append(codeLineDelimiter)
-        .toString());
-    commentInTagRe = Pattern.compile(new StringBuilder()
-        .append("\\A.*?")
-        .append(closeTag)
-        .toString(), Pattern.DOTALL);
+    mode = LexerMode.IN_RAW;
+    pos = 0;
   }
 
   public List<Token> tokenize() {
-    tokens = new ArrayList<Token>();
-    mode = LexerMode.IN_RAW;
-    pos = 0;
-    lineNumber = 1;
+    List<Token> tokens = new ArrayList<Token>();
+    while (next()) {
+      tokens.add(getToken());
+    }
+    return tokens;
+  }
 
-    while (pos < srcString.length()) {
+  public TokenBuffer tokenizeToBuffer() {
+    // rough estimation; a token per 8 chars
+    TokenBuffer buffer = new TokenBuffer(src, srcString, srcString.length() / 8);
+    while (next()) {
+      if (tokenStart < 0) {
+        buffer.add(tokenType, null, tokenOffset);
+      } else if (tokenType == TokenType.STRING && hasEscapeSequence(tokenStart, tokenEnd)) {
+        buffer.add(tokenType, unescapeString(srcString, tokenStart, tokenEnd), tokenOffset);
+      } else {
+        buffer.add(tokenType, tokenStart, tokenEnd - tokenStart);
+      }
+    }
+    return buffer;
+  }
+
+  @Override
+  public boolean next() {
+    hasToken = false;
+
+    while (!hasToken && pos < srcString.length()) {
       if (mode == LexerMode.IN_RAW) {
-        this.tokenizeRaw(srcString);
+        this.tokenizeRaw();
       } else if (mode == LexerMode.IN_TAG || mode == LexerMode.IN_CODE_LINE) {
-        this.tokenizeTagBody(srcString, tokens, mode);
+        this.tokenizeTagBody(mode);
       } else {
         // TODO
         throw new RuntimeException("SHOULD NOT REACH HERE");
       }
     }
 
-    if (mode == LexerMode.IN_TAG) {
-      // TODO
-      throw new RuntimeException();
+    if (!hasToken) {
+      if (mode == LexerMode.IN_TAG) {
+        // TODO
+        throw new RuntimeException();
+      } else if (mode == LexerMode.IN_CODE_LINE) {
+        // code line at the end of source without trailing newline
+        emit(TokenType.CLOSE);
+        mode = LexerMode.IN_RAW;
+      }
     }
 
-    return tokens;
+    return hasToken;
   }
 
-  private void tokenizeTagBody(String srcString, List<Token> tokens, LexerMode modeWhenEntered) {
-    while (pos < srcString.length()) {
+  @Override
+  public TokenType getType() {
+    return tokenType;
+  }
+
+  @Override
+  public Optional<String> getTokenString() {
+    if (tokenStart < 0) {
+      return Optional.empty();
+    }
+    if (tokenType == TokenType.STRING) {
+      return Optional.of(unescapeString(srcString, tokenStart, tokenEnd));
+    }
+    return Optional.of(srcString.subSequence(tokenStart, tokenEnd).toString());
+  }
+
+  @Override
+  public int getOffset() {
+    return tokenOffset;
+  }
+
+  @Override
+  public Source getSource() {
+    return src;
+  }
+
+  private void tokenizeTagBody(LexerMode modeWhenEntered) {
+    while (!hasToken && pos < srcString.length()) {
       if (modeWhenEntered == LexerMode.IN_TAG) {
-        Matcher matcher = closeTagRe.matcher(srcString.substring(pos));
-        if (matcher.find()) {
+        if (startsWith(closeTag, pos)) {
           // hit end of tag
-          pos += matcher.group(0).length();
+          pos += closeTag.length();
           mode = LexerMode.IN_RAW;
-          tokens.add(createToken(TokenType.CLOSE));
+          emit(TokenType.CLOSE);
           return;
         }
       }
 
       switch (srcString.charAt(pos)) {
         case '\n':
-          ++lineNumber;
-          ++pos;
-
           if (modeWhenEntered == LexerMode.IN_CODE_LINE) {
+            // code line ends with its newline
+            emit(TokenType.CLOSE);
+            ++pos;
             mode = LexerMode.IN_RAW;
             return;
           }
-
-          break;
+          // fall through
         case ' ':
         case '\t':
+        case '\r':
           ++pos;
           break;
         case '0':
@@ -170,42 +219,44 @@ public class KolonLexer {
         case '7':
         case '8':
         case '9':
-          tokens.add(tokenizeNumber());
+          tokenizeNumber();
           break;
         case '"':
-          tokens.add(tokenizeString());
+          tokenizeString();
           break;
         case '?':
-          tokens.add(createToken(TokenType.CONDITIONAL));
+          emit(TokenType.CONDITIONAL);
+          ++pos;
           break;
         case ':':
-          tokens.add(createToken(TokenType.CONDITIONAL_SELECTOR));
+          emit(TokenType.CONDITIONAL_SELECTOR);
+          ++pos;
           break;
         case '<':
           if (pos + 1 < srcString.length()) {
             if (srcString.charAt(pos + 1) == '=') {
-              tokens.add(createToken(TokenType.LE));
+              emit(TokenType.LE);
               pos += 2;
             } else {
-              tokens.add(createToken(TokenType.LT));
+              emit(TokenType.LT);
               pos++;
             }
           } else {
-            tokens.add(createToken(TokenType.LT));
+            emit(TokenType.LT);
             ++pos;
           }
           break;
         case '>':
           if (pos + 1 < srcString.length()) {
             if (srcString.charAt(pos + 1) == '=') {
-              tokens.add(createToken(TokenType.GE));
+              emit(TokenType.GE);
               pos += 2;
             } else {
-              tokens.add(createToken(TokenType.GT));
+              emit(TokenType.GT);
               pos++;
             }
           } else {
-            tokens.add(createToken(TokenType.GT));
+            emit(TokenType.GT);
             ++pos;
           }
           break;
@@ -213,14 +264,14 @@ public class KolonLexer {
           if (pos + 1 < srcString.length()) {
             if (srcString.charAt(pos + 1) == '=') {
               // !=
-              tokens.add(createToken(TokenType.NE));
+              emit(TokenType.NE);
               pos += 2;
             } else {
-              tokens.add(createToken(TokenType.NOT));
+              emit(TokenType.NOT);
               ++pos;
             }
           } else {
-            tokens.add(createToken(TokenType.NOT));
+            emit(TokenType.NOT);
             ++pos;
           }
           break;
@@ -228,14 +279,14 @@ public class KolonLexer {
           if (pos + 1 < srcString.length()) {
             if (srcString.charAt(pos + 1) == '=') {
               // ==
-              tokens.add(createToken(TokenType.EQUALEQUAL));
+              emit(TokenType.EQUALEQUAL);
               pos += 2;
             } else {
-              tokens.add(createToken(TokenType.EQUAL));
+              emit(TokenType.EQUAL);
               ++pos;
             }
           } else {
-            tokens.add(createToken(TokenType.EQUAL));
+            emit(TokenType.EQUAL);
             ++pos;
           }
           break;
@@ -243,67 +294,67 @@ public class KolonLexer {
           if (pos + 1 < srcString.length()) {
             switch (srcString.charAt(pos + 1)) {
               case '&':
-                tokens.add(createToken(TokenType.BIT_AND));
+                emit(TokenType.BIT_AND);
                 pos += 2;
                 break;
               case '|':
-                tokens.add(createToken(TokenType.BIT_OR));
+                emit(TokenType.BIT_OR);
                 pos += 2;
                 break;
               case '^':
-                tokens.add(createToken(TokenType.BIT_XOR));
+                emit(TokenType.BIT_XOR);
                 pos += 2;
                 break;
               default:
-                tokens.add(createToken(TokenType.PLUS));
+                emit(TokenType.PLUS);
                 pos++;
                 break;
             }
           } else {
-            tokens.add(createToken(TokenType.PLUS));
+            emit(TokenType.PLUS);
             ++pos;
           }
           break;
         case '%':
-          tokens.add(createToken(TokenType.MODULO));
+          emit(TokenType.MODULO);
           ++pos;
           break;
         case '*':
-          tokens.add(createToken(TokenType.MUL));
+          emit(TokenType.MUL);
           ++pos;
           break;
         case '-':
           if (pos + 1 < srcString.length()) {
             if (srcString.charAt(pos + 1) == '>') {
-              tokens.add(createToken(TokenType.ARROW));
+              emit(TokenType.ARROW);
               pos += 2;
             } else {
-              tokens.add(createToken(TokenType.MINUS));
+              emit(TokenType.MINUS);
               ++pos;
             }
           } else {
-            tokens.add(createToken(TokenType.MINUS));
+            emit(TokenType.MINUS);
             ++pos;
           }
           break;
         case '/':
           if (pos + 1 < srcString.length()) {
             if (srcString.charAt(pos + 1) == '/') {
-              tokens.add(createToken(TokenType.NULL_OR));
+              emit(TokenType.NULL_OR);
               pos += 2;
             } else {
-              tokens.add(createToken(TokenType.DIVIDE));
+              emit(TokenType.DIVIDE);
               ++pos;
             }
           } else {
-            tokens.add(createToken(TokenType.DIVIDE));
+            emit(TokenType.DIVIDE);
             ++pos;
           }
           break;
         case '&':
           if (pos + 1 < srcString.length()) {
             if (srcString.charAt(pos + 1) == '&') {
-              tokens.add(createToken(TokenType.ANDAND));
+              emit(TokenType.ANDAND);
               pos += 2;
             } else {
               // TODO
@@ -317,113 +368,133 @@ public class KolonLexer {
         case '|':
           if (pos + 1 < srcString.length()) {
             if (srcString.charAt(pos + 1) == '|') {
-              tokens.add(createToken(TokenType.OROR));
+              emit(TokenType.OROR);
               pos += 2;
             } else {
-              tokens.add(createToken(TokenType.PIPE));
+              emit(TokenType.PIPE);
               pos++;
             }
           } else {
-            tokens.add(createToken(TokenType.PIPE));
+            emit(TokenType.PIPE);
             pos++;
           }
           break;
         case '~':
-          tokens.add(createToken(TokenType.CONCAT));
+          emit(TokenType.CONCAT);
+          ++pos;
           break;
         case '[':
-          tokens.add(this.createToken(TokenType.LBRACKET));
+          emit(TokenType.LBRACKET);
           ++pos;
           break;
         case ']':
-          tokens.add(this.createToken(TokenType.RBRACKET));
+          emit(TokenType.RBRACKET);
           ++pos;
           break;
         case '{':
-          tokens.add(this.createToken(TokenType.LBRACE));
+          emit(TokenType.LBRACE);
           ++pos;
           break;
         case '}':
-          tokens.add(this.createToken(TokenType.RBRACE));
+          emit(TokenType.RBRACE);
           ++pos;
           break;
         case '(':
-          tokens.add(this.createToken(TokenType.LPAREN));
+          emit(TokenType.LPAREN);
           ++pos;
           break;
         case ')':
-          tokens.add(this.createToken(TokenType.RPAREN));
+          emit(TokenType.RPAREN);
           ++pos;
           break;
         case ',':
-          tokens.add(this.createToken(TokenType.COMMA));
+          emit(TokenType.COMMA);
+          ++pos;
+          break;
+        case '.':
+          emit(TokenType.DOT);
           ++pos;
           break;
+        case '$':
+          tokenizeVariable();
+          break;
         default:
-          tokens.add(tokenizeOthers());
+          tokenizeOthers();
           break;
       }
     }
   }
 
-  private void tokenizeRaw(String srcString) {
-    StringBuilder builder = new StringBuilder();
+  private void tokenizeRaw() {
+    final int start = pos;
+    final int length = srcString.length();
 
-    while (pos < srcString.length()) {
-      Matcher matcher = openTagRe.matcher(srcString.substring(pos));
-      if (matcher.find()) {
-        // hit open tag
+    if (startsWith(openTag, pos)) {
+      // hit open tag
+      pos += openTag.length();
+      if (pos < length && srcString.charAt(pos) == '#') {
+        // hit comments (e.g. <:# comment :>)
+        skipCommentInTag();
+      } else {
         mode = LexerMode.IN_TAG;
-        pos += matcher.group(0).length();
-
-        if (builder.length() > 0) {
-          // push raw context string
-          tokens.add(createToken(TokenType.RAW, builder.toString()));
-        }
-
-        if (pos < srcString.length() && srcString.charAt(pos) == '#') {
-          // hit comments (e.g. <:# comment :>)
-          skipCommentInTag();
-        } else {
-          tokens.add(createToken(TokenType.OPEN));
-        }
-
-        return;
+        emit(TokenType.OPEN);
       }
+      return;
+    }
 
-      // in raw context
-      char c = srcString.charAt(pos);
-      builder.append(c);
-      ++pos;
-
-      if (c == '\n') {
-        // if (mode == LexerMode.IN_CODE_LINE) {
-        // mode = LexerMode.IN_RAW;
-        // }
-
-        if (pos + 1 < srcString.length()) {
-          Matcher matcherForCodeLineDelimiter = codeLineRe.matcher(srcString.substring(pos + 1));
-          if (matcherForCodeLineDelimiter.find()) {
-            pos += matcherForCodeLineDelimiter.group(0).length();
-            mode = LexerMode.IN_CODE_LINE;
-          }
-        }
+    if ((pos == 0 || srcString.charAt(pos - 1) == '\n') && isCodeLineAt(pos)) {
+      // hit code line (e.g. `: for items -> item {`)
+      while (srcString.charAt(pos) == ' ' || srcString.charAt(pos) == '\t') {
+        ++pos;
+      }
+      pos += codeLineDelimiter.length();
+      mode = LexerMode.IN_CODE_LINE;
+      emit(TokenType.OPEN);
+      return;
+    }
 
-        ++lineNumber;
+    if (nextOpenTag < pos) {
+      nextOpenTag = indexOf(openTag, pos);
+      if (nextOpenTag < 0) {
+        nextOpenTag = length;
+      }
+    }
+    int openTagAt = nextOpenTag;
+
+    // look for a code line only at line starts that come before the next open tag
+    int end = openTagAt;
+    int lineStart = nextLineStart(pos);
+    while (lineStart >= 0 && lineStart < openTagAt) {
+      if (isCodeLineAt(lineStart)) {
+        end = lineStart;
+        break;
       }
+      lineStart = nextLineStart(lineStart);
     }
 
-    // When all of character had eaten
-    if (builder.toString().length() > 0) {
-      tokens.add(createToken(TokenType.RAW, builder.toString()));
+    // push raw context string as a single slice
+    emit(TokenType.RAW, start, end);
+    pos = end;
+  }
+
+  private int nextLineStart(int from) {
+    int newline = indexOf('\n', from);
+    return newline < 0 ? -1 : newline + 1;
+  }
+
+  private boolean isCodeLineAt(int lineStart) {
+    int i = lineStart;
+    while (i < srcString.length() && (srcString.charAt(i) == ' ' || srcString.charAt(i) == '\t')) {
+      ++i;
     }
+    return startsWith(codeLineDelimiter, i);
   }
 
   private void skipCommentInTag() {
-    Matcher commentMatcher = commentInTagRe.matcher(srcString.substring(pos));
+    int closeTagAt = indexOf(closeTag, pos);
 
-    if (commentMatcher.find()) {
-      this.pos += commentMatcher.group(0).length();
+    if (closeTagAt >= 0) {
+      this.pos = closeTagAt + closeTag.length();
       this.mode = LexerMode.IN_RAW;
     } else {
       // TODO
@@ -432,129 +503,277 @@ public class KolonLexer {
     }
   }
 
-  private Token tokenizeNumber() {
-    String target = srcString.substring(pos);
+  private void tokenizeNumber() {
+    final int start = pos;
+    final int length = srcString.length();
 
-    {
-      Matcher matcher = INT_RE.matcher(target);
-      if (matcher.find()) {
-        String s = matcher.group(0);
-        pos += s.length();
-        return this.createToken(TokenType.INTEGER, s);
+    if (srcString.charAt(pos) == '0' && pos + 1 < length) {
+      final char next = srcString.charAt(pos + 1);
+      if ((next == 'x' || next == 'X') && pos + 2 < length && isHexDigit(srcString.charAt(pos + 2))) {
+        pos += 2;
+        while (pos < length && isHexDigit(srcString.charAt(pos))) {
+          ++pos;
+        }
+        emit(TokenType.HEX, start, pos);
+        return;
       }
-    }
-
-    {
-      Matcher matcher = DOUBLE_RE.matcher(target);
-      if (matcher.find()) {
-        String s = matcher.group(0);
-        pos += s.length();
-        return createToken(TokenType.DOUBLE, s);
+      if ((next == 'b' || next == 'B') && pos + 2 < length && isBinaryDigit(srcString.charAt(pos + 2))) {
+        pos += 2;
+        while (pos < length && isBinaryDigit(srcString.charAt(pos))) {
+          ++pos;
+        }
+        emit(TokenType.BINARY, start, pos);
+        return;
       }
     }
 
-    {
-      Matcher matcher = HEX_RE.matcher(target);
-      if (matcher.find()) {
-        String s = matcher.group(0);
-        pos += s.length();
-        return createToken(TokenType.HEX, s);
+    // integer part: [1-9][0-9]*|0
+    if (srcString.charAt(pos) == '0') {
+      ++pos;
+    } else {
+      while (pos < length && isDigit(srcString.charAt(pos))) {
+        ++pos;
       }
     }
 
-    {
-      Matcher matcher = OCTAL_RE.matcher(target);
-      if (matcher.find()) {
-        String s = matcher.group(0);
-        pos += s.length();
-        return createToken(TokenType.OCTAL, s);
+    if (pos + 1 < length && srcString.charAt(pos) == '.' && isDigit(srcString.charAt(pos + 1))) {
+      pos += 2;
+      while (pos < length && isDigit(srcString.charAt(pos))) {
+        ++pos;
       }
+      emit(TokenType.DOUBLE, start, pos);
+      return;
     }
 
-    {
-      Matcher matcher = BINARY_RE.matcher(target);
-      if (matcher.find()) {
-        String s = matcher.group(0);
-        pos += s.length();
-        return createToken(TokenType.BINARY, s);
+    if (pos == start + 1 && srcString.charAt(start) == '0'
+        && pos < length && isOctalDigit(srcString.charAt(pos))) {
+      while (pos < length && isOctalDigit(srcString.charAt(pos))) {
+        ++pos;
       }
+      emit(TokenType.OCTAL, start, pos);
+      return;
     }
 
-    // TODO
-    throw new RuntimeException("Cannot tokenize number");
+    emit(TokenType.INTEGER, start, pos);
   }
 
-  private Token tokenizeString() {
+  private void tokenizeString() {
     ++pos;
 
-    StringBuilder builder = new StringBuilder();
-    boolean finished = false;
-    while (pos < srcString.length() && !finished) {
+    final int start = pos;
+    while (pos < srcString.length()) {
       switch (srcString.charAt(pos)) {
         case '\\':
           if (pos + 1 < srcString.length()) {
-            switch (srcString.charAt(pos + 1)) {
-              case 't':
-                builder.append("\t");
-                ++pos;
-                break;
-              case 'n':
-                builder.append("\n");
-                ++pos;
-                break;
-              default:
-                ++pos;
-                builder.append(srcString.charAt(pos));
-                ++pos;
-                break;
-            }
+            pos += 2;
           } else {
             // TODO
             throw new RuntimeException("Cannot token source after '\\'");
           }
           break;
         case '"':
+          emit(TokenType.STRING, start, pos);
           ++pos;
-          finished = true;
-          break;
+          return;
         default:
-          builder.append(srcString.charAt(pos));
           ++pos;
       }
     }
 
-    return this.createToken(TokenType.STRING, builder.toString());
+    emit(TokenType.STRING, start, pos);
   }
 
-  private Token tokenizeOthers() {
-    // keywords
-    for (final Entry<TokenType, String> entry : keywords.entrySet()) {
-      String keyword = entry.getValue();
-      if (srcString.substring(pos).startsWith(keyword)) { // XXX too loose!
-        pos += keyword.length();
-        return createToken(entry.getKey());
+  private boolean hasEscapeSequence(int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (srcString.charAt(i) == '\\') {
+        return true;
       }
     }
+    return false;
+  }
 
-    // ident.
-    {
-      Matcher matcher = IDENT_RE.matcher(srcString.substring(pos));
-      if (matcher.find()) {
-        String s = matcher.group(0);
-        pos += s.length();
-        return createToken(TokenType.IDENT, s);
+  private static String unescapeString(CharSequence s, int start, int end) {
+    StringBuilder builder = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < end) {
+        ++i;
+        switch (s.charAt(i)) {
+          case 't':
+            builder.append('\t');
+            break;
+          case 'n':
+            builder.append('\n');
+            break;
+          default:
+            builder.append(s.charAt(i));
+            break;
+        }
+      } else {
+        builder.append(c);
       }
     }
+    return builder.toString();
+  }
+
+  // $name; the token text is the name without the sigil
+  private void tokenizeVariable() {
+    final int start = pos + 1;
+    if (start >= srcString.length() || !isAlpha(srcString.charAt(start)) && srcString.charAt(start) != '_') {
+      // TODO
+      throw new RuntimeException("Invalid variable name after '$'");
+    }
+    pos = start + 1;
+    while (pos < srcString.length() && isIdentChar(srcString.charAt(pos))) {
+      ++pos;
+    }
+    emit(TokenType.VARIABLE, start, pos);
+  }
+
+  private void tokenizeOthers() {
+    final int start = pos;
+    final int length = srcString.length();
+
+    // __FILE__, __LINE__ and __ROOT__
+    if (startsWith("__", pos)) {
+      TokenType position = null;
+      if (startsWith("FILE__", pos + 2)) {
+        position = TokenType.FILE;
+      } else if (startsWith("LINE__", pos + 2)) {
+        position = TokenType.LINE;
+      } else if (startsWith("ROOT__", pos + 2)) {
+        position = TokenType.ROOT;
+      }
+
+      if (position != null) {
+        pos += 8;
+        emit(position);
+        return;
+      }
+    }
+
+    // ident or keyword: [a-zA-Z][_a-zA-Z0-9]*
+    if (isAlpha(srcString.charAt(pos))) {
+      ++pos;
+      while (pos < length && isIdentChar(srcString.charAt(pos))) {
+        ++pos;
+      }
+
+      TokenType keyword = lookupKeyword(srcString, start, pos);
+      if (keyword != null) {
+        emit(keyword);
+      } else {
+        emit(TokenType.IDENT, start, pos);
+      }
+      return;
+    }
 
     // TODO
     throw new RuntimeException("Cannot tokenize template.");
   }
 
-  private Token createToken(TokenType type) {
-    return createToken(type, null); // null will be Optional<String>
+  private static TokenType lookupKeyword(CharSequence s, int start, int end) {
+    int slot = hashKeyword(s, start, end) & KEYWORD_TABLE_MASK;
+    while (keywordTable[slot] != null) {
+      String keyword = keywordTable[slot];
+      if (keyword.length() == end - start && regionMatches(s, start, keyword)) {
+        return keywordTypeTable[slot];
+      }
+      slot = (slot + 1) & KEYWORD_TABLE_MASK;
+    }
+    return null;
+  }
+
+  private static int hashKeyword(CharSequence s, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + s.charAt(i);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isOctalDigit(char c) {
+    return c >= '0' && c <= '7';
+  }
+
+  private static boolean isBinaryDigit(char c) {
+    return c == '0' || c == '1';
+  }
+
+  private static boolean isHexDigit(char c) {
+    return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+
+  private static boolean isAlpha(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean isIdentChar(char c) {
+    return isAlpha(c) || isDigit(c) || c == '_';
+  }
+
+  private static boolean regionMatches(CharSequence s, int offset, String other) {
+    if (offset < 0 || offset + other.length() > s.length()) {
+      return false;
+    }
+    for (int i = 0; i < other.length(); i++) {
+      if (s.charAt(offset + i) != other.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean startsWith(String prefix, int offset) {
+    if (srcString instanceof String) {
+      return ((String) srcString).startsWith(prefix, offset);
+    }
+    return regionMatches(srcString, offset, prefix);
+  }
+
+  private int indexOf(char c, int from) {
+    if (srcString instanceof String) {
+      return ((String) srcString).indexOf(c, from);
+    }
+    for (int i = from; i < srcString.length(); i++) {
+      if (srcString.charAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int indexOf(String needle, int from) {
+    if (srcString instanceof String) {
+      return ((String) srcString).indexOf(needle, from);
+    }
+    final char first = needle.charAt(0);
+    for (int i = indexOf(first, from); i >= 0; i = indexOf(first, i + 1)) {
+      if (regionMatches(srcString, i, needle)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // tokens without text are located at the current position, which is always on the line of the token
+  private void emit(TokenType type) {
+    hasToken = true;
+    tokenType = type;
+    tokenStart = -1;
+    tokenEnd = -1;
+    tokenOffset = pos;
   }
 
-  private Token createToken(TokenType type, String tokenString) {
-    return new Token(type, Optional.ofNullable(tokenString), lineNumber, src.getFileName());
+  private void emit(TokenType type, int start, int end) {
+    hasToken = true;
+    tokenType = type;
+    tokenStart = start;
+    tokenEnd = end;
+    tokenOffset = start;
   }
 }
@@ -0,0 +1,642 @@
+package net.moznion.jakotem.kolon;
+
+import net.moznion.jakotem.IllegalSyntaxException;
+import net.moznion.jakotem.Node;
+import net.moznion.jakotem.NodeType;
+import net.moznion.jakotem.Source;
+import net.moznion.jakotem.TokenCursor;
+import net.moznion.jakotem.TokenType;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Operator precedence (Pratt) parser of Kolon. Tags and code lines are only delimiters: a block opened in one tag
+ * can be closed in another, and a bare expression is printed.
+ *
+ * <p>Statements are parsed without recursion, keeping the open blocks on an explicit stack, so that neither deeply
+ * nested blocks nor long {@code switch} statements grow the Java stack. Expressions recurse only for nesting and
+ * fail cleanly beyond {@link #MAX_EXPRESSION_DEPTH}.
+ */
+class KolonParser {
+  static final int MAX_EXPRESSION_DEPTH = 1024;
+
+  // binding powers; the higher, the tighter
+  private static final int BP_CONDITIONAL = 10;
+  private static final int BP_MIN_MAX = 20;
+  private static final int BP_OR = 30;
+  private static final int BP_AND = 40;
+  private static final int BP_FILTER = 50;
+  private static final int BP_EQUALITY = 60;
+  private static final int BP_RELATIONAL = 70;
+  private static final int BP_ADDITIVE = 80;
+  private static final int BP_MULTIPLICATIVE = 90;
+  private static final int BP_PREFIX = 100;
+  private static final int BP_POSTFIX = 110;
+
+  private static final byte BODY = 0;
+  private static final byte THEN = 1; // may be followed by `else`
+  private static final byte SWITCH = 2; // holds `case` and `default` only
+
+  private final Source source;
+  private final TokenCursor tokens;
+  private final Node ast;
+  private final Deque<Frame> frames = new ArrayDeque<>();
+  private int depth;
+  private boolean inLoopHead;
+
+  // current token
+  private TokenType type;
+  private String text;
+  private int offset;
+
+  // lookahead ring; the loop head `for a -> b {` needs three tokens
+  private static final int LOOKAHEAD = 4;
+  private final TokenType[] aheadTypes = new TokenType[LOOKAHEAD];
+  private final String[] aheadTexts = new String[LOOKAHEAD];
+  private final int[] aheadOffsets = new int[LOOKAHEAD];
+  private int aheadStart;
+  private int aheadCount;
+
+  /**
+   * @param sizeHint expected number of nodes, or 0 if unknown
+   */
+  KolonParser(Source source, TokenCursor tokens, int sizeHint) {
+    this.source = source;
+    this.tokens = tokens;
+    this.ast = sizeHint > 0 ? new Node(sizeHint) : new Node();
+    this.ast.setSource(tokens.getSource());
+  }
+
+  Node parse() throws IllegalSyntaxException {
+    Frame current = new Frame(BODY, Node.ROOT, Node.NONE, 0);
+    while (advance()) {
+      switch (type) {
+        case OPEN:
+        case CLOSE:
+          break;
+        case RAW:
+          if (current.kind != SWITCH) {
+            ast.appendChild(current.statements, ast.add(NodeType.RAW, text, offset));
+          } else if (!text.trim().isEmpty()) {
+            throw error("Unexpected text in switch");
+          }
+          break;
+        case RBRACE: {
+          if (frames.isEmpty()) {
+            throw error("Unexpected '}'");
+          }
+          Frame closed = current;
+          current = frames.pop();
+          if (closed.kind == THEN && skipDelimitersAndPeek() == TokenType.ELSE) {
+            advance();
+            current = elseBranch(current, closed.owner);
+          }
+          break;
+        }
+        default:
+          current = current.kind == SWITCH ? switchBranch(current) : statement(current);
+          break;
+      }
+    }
+    if (!frames.isEmpty()) {
+      int line = lineOf(current.offset);
+      throw new IllegalSyntaxException("Missing '}' for the block opened at line " + line + location(),
+          tokens.getSource(), line);
+    }
+    return ast;
+  }
+
+  /**
+   * Parses a statement into the current block.
+   *
+   * @return the block following statements go to
+   */
+  private Frame statement(Frame current) throws IllegalSyntaxException {
+    final int statementOffset = offset;
+    switch (type) {
+      case IF: {
+        int condition = expression(0);
+        int then = block();
+        ast.appendChild(current.statements, ast.add(NodeType.IF, null, statementOffset, condition, then));
+        return open(current, THEN, then, ast.getLastChild(current.statements));
+      }
+      case FOR: {
+        inLoopHead = true;
+        int iterable = expression(0);
+        inLoopHead = false;
+        expect(TokenType.ARROW);
+        if (!advance() || type != TokenType.VARIABLE && type != TokenType.IDENT) {
+          throw error("Expected a loop variable");
+        }
+        String variable = text;
+        int body = block();
+        ast.appendChild(current.statements, ast.add(NodeType.FOR, variable, statementOffset, iterable, body));
+        return open(current, BODY, body, Node.NONE);
+      }
+      case WHILE: {
+        int condition = expression(0);
+        int body = block();
+        ast.appendChild(current.statements, ast.add(NodeType.WHILE, null, statementOffset, condition, body));
+        return open(current, BODY, body, Node.NONE);
+      }
+      case SWITCH: {
+        int subject = expression(0);
+        expect(TokenType.LBRACE);
+        int node = ast.add(NodeType.SWITCH, null, statementOffset, subject);
+        ast.appendChild(current.statements, node);
+        return open(current, SWITCH, node, node);
+      }
+      case BLOCK:
+      case AROUND:
+      case BEFORE:
+      case AFTER: {
+        NodeType nodeType = NodeType.valueOf(type.name());
+        expect(TokenType.IDENT);
+        String name = text;
+        int cache = cacheClause();
+        if (cache != Node.NONE && nodeType != NodeType.BLOCK) {
+          throw error("'cache' is only allowed on 'block' and 'include'");
+        }
+        expect(TokenType.ARROW);
+        int body = block();
+        ast.appendChild(current.statements, cached(cache, ast.add(nodeType, name, statementOffset, body)));
+        return open(current, BODY, body, Node.NONE);
+      }
+      case INCLUDE:
+      case CASCADE: {
+        NodeType nodeType = type == TokenType.INCLUDE ? NodeType.INCLUDE : NodeType.CASCADE;
+        if (!advance() || type != TokenType.STRING && type != TokenType.IDENT) {
+          throw error("Expected a template name");
+        }
+        // `cascade base` stands for `cascade "base.tx"`
+        String fileName = type == TokenType.IDENT ? text + KolonSyntax.FILE_SUFFIX : text;
+        int cache = cacheClause();
+        if (cache != Node.NONE && nodeType != NodeType.INCLUDE) {
+          throw error("'cache' is only allowed on 'block' and 'include'");
+        }
+        ast.appendChild(current.statements, cached(cache, ast.add(nodeType, fileName, statementOffset)));
+        endOfStatement();
+        return current;
+      }
+      case SUPER:
+        ast.appendChild(current.statements, ast.add(NodeType.SUPER, null, statementOffset));
+        endOfStatement();
+        return current;
+      default: {
+        pushBack();
+        int expression = expression(0);
+        ast.appendChild(current.statements, ast.add(NodeType.PRINT, null, statementOffset, expression));
+        endOfStatement();
+        return current;
+      }
+    }
+  }
+
+  // `cache(key, ttl)` after the name of a block or an included template
+  private int cacheClause() throws IllegalSyntaxException {
+    if (peek() != TokenType.IDENT) {
+      return Node.NONE;
+    }
+    advance();
+    if (!"cache".equals(text)) {
+      throw error("Unexpected " + describe());
+    }
+    final int clauseOffset = offset;
+    expect(TokenType.LPAREN);
+    int key = expression(0);
+    expect(TokenType.COMMA);
+    int ttl = expression(0);
+    expect(TokenType.RPAREN);
+    return ast.add(NodeType.CACHE, null, clauseOffset, key, ttl);
+  }
+
+  private int cached(int cache, int statement) {
+    if (cache == Node.NONE) {
+      return statement;
+    }
+    ast.appendChild(cache, statement);
+    return cache;
+  }
+
+  private Frame switchBranch(Frame current) throws IllegalSyntaxException {
+    final int branchOffset = offset;
+    if (type == TokenType.CASE) {
+      int value = expression(0);
+      int body = block();
+      ast.appendChild(current.owner, ast.add(NodeType.CASE, null, branchOffset, value, body));
+      return open(current, BODY, body, Node.NONE);
+    }
+    if (type == TokenType.IDENT && "default".equals(text)) {
+      int body = block();
+      ast.appendChild(current.owner, ast.add(NodeType.DEFAULT, null, branchOffset, body));
+      return open(current, BODY, body, Node.NONE);
+    }
+    throw error("Expected 'case' or 'default' in switch");
+  }
+
+  // `} else {` or `} else if ... {`
+  private Frame elseBranch(Frame current, int ifNode) throws IllegalSyntaxException {
+    if (accept(TokenType.IF)) {
+      // the nested if is closed by the brace of its own block
+      final int ifOffset = offset;
+      int condition = expression(0);
+      int then = block();
+      int nested = ast.add(NodeType.IF, null, ifOffset, condition, then);
+      ast.appendChild(ifNode, ast.add(NodeType.STATEMENTS, null, ifOffset, nested));
+      return open(current, THEN, then, nested);
+    }
+    int otherwise = block();
+    ast.appendChild(ifNode, otherwise);
+    return open(current, BODY, otherwise, Node.NONE);
+  }
+
+  private int block() throws IllegalSyntaxException {
+    expect(TokenType.LBRACE);
+    return ast.add(NodeType.STATEMENTS, null, offset);
+  }
+
+  private Frame open(Frame current, byte kind, int statements, int owner) {
+    frames.push(current);
+    return new Frame(kind, statements, owner, offset);
+  }
+
+  private void endOfStatement() throws IllegalSyntaxException {
+    TokenType next = peek();
+    if (next != null && next != TokenType.CLOSE && next != TokenType.RBRACE) {
+      advance();
+      throw error("Unexpected " + describe());
+    }
+  }
+
+  private int expression(int minBindingPower) throws IllegalSyntaxException {
+    if (++depth > MAX_EXPRESSION_DEPTH) {
+      throw error("Expression is nested too deeply");
+    }
+    if (!advance()) {
+      throw new IllegalSyntaxException("Unexpected end of template" + location());
+    }
+    int left = prefix();
+    for (TokenType next = peek(); next != null; next = peek()) {
+      int bindingPower = infixBindingPower(next);
+      if (bindingPower <= minBindingPower || inLoopHead && isLoopVariableAhead()) {
+        break;
+      }
+      advance();
+      left = infix(left, bindingPower);
+    }
+    depth--;
+    return left;
+  }
+
+  private int prefix() throws IllegalSyntaxException {
+    final int tokenOffset = offset;
+    switch (type) {
+      case INTEGER:
+        return ast.add(NodeType.INTEGER, parseLong(text, 10), tokenOffset);
+      case HEX:
+        return ast.add(NodeType.INTEGER, parseLong(text.substring(2), 16), tokenOffset);
+      case OCTAL:
+        return ast.add(NodeType.INTEGER, parseLong(text.substring(1), 8), tokenOffset);
+      case BINARY:
+        return ast.add(NodeType.INTEGER, parseLong(text.substring(2), 2), tokenOffset);
+      case DOUBLE:
+        return ast.add(NodeType.DOUBLE, Double.parseDouble(text), tokenOffset);
+      case STRING:
+        return ast.add(NodeType.STRING, text, tokenOffset);
+      case NIL:
+        return ast.add(NodeType.NIL, null, tokenOffset);
+      case TRUE:
+        return ast.add(NodeType.TRUE, null, tokenOffset);
+      case FALSE:
+        return ast.add(NodeType.FALSE, null, tokenOffset);
+      case FILE:
+        return ast.add(NodeType.STRING, source.getFileName().orElse("<string>"), tokenOffset);
+      case LINE:
+        return ast.add(NodeType.INTEGER, (long) lineOf(tokenOffset), tokenOffset);
+      case ROOT:
+        return ast.add(NodeType.VARS, null, tokenOffset);
+      case VARIABLE:
+        return ast.add(NodeType.VARIABLE, text, tokenOffset);
+      case IDENT: {
+        String name = text;
+        if (peek() == TokenType.LPAREN) {
+          advance();
+          return arguments(ast.add(NodeType.FUNCTION_CALL, name, tokenOffset), TokenType.RPAREN);
+        }
+        return ast.add(NodeType.VARIABLE, name, tokenOffset);
+      }
+      case MIN:
+      case MAX: {
+        // min(a, b)
+        NodeType nodeType = type == TokenType.MIN ? NodeType.MIN : NodeType.MAX;
+        expect(TokenType.LPAREN);
+        int node = arguments(ast.add(nodeType, null, tokenOffset), TokenType.RPAREN);
+        if (ast.getChildCount(node) != 2) {
+          throw error(nodeType.name().toLowerCase() + "() takes 2 arguments");
+        }
+        return node;
+      }
+      case LPAREN: {
+        int inner = expression(0);
+        expect(TokenType.RPAREN);
+        return inner;
+      }
+      case LBRACKET:
+        return arguments(ast.add(NodeType.ARRAY, null, tokenOffset), TokenType.RBRACKET);
+      case MINUS:
+        return ast.add(NodeType.NEG, null, tokenOffset, expression(BP_PREFIX));
+      case NOT:
+        return ast.add(NodeType.NOT, null, tokenOffset, expression(BP_PREFIX));
+      default:
+        throw error("Unexpected " + describe());
+    }
+  }
+
+  // `-> item {` ends a loop head, while `-> method {` would need parentheses anyway
+  private boolean isLoopVariableAhead() {
+    TokenType name = peek(2);
+    return peek() == TokenType.ARROW && (name == TokenType.IDENT || name == TokenType.VARIABLE)
+        && peek(3) == TokenType.LBRACE;
+  }
+
+  private static int infixBindingPower(TokenType type) {
+    switch (type) {
+      case CONDITIONAL:
+        return BP_CONDITIONAL;
+      case MIN:
+      case MAX:
+        return BP_MIN_MAX;
+      case OROR:
+      case NULL_OR:
+        return BP_OR;
+      case ANDAND:
+        return BP_AND;
+      case PIPE:
+        return BP_FILTER;
+      case EQUALEQUAL:
+      case NE:
+        return BP_EQUALITY;
+      case LT:
+      case LE:
+      case GT:
+      case GE:
+        return BP_RELATIONAL;
+      case PLUS:
+      case MINUS:
+      case CONCAT:
+      case BIT_OR:
+      case BIT_XOR:
+        return BP_ADDITIVE;
+      case MUL:
+      case DIVIDE:
+      case MODULO:
+      case BIT_AND:
+        return BP_MULTIPLICATIVE;
+      case DOT:
+      case LBRACKET:
+      case ARROW:
+        return BP_POSTFIX;
+      default:
+        return 0;
+    }
+  }
+
+  private int infix(int left, int bindingPower) throws IllegalSyntaxException {
+    final int tokenOffset = offset;
+    switch (type) {
+      case CONDITIONAL: {
+        int then = expression(0);
+        expect(TokenType.CONDITIONAL_SELECTOR);
+        // right associative
+        int otherwise = expression(bindingPower - 1);
+        return ast.add(NodeType.CONDITIONAL, null, tokenOffset, left, then, otherwise);
+      }
+      case PIPE: {
+        // `a | f` and `a | f(b)` are `f(a)` and `f(a, b)`
+        expect(TokenType.IDENT);
+        int call = ast.add(NodeType.FUNCTION_CALL, text, tokenOffset, left);
+        if (peek() == TokenType.LPAREN) {
+          advance();
+          arguments(call, TokenType.RPAREN);
+        }
+        return call;
+      }
+      case DOT: {
+        expect(TokenType.IDENT);
+        return ast.add(NodeType.ELEMENT, null, tokenOffset, left, ast.add(NodeType.STRING, text, tokenOffset));
+      }
+      case LBRACKET: {
+        int key = expression(0);
+        expect(TokenType.RBRACKET);
+        return ast.add(NodeType.ELEMENT, null, tokenOffset, left, key);
+      }
+      case ARROW: {
+        expect(TokenType.IDENT);
+        int call = ast.add(NodeType.METHOD_CALL, text, tokenOffset, left);
+        if (peek() == TokenType.LPAREN) {
+          advance();
+          arguments(call, TokenType.RPAREN);
+        }
+        return call;
+      }
+      default:
+        // left associative binary operators
+        return ast.add(binaryNodeType(type), null, tokenOffset, left, expression(bindingPower));
+    }
+  }
+
+  private static NodeType binaryNodeType(TokenType type) {
+    switch (type) {
+      case MIN:
+        return NodeType.MIN;
+      case MAX:
+        return NodeType.MAX;
+      case OROR:
+        return NodeType.OR;
+      case NULL_OR:
+        return NodeType.NULL_OR;
+      case ANDAND:
+        return NodeType.AND;
+      case EQUALEQUAL:
+        return NodeType.EQ;
+      case NE:
+        return NodeType.NE;
+      case LT:
+        return NodeType.LT;
+      case LE:
+        return NodeType.LE;
+      case GT:
+        return NodeType.GT;
+      case GE:
+        return NodeType.GE;
+      case PLUS:
+        return NodeType.ADD;
+      case MINUS:
+        return NodeType.SUB;
+      case CONCAT:
+        return NodeType.CONCAT;
+      case BIT_OR:
+        return NodeType.BIT_OR;
+      case BIT_XOR:
+        return NodeType.BIT_XOR;
+      case MUL:
+        return NodeType.MUL;
+      case DIVIDE:
+        return NodeType.DIV;
+      case MODULO:
+        return NodeType.MOD;
+      case BIT_AND:
+        return NodeType.BIT_AND;
+      default:
+        throw new IllegalStateException("Not a binary operator: " + type);
+    }
+  }
+
+  /**
+   * Appends comma separated expressions up to the closing token.
+   */
+  private int arguments(int node, TokenType close) throws IllegalSyntaxException {
+    if (peek() == close) {
+      advance();
+      return node;
+    }
+    do {
+      ast.appendChild(node, expression(0));
+    } while (accept(TokenType.COMMA));
+    expect(close);
+    return node;
+  }
+
+  private long parseLong(String digits, int radix) throws IllegalSyntaxException {
+    try {
+      return Long.parseLong(digits, radix);
+    } catch (NumberFormatException e) {
+      throw error("Invalid number " + text);
+    }
+  }
+
+  private TokenType skipDelimitersAndPeek() {
+    TokenType next = peek();
+    while (next == TokenType.OPEN || next == TokenType.CLOSE) {
+      advance();
+      next = peek();
+    }
+    return next;
+  }
+
+  private boolean accept(TokenType expected) {
+    if (peek() == expected) {
+      advance();
+      return true;
+    }
+    return false;
+  }
+
+  private void expect(TokenType expected) throws IllegalSyntaxException {
+    if (!advance()) {
+      throw new IllegalSyntaxException("Expected " + expected + " but reached the end of template" + location());
+    }
+    if (type != expected) {
+      throw error("Expected " + expected + " but got " + describe());
+    }
+  }
+
+  private boolean advance() {
+    if (aheadCount == 0 && !fill()) {
+      return false;
+    }
+    type = aheadTypes[aheadStart];
+    text = aheadTexts[aheadStart];
+    offset = aheadOffsets[aheadStart];
+    aheadTexts[aheadStart] = null;
+    aheadStart = (aheadStart + 1) % LOOKAHEAD;
+    aheadCount--;
+    return true;
+  }
+
+  /**
+   * @return the type of the next token, or null at the end of the template
+   */
+  private TokenType peek() {
+    return peek(1);
+  }
+
+  private TokenType peek(int n) {
+    while (aheadCount < n) {
+      if (!fill()) {
+        return null;
+      }
+    }
+    return aheadTypes[(aheadStart + n - 1) % LOOKAHEAD];
+  }
+
+  private boolean fill() {
+    if (!tokens.next()) {
+      return false;
+    }
+    int slot = (aheadStart + aheadCount) % LOOKAHEAD;
+    aheadTypes[slot] = tokens.getType();
+    aheadTexts[slot] = hasText(aheadTypes[slot]) ? tokens.getTokenString().orElse(null) : null;
+    aheadOffsets[slot] = tokens.getOffset();
+    aheadCount++;
+    return true;
+  }
+
+  // makes the current token the next one again
+  private void pushBack() {
+    aheadStart = (aheadStart + LOOKAHEAD - 1) % LOOKAHEAD;
+    aheadTypes[aheadStart] = type;
+    aheadTexts[aheadStart] = text;
+    aheadOffsets[aheadStart] = offset;
+    aheadCount++;
+  }
+
+  private static boolean hasText(TokenType type) {
+    switch (type) {
+      case RAW:
+      case IDENT:
+      case VARIABLE:
+      case STRING:
+      case INTEGER:
+      case DOUBLE:
+      case HEX:
+      case OCTAL:
+      case BINARY:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private String describe() {
+    return text == null ? type.toString() : type + " '" + text + "'";
+  }
+
+  private IllegalSyntaxException error(String message) {
+    int line = lineOf(offset);
+    return new IllegalSyntaxException(message + " at line " + line + location(), tokens.getSource(), line);
+  }
+
+  private int lineOf(int offset) {
+    return tokens.getSource().getLineNumber(offset);
+  }
+
+  private String location() {
+    return source.getFileName().map(fileName -> " in " + fileName).orElse("");
+  }
+
+  private static final class Frame {
+    private final byte kind;
+    private final int statements;
+    private final int owner; // IF node of THEN, SWITCH node of SWITCH
+    private final int offset;
+
+    private Frame(byte kind, int statements, int owner, int offset) {
+      this.kind = kind;
+      this.statements = statements;
+      this.owner = owner;
+      this.offset = offset;
+    }
+  }
+}
@@ -2,22 +2,26 @@ package net.moznion.jakotem.kolon;
 
 import net.moznion.jakotem.IllegalSyntaxException;
 import net.moznion.jakotem.Node;
+import net.moznion.jakotem.NodeCompiler;
 import net.moznion.jakotem.OpcodeSequence;
 import net.moznion.jakotem.Source;
 import net.moznion.jakotem.Syntax;
-import net.moznion.jakotem.Token;
-
-import java.util.List;
+import net.moznion.jakotem.TokenBuffer;
+import net.moznion.jakotem.TokenCursor;
 
 public class KolonSyntax implements Syntax {
+  static final String FILE_SUFFIX = ".tx";
+
   private final String openTag;
   private final String closeTag;
   private final String codeLineDelimiter;
+  private final String id;
 
   public KolonSyntax(String openTag, String closeTag, String codeLineDelimiter) {
     this.openTag = openTag;
     this.closeTag = closeTag;
     this.codeLineDelimiter = codeLineDelimiter;
+    this.id = getClass().getName() + "[" + openTag + " " + closeTag + " " + codeLineDelimiter + "]";
   }
 
   public KolonSyntax() {
@@ -25,26 +29,51 @@ public class KolonSyntax implements Syntax {
   }
 
   @Override
-  public List<Token> tokenize(Source src, String srcString) {
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public String getFileSuffix() {
+    return FILE_SUFFIX;
+  }
+
+  @Override
+  public TokenCursor tokenCursor(Source src, CharSequence srcString) {
     return KolonLexer.builder()
         .src(src)
         .srcString(srcString)
         .openTag(openTag)
         .closeTag(closeTag)
         .codeLineDelimiter(codeLineDelimiter)
-        .build()
-        .tokenize();
+        .build();
   }
   
   @Override
-  public Node parse(Source source, List<Token> tokens) throws IllegalSyntaxException {
-    // FIXME this is fake
-    return new Node();
+  public TokenBuffer tokenizeToBuffer(Source src, CharSequence srcString) {
+    return KolonLexer.builder()
+        .src(src)
+        .srcString(srcString)
+        .openTag(openTag)
+        .closeTag(closeTag)
+        .codeLineDelimiter(codeLineDelimiter)
+        .build()
+        .tokenizeToBuffer();
+  }
+
+  @Override
+  public Node parse(Source source, TokenCursor tokens) throws IllegalSyntaxException {
+    return new KolonParser(source, tokens, 0).parse();
+  }
+
+  @Override
+  public Node parse(Source source, TokenBuffer tokens) throws IllegalSyntaxException {
+    // rough estimation; a node per token
+    return new KolonParser(source, tokens.cursor(), tokens.size()).parse();
   }
   
   @Override
   public OpcodeSequence compile(Source source, Node ast) throws IllegalSyntaxException {
-    // FIXME this is fake
-    return new OpcodeSequence();
+    return NodeCompiler.compile(ast);
   }
 }
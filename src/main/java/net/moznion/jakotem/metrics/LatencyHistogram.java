@@ -0,0 +1,64 @@
+package net.moznion.jakotem.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations, with a bucket per power of two nanoseconds. Recording touches striped counters
+ * only; percentiles are resolved to the upper bound of their bucket.
+ */
+public final class LatencyHistogram {
+  private static final int BUCKETS = 64;
+
+  private final LongAdder[] buckets = new LongAdder[BUCKETS];
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public LatencyHistogram() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+    sum.add(nanos);
+    max.accumulate(nanos);
+  }
+
+  public void reset() {
+    for (LongAdder bucket : buckets) {
+      bucket.reset();
+    }
+    sum.reset();
+    max.reset();
+  }
+
+  public LatencySnapshot snapshot() {
+    long[] counts = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets[i].sum();
+      count += counts[i];
+    }
+    long maxNanos = max.get();
+    return new LatencySnapshot(count, count == 0 ? 0 : sum.sum() / count,
+        percentile(counts, count, 0.5, maxNanos), percentile(counts, count, 0.99, maxNanos), maxNanos);
+  }
+
+  private static long percentile(long[] counts, long count, double quantile, long maxNanos) {
+    long rank = (long) Math.ceil(count * quantile);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        // bucket i holds [2^(i-1), 2^i)
+        return Math.min(i == 0 ? 0 : (1L << i) - 1, maxNanos);
+      }
+    }
+    return maxNanos;
+  }
+}
@@ -0,0 +1,28 @@
+package net.moznion.jakotem.metrics;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point-in-time view of a {@link LatencyHistogram}; the percentiles are approximated within a factor of two.
+ */
+@Getter
+@ToString
+public class LatencySnapshot {
+  private final long count;
+  private final long meanNanos;
+  private final long medianNanos;
+  private final long p99Nanos;
+  private final long maxNanos;
+
+  @ConstructorProperties({"count", "meanNanos", "medianNanos", "p99Nanos", "maxNanos"})
+  public LatencySnapshot(long count, long meanNanos, long medianNanos, long p99Nanos, long maxNanos) {
+    this.count = count;
+    this.meanNanos = meanNanos;
+    this.medianNanos = medianNanos;
+    this.p99Nanos = p99Nanos;
+    this.maxNanos = maxNanos;
+  }
+}
@@ -0,0 +1,26 @@
+package net.moznion.jakotem.metrics;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Render statistics of a template.
+ */
+@Getter
+@ToString
+public class RenderSnapshot {
+  private final LatencySnapshot latency;
+  // of the renders to streams
+  private final long totalOutputBytes;
+  // of the renders to Strings
+  private final long totalOutputChars;
+
+  @ConstructorProperties({"latency", "totalOutputBytes", "totalOutputChars"})
+  public RenderSnapshot(LatencySnapshot latency, long totalOutputBytes, long totalOutputChars) {
+    this.latency = latency;
+    this.totalOutputBytes = totalOutputBytes;
+    this.totalOutputChars = totalOutputChars;
+  }
+}
@@ -0,0 +1,202 @@
+package net.moznion.jakotem.metrics;
+
+import net.moznion.jakotem.TemplateCache;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link TemplateMetricsListener} that aggregates the events into striped counters and histograms, and publishes
+ * them as an MXBean. Recording takes no lock; only the first render of a template allocates its statistics.
+ */
+public class TemplateMetrics implements TemplateMetricsListener, TemplateMetricsMXBean {
+  private final LongAdder cacheHitCount = new LongAdder();
+  private final LongAdder cacheMissCount = new LongAdder();
+  private final LongAdder cacheEvictionCount = new LongAdder();
+  private final LongAdder resolutionMissCount = new LongAdder();
+  private final LongAdder fragmentHitCount = new LongAdder();
+  private final LongAdder fragmentMissCount = new LongAdder();
+  private final LatencyHistogram tokenizeLatency = new LatencyHistogram();
+  private final LatencyHistogram parseLatency = new LatencyHistogram();
+  private final LatencyHistogram compileLatency = new LatencyHistogram();
+  private final LatencyHistogram renderLatency = new LatencyHistogram();
+  private final ConcurrentHashMap<String, RenderStats> renders = new ConcurrentHashMap<>();
+  private volatile TemplateCache cache;
+  private ObjectName objectName;
+
+  private static final class RenderStats {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder outputBytes = new LongAdder();
+    private final LongAdder outputChars = new LongAdder();
+  }
+
+  /**
+   * Registers this to the platform MBean server.
+   */
+  public synchronized void register(ObjectName name) throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    server.registerMBean(this, name);
+    objectName = name;
+  }
+
+  public synchronized void unregister() throws JMException {
+    if (objectName != null) {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      objectName = null;
+    }
+  }
+
+  @Override
+  public void cacheAttached(TemplateCache cache) {
+    this.cache = cache;
+  }
+
+  @Override
+  public void onCacheHit(String fullpath) {
+    cacheHitCount.increment();
+  }
+
+  @Override
+  public void onCacheMiss(String fullpath) {
+    cacheMissCount.increment();
+  }
+
+  @Override
+  public void onCacheEviction(String fullpath) {
+    cacheEvictionCount.increment();
+  }
+
+  @Override
+  public void onResolutionMiss(String fileName) {
+    resolutionMissCount.increment();
+  }
+
+  @Override
+  public void onFragmentHit(String key) {
+    fragmentHitCount.increment();
+  }
+
+  @Override
+  public void onFragmentMiss(String key) {
+    fragmentMissCount.increment();
+  }
+
+  @Override
+  public void onCompile(String fullpath, long tokenizeNanos, long parseNanos, long compileNanos) {
+    tokenizeLatency.record(tokenizeNanos);
+    parseLatency.record(parseNanos);
+    compileLatency.record(compileNanos);
+  }
+
+  @Override
+  public void onRender(String fileName, long nanos, long outputBytes) {
+    recordRender(fileName, nanos).outputBytes.add(outputBytes);
+  }
+
+  @Override
+  public void onStringRender(String fileName, long nanos, long outputChars) {
+    recordRender(fileName, nanos).outputChars.add(outputChars);
+  }
+
+  private RenderStats recordRender(String fileName, long nanos) {
+    renderLatency.record(nanos);
+    RenderStats stats = renders.get(fileName);
+    if (stats == null) {
+      stats = renders.computeIfAbsent(fileName, key -> new RenderStats());
+    }
+    stats.latency.record(nanos);
+    return stats;
+  }
+
+  @Override
+  public long getCacheHitCount() {
+    return cacheHitCount.sum();
+  }
+
+  @Override
+  public long getCacheMissCount() {
+    return cacheMissCount.sum();
+  }
+
+  @Override
+  public long getCacheEvictionCount() {
+    return cacheEvictionCount.sum();
+  }
+
+  @Override
+  public int getCacheSize() {
+    TemplateCache attached = cache;
+    return attached == null ? -1 : attached.size();
+  }
+
+  @Override
+  public long getResolutionMissCount() {
+    return resolutionMissCount.sum();
+  }
+
+  @Override
+  public long getFragmentHitCount() {
+    return fragmentHitCount.sum();
+  }
+
+  @Override
+  public long getFragmentMissCount() {
+    return fragmentMissCount.sum();
+  }
+
+  @Override
+  public long getCompileCount() {
+    return compileLatency.snapshot().getCount();
+  }
+
+  @Override
+  public LatencySnapshot getTokenizeLatency() {
+    return tokenizeLatency.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getParseLatency() {
+    return parseLatency.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getCompileLatency() {
+    return compileLatency.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getRenderLatency() {
+    return renderLatency.snapshot();
+  }
+
+  @Override
+  public Map<String, RenderSnapshot> getRenders() {
+    Map<String, RenderSnapshot> snapshots = new TreeMap<>();
+    renders.forEach((fileName, stats) ->
+        snapshots.put(fileName, new RenderSnapshot(stats.latency.snapshot(), stats.outputBytes.sum(),
+            stats.outputChars.sum())));
+    return snapshots;
+  }
+
+  @Override
+  public void reset() {
+    cacheHitCount.reset();
+    cacheMissCount.reset();
+    cacheEvictionCount.reset();
+    resolutionMissCount.reset();
+    fragmentHitCount.reset();
+    fragmentMissCount.reset();
+    tokenizeLatency.reset();
+    parseLatency.reset();
+    compileLatency.reset();
+    renderLatency.reset();
+    renders.clear();
+  }
+}
@@ -0,0 +1,64 @@
+package net.moznion.jakotem.metrics;
+
+import net.moznion.jakotem.TemplateCache;
+
+/**
+ * Receives the events of {@link net.moznion.jakotem.TemplateLoader}, {@link net.moznion.jakotem.Jakotem} and
+ * {@link net.moznion.jakotem.vm.FragmentCache}. Called on the thread that does the work, so implementations must be
+ * thread safe and cheap. Without a listener nothing is measured at all.
+ *
+ * <p>{@link TemplateMetrics} aggregates the events and publishes them over JMX.
+ */
+public interface TemplateMetricsListener {
+  /**
+   * Called once by the loader that reports to this listener.
+   */
+  default void cacheAttached(TemplateCache cache) {
+  }
+
+  default void onCacheHit(String fullpath) {
+  }
+
+  default void onCacheMiss(String fullpath) {
+  }
+
+  default void onCacheEviction(String fullpath) {
+  }
+
+  /**
+   * A template was not found in any include path.
+   */
+  default void onResolutionMiss(String fileName) {
+  }
+
+  default void onCompile(String fullpath, long tokenizeNanos, long parseNanos, long compileNanos) {
+  }
+
+  /**
+   * A fragment was written from the {@link net.moznion.jakotem.vm.FragmentCache}.
+   */
+  default void onFragmentHit(String key) {
+  }
+
+  /**
+   * A fragment was rendered because it was missing, expired or could not be waited for.
+   */
+  default void onFragmentMiss(String key) {
+  }
+
+  /**
+   * A render to a stream.
+   *
+   * @param outputBytes bytes written
+   */
+  default void onRender(String fileName, long nanos, long outputBytes) {
+  }
+
+  /**
+   * A render to a String, which is not encoded and thus has no size in bytes.
+   *
+   * @param outputChars chars written
+   */
+  default void onStringRender(String fileName, long nanos, long outputChars) {
+  }
+}
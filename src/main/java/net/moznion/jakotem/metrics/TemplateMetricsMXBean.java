@@ -0,0 +1,42 @@
+package net.moznion.jakotem.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link TemplateMetrics}.
+ */
+public interface TemplateMetricsMXBean {
+  long getCacheHitCount();
+
+  long getCacheMissCount();
+
+  long getCacheEvictionCount();
+
+  /**
+   * @return -1 if the cache does not tell its size
+   */
+  int getCacheSize();
+
+  long getResolutionMissCount();
+
+  long getFragmentHitCount();
+
+  long getFragmentMissCount();
+
+  long getCompileCount();
+
+  LatencySnapshot getTokenizeLatency();
+
+  LatencySnapshot getParseLatency();
+
+  LatencySnapshot getCompileLatency();
+
+  LatencySnapshot getRenderLatency();
+
+  /**
+   * Keyed by template name.
+   */
+  Map<String, RenderSnapshot> getRenders();
+
+  void reset();
+}
@@ -0,0 +1,283 @@
+package net.moznion.jakotem.vm;
+
+import net.moznion.jakotem.OpcodeSequence;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Predicate;
+
+/**
+ * Byte oriented {@link TemplateOutput}. Static text is copied from the bytes pre-encoded by the
+ * {@link OpcodeSequence}; only dynamic values go through the {@link CharsetEncoder}.
+ * <p>
+ * Output to a stream, a channel or a {@link Sink} is buffered in a fixed-size buffer and written in chunks of at most
+ * its size whenever it fills up, so memory stays bounded however large the output is; call {@link #flush()} after
+ * the render. {@link #flushAfter(Predicate)} adds flush points at the end of blocks, e.g. after {@code head} so that
+ * a browser can fetch assets while the rest of the page renders. Output to a caller-supplied {@link ByteBuffer}
+ * throws {@link BufferOverflowException} when the buffer is full.
+ */
+public class ByteOutput extends TemplateOutput {
+  private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final Charset charset;
+  // characters below 0x80 are encoded as themselves, so ASCII values can skip the encoder
+  private final boolean asciiCompatible;
+  private final CharsetEncoder encoder;
+  private final ByteBuffer buffer;
+  private final Sink sink;
+  private final StringBuilder scratch = new StringBuilder();
+  private byte[][] encodedConstants;
+  private Predicate<String> flushAfter;
+
+  /**
+   * Receives the output chunk by chunk.
+   */
+  @FunctionalInterface
+  public interface Sink {
+    /**
+     * Consumes the remaining bytes. The buffer is reused once this returns; copy the bytes to keep them.
+     */
+    void write(ByteBuffer bytes) throws IOException;
+
+    /**
+     * Called at flush points after the buffered bytes have been written.
+     */
+    default void flush() throws IOException {
+    }
+  }
+
+  private ByteOutput(Charset charset, ByteBuffer buffer, Sink sink) {
+    this.charset = charset;
+    this.asciiCompatible = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+        || charset.equals(StandardCharsets.ISO_8859_1);
+    this.encoder = charset.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.buffer = buffer;
+    this.sink = sink;
+  }
+
+  private static final class StreamSink implements Sink {
+    private OutputStream out;
+
+    private StreamSink(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(ByteBuffer bytes) throws IOException {
+      out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+      bytes.position(bytes.limit());
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+  }
+
+  private static final class ChannelSink implements Sink {
+    private WritableByteChannel channel;
+
+    private ChannelSink(WritableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(ByteBuffer bytes) throws IOException {
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+    }
+  }
+
+  public static ByteOutput to(OutputStream out, Charset charset) {
+    return new ByteOutput(charset, ByteBuffer.allocate(DEFAULT_BUFFER_SIZE), new StreamSink(out));
+  }
+
+  /**
+   * Buffers in native memory, which is costly to allocate; {@link Interpreter} reuses these outputs through its
+   * {@link RenderContext}s.
+   */
+  public static ByteOutput to(WritableByteChannel channel, Charset charset) {
+    return new ByteOutput(charset, ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE), new ChannelSink(channel));
+  }
+
+  /**
+   * @param chunkSize size of the buffer; static text longer than it is handed to the sink in one piece
+   */
+  public static ByteOutput to(Sink sink, Charset charset, int chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+    }
+    return new ByteOutput(charset, ByteBuffer.allocate(chunkSize), sink);
+  }
+
+  /**
+   * Writes into the buffer, starting at its position.
+   */
+  public static ByteOutput to(ByteBuffer buffer, Charset charset) {
+    return new ByteOutput(charset, buffer, null);
+  }
+
+  public Charset getCharset() {
+    return charset;
+  }
+
+  /**
+   * Flushes at the end of the blocks whose names the predicate accepts; {@code name -> true} flushes at every block
+   * boundary. Has no effect on output to a caller-supplied buffer.
+   */
+  public ByteOutput flushAfter(Predicate<String> blocks) {
+    this.flushAfter = blocks;
+    return this;
+  }
+
+  /**
+   * Points an output created by {@link #to(OutputStream, Charset)} at another stream, for reuse by a
+   * {@link RenderContext}; buffered bytes and the flush points are discarded.
+   */
+  ByteOutput retarget(OutputStream out) {
+    ((StreamSink) sink).out = out;
+    return reset();
+  }
+
+  /**
+   * Points an output created by {@link #to(WritableByteChannel, Charset)} at another channel, like
+   * {@link #retarget(OutputStream)}.
+   */
+  ByteOutput retarget(WritableByteChannel channel) {
+    ((ChannelSink) sink).channel = channel;
+    return reset();
+  }
+
+  private ByteOutput reset() {
+    buffer.clear();
+    flushAfter = null;
+    return this;
+  }
+
+  @Override
+  void bind(OpcodeSequence opcodeSequence) {
+    super.bind(opcodeSequence);
+    encodedConstants = opcodeSequence.getEncodedConstants(charset);
+  }
+
+  @Override
+  public void writeRaw(int constant) {
+    writeBytes(encodedConstants[constant]);
+  }
+
+  @Override
+  public void writeFragment(Fragment fragment) {
+    writeBytes(fragment.getBytes(charset));
+  }
+
+  private void writeBytes(byte[] bytes) {
+    if (bytes.length <= buffer.remaining()) {
+      buffer.put(bytes);
+      return;
+    }
+
+    drain();
+    if (bytes.length <= buffer.remaining()) {
+      buffer.put(bytes);
+    } else {
+      // larger than the whole buffer; hand it to the sink as is
+      write(ByteBuffer.wrap(bytes));
+    }
+  }
+
+  @Override
+  public void print(Object value) {
+    if (value instanceof String && HtmlEscaper.indexOfEscape((String) value, 0) < 0) {
+      encode((String) value);
+      return;
+    }
+    scratch.setLength(0);
+    HtmlEscaper.escape(scratch, value);
+    encode(scratch);
+  }
+
+  @Override
+  public void endBlock(String name) {
+    if (flushAfter != null && flushAfter.test(name)) {
+      flush();
+    }
+  }
+
+  private void encode(CharSequence chars) {
+    final int length = chars.length();
+    int start = 0;
+    if (asciiCompatible) {
+      for (; start < length; start++) {
+        char c = chars.charAt(start);
+        if (c >= 0x80) {
+          break;
+        }
+        if (!buffer.hasRemaining()) {
+          drain();
+        }
+        buffer.put((byte) c);
+      }
+      if (start == length) {
+        return;
+      }
+    }
+
+    CharBuffer in = CharBuffer.wrap(chars, start, length);
+    // malformed and unmappable input is replaced, so overflow is the only other result
+    while (encoder.encode(in, buffer, true).isOverflow()) {
+      drain();
+    }
+    while (encoder.flush(buffer).isOverflow()) {
+      drain();
+    }
+    encoder.reset();
+  }
+
+  /**
+   * Writes buffered bytes to the stream, channel or sink, and flushes it. Does nothing for a caller-supplied buffer.
+   */
+  public void flush() {
+    if (sink != null) {
+      drain();
+      try {
+        sink.flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private void drain() {
+    if (sink == null) {
+      throw new BufferOverflowException();
+    }
+    buffer.flip();
+    if (buffer.hasRemaining()) {
+      write(buffer);
+    }
+    buffer.clear();
+  }
+
+  private void write(ByteBuffer bytes) {
+    if (sink == null) {
+      throw new BufferOverflowException();
+    }
+    try {
+      sink.write(bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,10 @@
+package net.moznion.jakotem.vm;
+
+import java.util.Map;
+
+/**
+ * {@link net.moznion.jakotem.OpcodeSequence} translated into a JVM class by {@link TemplateClassCompiler}.
+ */
+public interface CompiledTemplate {
+  void render(Interpreter interpreter, Map<String, ?> vars, TemplateOutput out);
+}
@@ -0,0 +1,30 @@
+package net.moznion.jakotem.vm;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Tiering state of an {@link net.moznion.jakotem.OpcodeSequence}. The generated class is only reachable from here,
+ * so it becomes unloadable together with the sequence when the template is evicted.
+ */
+public final class ExecutionProfile {
+  static final int INTERPRETED = 0;
+  static final int COMPILING = 1;
+  static final int COMPILED = 2;
+  static final int FAILED = 3;
+
+  private static final AtomicIntegerFieldUpdater<ExecutionProfile> STATE =
+      AtomicIntegerFieldUpdater.newUpdater(ExecutionProfile.class, "state");
+
+  // racy on purpose; only used to decide when to compile
+  int renderCount;
+  volatile int state = INTERPRETED;
+  volatile CompiledTemplate compiledTemplate;
+
+  boolean startCompiling() {
+    return STATE.compareAndSet(this, INTERPRETED, COMPILING);
+  }
+
+  public boolean isCompiled() {
+    return state == COMPILED;
+  }
+}
@@ -0,0 +1,42 @@
+package net.moznion.jakotem.vm;
+
+import java.nio.charset.Charset;
+
+/**
+ * Rendered output of a block or an include marked with {@code cache(key, ttl)}. The text is encoded once per charset,
+ * so that byte oriented outputs write the stored bytes as they are.
+ */
+public final class Fragment {
+  private final String text;
+  private volatile Encoded encoded;
+
+  private static final class Encoded {
+    private final Charset charset;
+    private final byte[] bytes;
+
+    private Encoded(Charset charset, byte[] bytes) {
+      this.charset = charset;
+      this.bytes = bytes;
+    }
+  }
+
+  Fragment(String text) {
+    this.text = text;
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Returns the text encoded in the charset; callers must not modify it. The last requested charset is cached.
+   */
+  public byte[] getBytes(Charset charset) {
+    Encoded last = encoded;
+    if (last == null || !last.charset.equals(charset)) {
+      last = new Encoded(charset, text.getBytes(charset));
+      encoded = last;
+    }
+    return last.bytes;
+  }
+}
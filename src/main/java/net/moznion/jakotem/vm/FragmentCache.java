@@ -0,0 +1,238 @@
+package net.moznion.jakotem.vm;
+
+import net.moznion.jakotem.metrics.TemplateMetricsListener;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Bounded, concurrent cache of rendered fragments. A template marks a block or an include as cacheable with a key
+ * and a TTL in seconds, e.g. {@code block nav cache("nav:" ~ $lang, 300) -> { ... }} or
+ * {@code include footer cache("footer", 60)}; on a hit the stored output is written without rendering the fragment.
+ * Keys are shared by all templates, so that a fragment can be reused and invalidated across them. A nil key or a TTL
+ * that is not positive renders the fragment without caching it.
+ *
+ * <p>Only one render at a time renders a missing fragment; other renders of the same key wait for it (at most
+ * {@code maxWait}, then they render it themselves), and an expired fragment keeps being served to them while it is
+ * refreshed. When the cache is full, expired fragments are dropped first, then those closest to expiry.
+ */
+public class FragmentCache {
+  public static final int DEFAULT_MAXIMUM_SIZE = 1024;
+  public static final Duration DEFAULT_MAX_WAIT = Duration.ofSeconds(10);
+
+  private final int maximumSize;
+  private final long maxWaitNanos;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Object evictionLock = new Object();
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+  private volatile TemplateMetricsListener metricsListener;
+
+  // immutable; replaced as a whole so that state changes are atomic per key
+  static final class Entry {
+    // null until the first render of the key completes
+    private final Fragment fragment;
+    private final long expiresAt;
+    // non-null while a render fills or refreshes the entry
+    private final CompletableFuture<Fragment> loading;
+
+    private Entry(Fragment fragment, long expiresAt, CompletableFuture<Fragment> loading) {
+      this.fragment = fragment;
+      this.expiresAt = expiresAt;
+      this.loading = loading;
+    }
+  }
+
+  public FragmentCache() {
+    this(DEFAULT_MAXIMUM_SIZE, DEFAULT_MAX_WAIT);
+  }
+
+  public FragmentCache(int maximumSize, Duration maxWait) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+    }
+    this.maximumSize = maximumSize;
+    this.maxWaitNanos = maxWait.toNanos();
+  }
+
+  /**
+   * @return null if the fragment was written to the output, otherwise the output to render the fragment to
+   */
+  TemplateOutput begin(Object key, Object ttl, TemplateOutput out) {
+    double ttlSeconds = Operators.toNumber(ttl).doubleValue();
+    if (key == null || !(ttlSeconds > 0)) {
+      return new FragmentCapture(this, null, 0, null, out);
+    }
+    String name = Operators.stringify(key);
+    FragmentCapture open = (out instanceof FragmentCapture ? ((FragmentCapture) out).root() : out).capture;
+    if (open != null && open.isCapturing(name)) {
+      // the fragment contains itself; waiting would never end
+      return new FragmentCapture(this, null, 0, null, out);
+    }
+
+    long ttlNanos = (long) (ttlSeconds * 1e9);
+    while (true) {
+      Entry entry = entries.get(name);
+      if (entry == null) {
+        Entry ticket = new Entry(null, 0, new CompletableFuture<>());
+        if (entries.putIfAbsent(name, ticket) == null) {
+          miss(name);
+          return new FragmentCapture(this, name, ttlNanos, ticket, out);
+        }
+        continue;
+      }
+
+      if (entry.fragment != null && (entry.loading != null || System.nanoTime() - entry.expiresAt < 0)) {
+        // fresh, or being refreshed by another render
+        hit(name);
+        out.writeFragment(entry.fragment);
+        return null;
+      }
+      if (entry.loading != null) {
+        Fragment fragment = await(entry.loading);
+        if (fragment == null) {
+          // the render failed or takes too long; render it without caching rather than piling up
+          miss(name);
+          return new FragmentCapture(this, null, 0, null, out);
+        }
+        hit(name);
+        out.writeFragment(fragment);
+        return null;
+      }
+
+      Entry ticket = new Entry(entry.fragment, entry.expiresAt, new CompletableFuture<>());
+      if (entries.replace(name, entry, ticket)) {
+        miss(name);
+        return new FragmentCapture(this, name, ttlNanos, ticket, out);
+      }
+    }
+  }
+
+  void complete(String key, Entry ticket, Fragment fragment, long ttlNanos) {
+    // not stored if the key was invalidated during the render
+    if (entries.replace(key, ticket, new Entry(fragment, System.nanoTime() + ttlNanos, null))) {
+      evictIfFull();
+    }
+    ticket.loading.complete(fragment);
+  }
+
+  void abandon(String key, Entry ticket) {
+    if (ticket.fragment == null) {
+      entries.remove(key, ticket);
+    } else {
+      entries.replace(key, ticket, new Entry(ticket.fragment, ticket.expiresAt, null));
+    }
+    ticket.loading.complete(null);
+  }
+
+  private Fragment await(CompletableFuture<Fragment> loading) {
+    try {
+      return loading.get(maxWaitNanos, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException | TimeoutException e) {
+      return null;
+    }
+  }
+
+  private void evictIfFull() {
+    if (entries.size() <= maximumSize) {
+      return;
+    }
+    synchronized (evictionLock) {
+      long now = System.nanoTime();
+      for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+        Entry entry = candidate.getValue();
+        if (entry.loading == null && now - entry.expiresAt >= 0 && entries.remove(candidate.getKey(), entry)) {
+          evictionCount.increment();
+        }
+      }
+      while (entries.size() > maximumSize) {
+        String victim = null;
+        Entry victimEntry = null;
+        for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+          Entry entry = candidate.getValue();
+          if (entry.loading == null && (victimEntry == null || entry.expiresAt - victimEntry.expiresAt < 0)) {
+            victim = candidate.getKey();
+            victimEntry = entry;
+          }
+        }
+        if (victim == null) {
+          // everything is being rendered right now
+          return;
+        }
+        if (entries.remove(victim, victimEntry)) {
+          evictionCount.increment();
+        }
+      }
+    }
+  }
+
+  private void hit(String key) {
+    hitCount.increment();
+    TemplateMetricsListener listener = metricsListener;
+    if (listener != null) {
+      listener.onFragmentHit(key);
+    }
+  }
+
+  private void miss(String key) {
+    missCount.increment();
+    TemplateMetricsListener listener = metricsListener;
+    if (listener != null) {
+      listener.onFragmentMiss(key);
+    }
+  }
+
+  public void invalidate(String key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Drops the fragments whose keys the predicate accepts, e.g. {@code key -> key.startsWith("user:42:")}.
+   */
+  public void invalidateIf(Predicate<String> keys) {
+    entries.keySet().removeIf(keys);
+  }
+
+  public void invalidateAll() {
+    entries.clear();
+  }
+
+  public void setMetricsListener(TemplateMetricsListener listener) {
+    this.metricsListener = listener;
+  }
+
+  /**
+   * @return the number of stored fragments, including those being rendered for the first time
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictionCount.sum();
+  }
+}
@@ -0,0 +1,62 @@
+package net.moznion.jakotem.vm;
+
+/**
+ * Output of a fragment being rendered on a miss of the {@link FragmentCache}. When the fragment ends, its text is
+ * stored and written to the output the fragment was started from.
+ */
+final class FragmentCapture extends StringBuilderOutput {
+  private final FragmentCache cache;
+  private final String key;
+  private final long ttlNanos;
+  // null when the fragment is rendered without being stored
+  private final FragmentCache.Entry ticket;
+  private final TemplateOutput parent;
+  private final TemplateOutput root;
+  // the capture that was innermost before this one started
+  final FragmentCapture enclosing;
+
+  FragmentCapture(FragmentCache cache, String key, long ttlNanos, FragmentCache.Entry ticket, TemplateOutput parent) {
+    super(new StringBuilder());
+    this.cache = cache;
+    this.key = key;
+    this.ttlNanos = ttlNanos;
+    this.ticket = ticket;
+    this.parent = parent;
+    this.root = parent instanceof FragmentCapture ? ((FragmentCapture) parent).root : parent;
+    this.constants = parent.constants;
+    this.enclosing = root.capture;
+    root.capture = this;
+  }
+
+  TemplateOutput root() {
+    return root;
+  }
+
+  boolean isCapturing(String key) {
+    for (FragmentCapture capture = this; capture != null; capture = capture.enclosing) {
+      if (key.equals(capture.key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the output the fragment was started from
+   */
+  TemplateOutput end() {
+    root.capture = enclosing;
+    Fragment fragment = new Fragment(getBuilder().toString());
+    if (ticket != null) {
+      cache.complete(key, ticket, fragment, ttlNanos);
+    }
+    parent.writeFragment(fragment);
+    return parent;
+  }
+
+  void abandon() {
+    if (ticket != null) {
+      cache.abandon(key, ticket);
+    }
+  }
+}
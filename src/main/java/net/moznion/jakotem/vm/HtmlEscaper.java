@@ -0,0 +1,76 @@
+package net.moznion.jakotem.vm;
+
+import net.moznion.jakotem.RawString;
+
+/**
+ * HTML escaping of interpolated values.
+ * <p>
+ * Characters are classified by a lookup table. A value is scanned for the first character that needs escaping and
+ * runs of clean characters are copied in bulk, so the common escape-free value costs one scan and one copy. Values
+ * marked raw are copied as they are, and numbers and booleans, which never need escaping, skip the scan.
+ */
+public final class HtmlEscaper {
+  private static final String[] REPLACEMENTS = new String[128];
+  static {
+    REPLACEMENTS['&'] = "&amp;";
+    REPLACEMENTS['<'] = "&lt;";
+    REPLACEMENTS['>'] = "&gt;";
+    REPLACEMENTS['"'] = "&quot;";
+    REPLACEMENTS['\''] = "&#39;";
+  }
+
+  private HtmlEscaper() {
+  }
+
+  public static void escape(StringBuilder out, Object value) {
+    if (value instanceof String) {
+      escape(out, (String) value);
+    } else if (value == null) {
+      // nothing to print
+    } else if (value instanceof RawString) {
+      out.append(((RawString) value).toString());
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      out.append(((Number) value).longValue());
+    } else if (value instanceof Number || value instanceof Boolean) {
+      out.append(Operators.stringify(value));
+    } else {
+      escape(out, Operators.stringify(value));
+    }
+  }
+
+  public static void escape(StringBuilder out, String s) {
+    int i = indexOfEscape(s, 0);
+    if (i < 0) {
+      out.append(s);
+      return;
+    }
+
+    // StringBuilder copies a String range char by char, but a char[] range in bulk
+    final int length = s.length();
+    final char[] chars = new char[length];
+    s.getChars(0, length, chars, 0);
+    int start = 0;
+    for (; i < length; i++) {
+      char c = chars[i];
+      if (c < 128 && REPLACEMENTS[c] != null) {
+        out.append(chars, start, i - start).append(REPLACEMENTS[c]);
+        start = i + 1;
+      }
+    }
+    out.append(chars, start, length - start);
+  }
+
+  /**
+   * @return the index of the first character at or after {@code from} that needs escaping, or -1
+   */
+  public static int indexOfEscape(String s, int from) {
+    final int length = s.length();
+    for (int i = from; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 128 && REPLACEMENTS[c] != null) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
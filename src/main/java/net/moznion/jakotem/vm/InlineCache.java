@@ -0,0 +1,188 @@
+package net.moznion.jakotem.vm;
+
+import net.moznion.jakotem.RenderException;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Monomorphic inline cache of a property access or method call site. The site is linked to a {@link MethodHandle}
+ * for the receiver class last seen, guarded by an exact class check; a miss relinks it. Sites that keep missing are
+ * considered megamorphic and fall back to the generic lookup of {@link Operators} for good, so that they don't keep
+ * invalidating the code that depends on them.
+ *
+ * <p>The interpreter calls {@link #getProperty(Object)} and {@link #invoke(Object, Object[])}; the generated classes
+ * link their {@code invokedynamic} instructions to an instance through {@link #bootstrap}.
+ */
+public final class InlineCache extends MutableCallSite {
+  static final int MAX_RELINKS = 8;
+
+  private static final Object[] NO_ARGUMENTS = new Object[0];
+
+  private static final MethodHandle FALLBACK;
+  private static final MethodHandle GENERIC;
+  private static final MethodHandle IS_CLASS;
+  private static final MethodHandle MAP_GET;
+  private static final MethodHandle COERCE;
+  private static final MethodHandle RETHROW;
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      FALLBACK = lookup.findVirtual(InlineCache.class, "fallback",
+          MethodType.methodType(Object.class, Object[].class));
+      GENERIC = lookup.findVirtual(InlineCache.class, "generic",
+          MethodType.methodType(Object.class, Object[].class));
+      IS_CLASS = lookup.findStatic(InlineCache.class, "isClass",
+          MethodType.methodType(boolean.class, Class.class, Object.class));
+      MAP_GET = lookup.findVirtual(Map.class, "get", MethodType.methodType(Object.class, Object.class));
+      COERCE = lookup.findStatic(Operators.class, "coerce",
+          MethodType.methodType(Object.class, Object.class, Class.class));
+      RETHROW = lookup.findStatic(InlineCache.class, "rethrow",
+          MethodType.methodType(Object.class, String.class, Throwable.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final String name;
+  private final int argc;
+  private final boolean property;
+  private final MethodHandle fallback;
+  private final MethodHandle invoker;
+  // racy on purpose; a few extra relinks are harmless
+  private int relinks;
+
+  private InlineCache(String name, int argc, boolean property) {
+    super(MethodType.genericMethodType(argc + 1));
+    this.name = name;
+    this.argc = argc;
+    this.property = property;
+    this.fallback = FALLBACK.bindTo(this).asCollector(Object[].class, argc + 1).asType(type());
+    this.invoker = dynamicInvoker().asSpreader(Object[].class, argc)
+        .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+    setTarget(fallback);
+  }
+
+  /**
+   * Cache of {@code receiver.name} and {@code receiver["name"]}, which behave like
+   * {@link Operators#getElement(Object, Object)}.
+   */
+  public static InlineCache forProperty(String name) {
+    return new InlineCache(name, 0, true);
+  }
+
+  /**
+   * Cache of {@code receiver->name(args)}, which behaves like {@link Operators#callMethod(Object, String, Object[])}.
+   */
+  public static InlineCache forMethod(String name, int argc) {
+    return new InlineCache(name, argc, false);
+  }
+
+  public static CallSite bootstrap(MethodHandles.Lookup lookup, String operation, MethodType type, String name,
+      int property) {
+    InlineCache cache = property != 0 ? forProperty(name) : forMethod(name, type.parameterCount() - 1);
+    if (!cache.type().equals(type)) {
+      throw new IllegalArgumentException("Unexpected call site type " + type);
+    }
+    return cache;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getArgumentCount() {
+    return argc;
+  }
+
+  public boolean isProperty() {
+    return property;
+  }
+
+  public boolean isMegamorphic() {
+    return relinks > MAX_RELINKS;
+  }
+
+  public Object getProperty(Object receiver) {
+    return invoke(receiver, NO_ARGUMENTS);
+  }
+
+  public Object invoke(Object receiver, Object[] args) {
+    try {
+      return (Object) invoker.invokeExact(receiver, args);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new RenderException("Method '" + name + "' threw an exception", e);
+    }
+  }
+
+  private Object fallback(Object[] arguments) throws Throwable {
+    Object receiver = arguments[0];
+    if (receiver == null || property && (receiver instanceof List || receiver.getClass().isArray())) {
+      // indexed access is cheap enough without linking
+      return generic(arguments);
+    }
+
+    if (++relinks > MAX_RELINKS) {
+      setTarget(GENERIC.bindTo(this).asCollector(Object[].class, argc + 1).asType(type()));
+      return generic(arguments);
+    }
+
+    MethodHandle handle = link(receiver);
+    MethodHandle test = IS_CLASS.bindTo(receiver.getClass()).asType(MethodType.methodType(boolean.class, Object.class));
+    test = MethodHandles.dropArguments(test, 1, type().dropParameterTypes(0, 1).parameterList());
+    setTarget(MethodHandles.guardWithTest(test, handle, fallback));
+    return handle.invokeWithArguments(arguments);
+  }
+
+  private MethodHandle link(Object receiver) throws IllegalAccessException {
+    Class<?> klass = receiver.getClass();
+    MethodHandle handle;
+    if (receiver instanceof Map && argc == 0) {
+      handle = MethodHandles.insertArguments(MAP_GET, 1, name);
+    } else {
+      Method method = Operators.findMethod(klass, name, argc);
+      if (method == null) {
+        throw new RenderException("Cannot call method '" + name + "' on " + klass.getName());
+      }
+      // honours setAccessible(true) of methods that have no public declaration
+      handle = MethodHandles.lookup().unreflect(method).asFixedArity();
+      Class<?>[] types = method.getParameterTypes();
+      for (int i = 0; i < types.length; i++) {
+        if (types[i].isPrimitive() || Number.class.isAssignableFrom(types[i]) || types[i] == String.class) {
+          MethodHandle coerce = MethodHandles.insertArguments(COERCE, 1, types[i])
+              .asType(MethodType.methodType(types[i], Object.class));
+          handle = MethodHandles.filterArguments(handle, i + 1, coerce);
+        }
+      }
+    }
+    handle = handle.asType(type());
+    MethodHandle rethrow = MethodHandles.dropArguments(RETHROW.bindTo(name), 1, type().parameterList());
+    return MethodHandles.catchException(handle, Throwable.class, rethrow);
+  }
+
+  private Object generic(Object[] arguments) {
+    Object receiver = arguments[0];
+    if (property) {
+      return Operators.getElement(receiver, name);
+    }
+    Object[] args = new Object[argc];
+    System.arraycopy(arguments, 1, args, 0, argc);
+    return Operators.callMethod(receiver, name, args);
+  }
+
+  private static boolean isClass(Class<?> klass, Object receiver) {
+    return receiver != null && receiver.getClass() == klass;
+  }
+
+  private static Object rethrow(String name, Throwable e) {
+    throw new RenderException("Method '" + name + "' threw an exception", e);
+  }
+}
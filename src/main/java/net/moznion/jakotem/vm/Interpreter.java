@@ -0,0 +1,533 @@
+package net.moznion.jakotem.vm;
+
+import net.moznion.jakotem.OpcodeSequence;
+import net.moznion.jakotem.RawString;
+import net.moznion.jakotem.RenderException;
+
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Executes {@link OpcodeSequence}s. Thread safe; the per-render state lives in {@link RenderContext}s, which the
+ * render methods without a context argument take from a {@link RenderContextPool} and give back afterwards.
+ * <p>
+ * Execution is tiered: a sequence is interpreted until it has been rendered {@code compileThreshold} times, then it
+ * is translated into a JVM class by {@link TemplateClassCompiler} and rendered by that class from then on.
+ */
+public class Interpreter {
+  public static final int DEFAULT_COMPILE_THRESHOLD = 1000;
+  public static final int NEVER_COMPILE = -1;
+
+  private static final Map<String, TemplateFunction> BUILTIN_FUNCTIONS;
+  static {
+    Map<String, TemplateFunction> builtins = new HashMap<>();
+    builtins.put("mark_raw", args -> args[0] instanceof RawString ? args[0]
+        : new RawString(Operators.stringify(args[0])));
+    builtins.put("raw", builtins.get("mark_raw"));
+    builtins.put("unmark_raw", args -> Operators.stringify(args[0]));
+    builtins.put("html", args -> {
+      StringBuilder escaped = new StringBuilder();
+      HtmlEscaper.escape(escaped, args[0]);
+      return new RawString(escaped.toString());
+    });
+    builtins.put("uri", args -> {
+      try {
+        return URLEncoder.encode(Operators.stringify(args[0]), "UTF-8").replace("+", "%20");
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    BUILTIN_FUNCTIONS = Collections.unmodifiableMap(builtins);
+  }
+
+  private final Map<String, TemplateFunction> functions;
+  private final int compileThreshold;
+  private final RenderContextPool contexts;
+  private final FragmentCache fragmentCache;
+
+  public Interpreter() {
+    this(Collections.emptyMap());
+  }
+
+  public Interpreter(Map<String, TemplateFunction> functions) {
+    this(functions, DEFAULT_COMPILE_THRESHOLD);
+  }
+
+  /**
+   * @param compileThreshold number of interpreted renders before a sequence is compiled to a JVM class; 0 compiles
+   *     on the first render, {@link #NEVER_COMPILE} disables compilation
+   */
+  public Interpreter(Map<String, TemplateFunction> functions, int compileThreshold) {
+    this(functions, compileThreshold, new FragmentCache());
+  }
+
+  public Interpreter(Map<String, TemplateFunction> functions, int compileThreshold, FragmentCache fragmentCache) {
+    this.functions = new HashMap<>(BUILTIN_FUNCTIONS);
+    this.functions.putAll(functions);
+    this.compileThreshold = compileThreshold;
+    this.contexts = new RenderContextPool();
+    this.fragmentCache = fragmentCache;
+  }
+
+  public String render(OpcodeSequence opcodeSequence, Map<String, ?> vars) {
+    RenderContext context = contexts.acquire();
+    try {
+      StringBuilderOutput out = context.stringOutput();
+      render(opcodeSequence, vars, context, out);
+      return out.getBuilder().toString();
+    } finally {
+      contexts.release(context);
+    }
+  }
+
+  public void render(OpcodeSequence opcodeSequence, Map<String, ?> vars, RenderContext context, StringBuilder out) {
+    render(opcodeSequence, vars, context, new StringBuilderOutput(out));
+  }
+
+  /**
+   * Renders to a stream; static text is written without being encoded again.
+   */
+  public void render(OpcodeSequence opcodeSequence, Map<String, ?> vars, OutputStream out, Charset charset) {
+    render(opcodeSequence, vars, out, charset, null);
+  }
+
+  /**
+   * Renders to a stream, flushing it at the end of the blocks the predicate accepts (see
+   * {@link ByteOutput#flushAfter(Predicate)}).
+   */
+  public void render(OpcodeSequence opcodeSequence, Map<String, ?> vars, OutputStream out, Charset charset,
+      Predicate<String> flushAfter) {
+    RenderContext context = contexts.acquire();
+    try {
+      ByteOutput output = context.streamOutput(out, charset).flushAfter(flushAfter);
+      render(opcodeSequence, vars, context, output);
+      output.flush();
+    } finally {
+      contexts.release(context);
+    }
+  }
+
+  public void render(OpcodeSequence opcodeSequence, Map<String, ?> vars, WritableByteChannel channel,
+      Charset charset) {
+    RenderContext context = contexts.acquire();
+    try {
+      ByteOutput output = context.channelOutput(channel, charset);
+      render(opcodeSequence, vars, context, output);
+      output.flush();
+    } finally {
+      contexts.release(context);
+    }
+  }
+
+  /**
+   * Renders into the buffer from its position.
+   *
+   * @throws java.nio.BufferOverflowException if the output does not fit into the buffer
+   */
+  public void render(OpcodeSequence opcodeSequence, Map<String, ?> vars, ByteBuffer buffer, Charset charset) {
+    render(opcodeSequence, vars, ByteOutput.to(buffer, charset));
+  }
+
+  /**
+   * Renders with a context from the pool of this interpreter.
+   */
+  public void render(OpcodeSequence opcodeSequence, Map<String, ?> vars, TemplateOutput out) {
+    RenderContext context = contexts.acquire();
+    try {
+      render(opcodeSequence, vars, context, out);
+    } finally {
+      contexts.release(context);
+    }
+  }
+
+  public void render(OpcodeSequence opcodeSequence, Map<String, ?> vars, RenderContext context,
+      TemplateOutput out) {
+    out.bind(opcodeSequence);
+    try {
+      CompiledTemplate compiledTemplate = compiledTemplateOf(opcodeSequence);
+      if (compiledTemplate != null) {
+        compiledTemplate.render(this, vars, out);
+        return;
+      }
+
+      context.prepare(opcodeSequence);
+      try {
+        execute(opcodeSequence, vars, context, out);
+      } finally {
+        context.release(opcodeSequence);
+      }
+    } catch (RuntimeException | Error e) {
+      out.abandonCaptures();
+      throw e;
+    }
+  }
+
+  /**
+   * Implements {@link Opcode#CACHE_BEGIN}; public for the generated classes.
+   *
+   * @return null if the cached fragment was written to the output, otherwise the output to render the fragment to
+   */
+  public TemplateOutput beginFragment(Object key, Object ttl, TemplateOutput out) {
+    return fragmentCache.begin(key, ttl, out);
+  }
+
+  /**
+   * Implements {@link Opcode#CACHE_END}; public for the generated classes.
+   *
+   * @return the output the fragment was started from
+   */
+  public TemplateOutput endFragment(TemplateOutput out) {
+    return ((FragmentCapture) out).end();
+  }
+
+  public FragmentCache getFragmentCache() {
+    return fragmentCache;
+  }
+
+  public Object callFunction(String name, Object[] args) {
+    TemplateFunction function = functions.get(name);
+    if (function == null) {
+      throw new RenderException("Undefined function '" + name + "'");
+    }
+    return function.call(args);
+  }
+
+  private CompiledTemplate compiledTemplateOf(OpcodeSequence opcodeSequence) {
+    ExecutionProfile profile = opcodeSequence.getExecutionProfile();
+    CompiledTemplate compiledTemplate = profile.compiledTemplate;
+    if (compiledTemplate != null || compileThreshold < 0 || profile.state != ExecutionProfile.INTERPRETED) {
+      return compiledTemplate;
+    }
+    if (profile.renderCount++ < compileThreshold || !profile.startCompiling()) {
+      return null;
+    }
+
+    // the render that crosses the threshold pays for the compilation; concurrent renders keep interpreting
+    try {
+      compiledTemplate = TemplateClassCompiler.compile(opcodeSequence);
+    } catch (RuntimeException | LinkageError e) {
+      profile.state = ExecutionProfile.FAILED;
+      return null;
+    }
+    profile.compiledTemplate = compiledTemplate;
+    profile.state = ExecutionProfile.COMPILED;
+    return compiledTemplate;
+  }
+
+  private void execute(OpcodeSequence opcodeSequence, Map<String, ?> vars, RenderContext context,
+      TemplateOutput out) {
+    final int[] code = opcodeSequence.getCode();
+    final Object[] constants = opcodeSequence.getConstants();
+    final InlineCache[] inlineCaches = opcodeSequence.getInlineCaches();
+    final Object[] stack = context.stack;
+    final Object[] locals = context.locals;
+    final int[] loopIndexes = context.loopIndexes;
+    int sp = 0; // next free stack slot
+    int pc = 0;
+
+    while (pc < code.length) {
+      switch (code[pc]) {
+        case Opcode.RAW:
+          out.writeRaw(code[pc + 1]);
+          pc += 2;
+          break;
+        case Opcode.BLOCK_END:
+          out.endBlock((String) constants[code[pc + 1]]);
+          pc += 2;
+          break;
+        case Opcode.CACHE_BEGIN: {
+          Object ttl = stack[--sp];
+          Object key = stack[--sp];
+          stack[sp] = null;
+          stack[sp + 1] = null;
+          TemplateOutput capture = fragmentCache.begin(key, ttl, out);
+          if (capture == null) {
+            pc = code[pc + 1];
+          } else {
+            out = capture;
+            pc += 2;
+          }
+          break;
+        }
+        case Opcode.CACHE_END:
+          out = ((FragmentCapture) out).end();
+          pc += 1;
+          break;
+        case Opcode.PRINT:
+          out.print(stack[--sp]);
+          stack[sp] = null;
+          pc += 1;
+          break;
+        case Opcode.PUSH_CONST:
+          stack[sp++] = constants[code[pc + 1]];
+          pc += 2;
+          break;
+        case Opcode.PUSH_NIL:
+          stack[sp++] = null;
+          pc += 1;
+          break;
+        case Opcode.PUSH_TRUE:
+          stack[sp++] = Boolean.TRUE;
+          pc += 1;
+          break;
+        case Opcode.PUSH_FALSE:
+          stack[sp++] = Boolean.FALSE;
+          pc += 1;
+          break;
+        case Opcode.POP:
+          stack[--sp] = null;
+          pc += 1;
+          break;
+        case Opcode.DUP:
+          stack[sp] = stack[sp - 1];
+          sp++;
+          pc += 1;
+          break;
+        case Opcode.LOAD_VAR:
+          stack[sp++] = vars.get(constants[code[pc + 1]]);
+          pc += 2;
+          break;
+        case Opcode.LOAD_VARS:
+          stack[sp++] = vars;
+          pc += 1;
+          break;
+        case Opcode.LOAD_LOCAL:
+          stack[sp++] = locals[code[pc + 1]];
+          pc += 2;
+          break;
+        case Opcode.STORE_LOCAL:
+          locals[code[pc + 1]] = stack[--sp];
+          stack[sp] = null;
+          pc += 2;
+          break;
+        case Opcode.ADD:
+          sp--;
+          stack[sp - 1] = Operators.add(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.SUB:
+          sp--;
+          stack[sp - 1] = Operators.sub(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.MUL:
+          sp--;
+          stack[sp - 1] = Operators.mul(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.DIV:
+          sp--;
+          stack[sp - 1] = Operators.div(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.MOD:
+          sp--;
+          stack[sp - 1] = Operators.mod(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.NEG:
+          stack[sp - 1] = Operators.neg(stack[sp - 1]);
+          pc += 1;
+          break;
+        case Opcode.BIT_AND:
+          sp--;
+          stack[sp - 1] = Operators.bitAnd(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.BIT_OR:
+          sp--;
+          stack[sp - 1] = Operators.bitOr(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.BIT_XOR:
+          sp--;
+          stack[sp - 1] = Operators.bitXor(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.CONCAT:
+          sp--;
+          stack[sp - 1] = Operators.concat(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.EQ:
+          sp--;
+          stack[sp - 1] = Operators.equals(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.NE:
+          sp--;
+          stack[sp - 1] = !Operators.equals(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.LT:
+          sp--;
+          stack[sp - 1] = Operators.compare(stack[sp - 1], stack[sp]) < 0;
+          pc += 1;
+          break;
+        case Opcode.LE:
+          sp--;
+          stack[sp - 1] = Operators.compare(stack[sp - 1], stack[sp]) <= 0;
+          pc += 1;
+          break;
+        case Opcode.GT:
+          sp--;
+          stack[sp - 1] = Operators.compare(stack[sp - 1], stack[sp]) > 0;
+          pc += 1;
+          break;
+        case Opcode.GE:
+          sp--;
+          stack[sp - 1] = Operators.compare(stack[sp - 1], stack[sp]) >= 0;
+          pc += 1;
+          break;
+        case Opcode.NOT:
+          stack[sp - 1] = !Operators.isTrue(stack[sp - 1]);
+          pc += 1;
+          break;
+        case Opcode.MIN:
+          sp--;
+          stack[sp - 1] = Operators.min(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.MAX:
+          sp--;
+          stack[sp - 1] = Operators.max(stack[sp - 1], stack[sp]);
+          pc += 1;
+          break;
+        case Opcode.JUMP:
+          pc = code[pc + 1];
+          break;
+        case Opcode.JUMP_IF_FALSE:
+          sp--;
+          pc = Operators.isTrue(stack[sp]) ? pc + 2 : code[pc + 1];
+          stack[sp] = null;
+          break;
+        case Opcode.JUMP_IF_FALSE_OR_POP:
+          if (Operators.isTrue(stack[sp - 1])) {
+            stack[--sp] = null;
+            pc += 2;
+          } else {
+            pc = code[pc + 1];
+          }
+          break;
+        case Opcode.JUMP_IF_TRUE_OR_POP:
+          if (Operators.isTrue(stack[sp - 1])) {
+            pc = code[pc + 1];
+          } else {
+            stack[--sp] = null;
+            pc += 2;
+          }
+          break;
+        case Opcode.JUMP_IF_NOT_NIL_OR_POP:
+          if (stack[sp - 1] != null) {
+            pc = code[pc + 1];
+          } else {
+            sp--;
+            pc += 2;
+          }
+          break;
+        case Opcode.ITER_INIT: {
+          Object iterable = stack[--sp];
+          stack[sp] = null;
+          locals[code[pc + 1]] = Operators.iteration(iterable);
+          loopIndexes[code[pc + 1]] = 0;
+          pc += 2;
+          break;
+        }
+        case Opcode.ITER_NEXT: {
+          int slot = code[pc + 1];
+          Object iteration = locals[slot];
+          int index = loopIndexes[slot];
+          if (iteration instanceof List) {
+            List<?> list = (List<?>) iteration;
+            if (index < list.size()) {
+              locals[code[pc + 2]] = list.get(index);
+              loopIndexes[slot] = index + 1;
+              pc += 4;
+            } else {
+              pc = code[pc + 3];
+            }
+          } else if (iteration instanceof Object[]) {
+            Object[] array = (Object[]) iteration;
+            if (index < array.length) {
+              locals[code[pc + 2]] = array[index];
+              loopIndexes[slot] = index + 1;
+              pc += 4;
+            } else {
+              pc = code[pc + 3];
+            }
+          } else if (iteration instanceof Iterator) {
+            Iterator<?> iterator = (Iterator<?>) iteration;
+            if (iterator.hasNext()) {
+              locals[code[pc + 2]] = iterator.next();
+              loopIndexes[slot] = index + 1;
+              pc += 4;
+            } else {
+              pc = code[pc + 3];
+            }
+          } else {
+            // primitive array
+            if (index < Array.getLength(iteration)) {
+              locals[code[pc + 2]] = Array.get(iteration, index);
+              loopIndexes[slot] = index + 1;
+              pc += 4;
+            } else {
+              pc = code[pc + 3];
+            }
+          }
+          break;
+        }
+        case Opcode.GET_ELEMENT:
+          sp--;
+          stack[sp - 1] = Operators.getElement(stack[sp - 1], stack[sp]);
+          stack[sp] = null;
+          pc += 1;
+          break;
+        case Opcode.GET_PROPERTY:
+          stack[sp - 1] = inlineCaches[code[pc + 2]].getProperty(stack[sp - 1]);
+          pc += 3;
+          break;
+        case Opcode.CALL_METHOD: {
+          int argc = code[pc + 2];
+          Object[] args = Arrays.copyOfRange(stack, sp - argc, sp);
+          Arrays.fill(stack, sp - argc, sp, null);
+          sp -= argc;
+          stack[sp - 1] = inlineCaches[code[pc + 3]].invoke(stack[sp - 1], args);
+          pc += 4;
+          break;
+        }
+        case Opcode.CALL_FUNCTION: {
+          int argc = code[pc + 2];
+          Object[] args = Arrays.copyOfRange(stack, sp - argc, sp);
+          Arrays.fill(stack, sp - argc, sp, null);
+          sp -= argc;
+          stack[sp++] = callFunction((String) constants[code[pc + 1]], args);
+          pc += 3;
+          break;
+        }
+        case Opcode.MAKE_ARRAY: {
+          int count = code[pc + 1];
+          List<Object> array = Arrays.asList(Arrays.copyOfRange(stack, sp - count, sp));
+          Arrays.fill(stack, sp - count, sp, null);
+          sp -= count;
+          stack[sp++] = array;
+          pc += 2;
+          break;
+        }
+        default:
+          throw new RenderException("Unknown opcode " + code[pc] + " at " + pc);
+      }
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package net.moznion.jakotem.vm;
+
+/**
+ * Instruction set of {@link net.moznion.jakotem.OpcodeSequence}.
+ * <p>
+ * An instruction is an opcode followed by its operands, all stored inline in an {@code int[]}. Jump targets are
+ * absolute indexes into the code array; constant operands are indexes into the constant pool.
+ */
+public final class Opcode {
+  // output
+  public static final int RAW = 0; // const: append constant as is
+  public static final int PRINT = 1; // pop and append with escaping
+
+  // stack
+  public static final int PUSH_CONST = 2; // const
+  public static final int PUSH_NIL = 3;
+  public static final int PUSH_TRUE = 4;
+  public static final int PUSH_FALSE = 5;
+  public static final int POP = 6;
+  public static final int DUP = 7;
+
+  // variables
+  public static final int LOAD_VAR = 8; // const: name of template parameter
+  public static final int LOAD_LOCAL = 9; // slot
+  public static final int STORE_LOCAL = 10; // slot
+
+  // arithmetic
+  public static final int ADD = 11;
+  public static final int SUB = 12;
+  public static final int MUL = 13;
+  public static final int DIV = 14;
+  public static final int MOD = 15;
+  public static final int NEG = 16;
+  public static final int BIT_AND = 17;
+  public static final int BIT_OR = 18;
+  public static final int BIT_XOR = 19;
+  public static final int CONCAT = 20;
+
+  // comparison
+  public static final int EQ = 21;
+  public static final int NE = 22;
+  public static final int LT = 23;
+  public static final int LE = 24;
+  public static final int GT = 25;
+  public static final int GE = 26;
+  public static final int NOT = 27;
+  public static final int MIN = 28;
+  public static final int MAX = 29;
+
+  // control flow
+  public static final int JUMP = 30; // target
+  public static final int JUMP_IF_FALSE = 31; // target: pop
+  public static final int JUMP_IF_FALSE_OR_POP = 32; // target: for `&&`; keep the value when jumping
+  public static final int JUMP_IF_TRUE_OR_POP = 33; // target: for `||`
+  public static final int JUMP_IF_NOT_NIL_OR_POP = 34; // target: for `//`
+  public static final int ITER_INIT = 35; // slot: pop iterable and start iteration in the slot
+  public static final int ITER_NEXT = 36; // slot, variable slot, target: jump to target when exhausted
+
+  // access
+  public static final int GET_ELEMENT = 37; // `a[b]`
+  public static final int CALL_METHOD = 38; // const, argc, inline cache: `a->b(...)`
+  public static final int CALL_FUNCTION = 39; // const, argc: `f(...)`, `a | f`
+  public static final int MAKE_ARRAY = 40; // count: `[a, b, ...]`
+  public static final int GET_PROPERTY = 41; // const, inline cache: `a.b`, `a["b"]`
+
+  // structure
+  public static final int BLOCK_END = 42; // const: name of the block whose content ends; a flush point
+  public static final int CACHE_BEGIN = 43; // target: pop TTL and key; on a hit write the fragment and jump
+  public static final int CACHE_END = 44; // store the fragment rendered since CACHE_BEGIN and write it
+
+  // variables, continued
+  public static final int LOAD_VARS = 45; // the template parameters as a map: `__ROOT__`
+
+  private static final String[] NAMES = {
+      "RAW", "PRINT", "PUSH_CONST", "PUSH_NIL", "PUSH_TRUE", "PUSH_FALSE", "POP", "DUP",
+      "LOAD_VAR", "LOAD_LOCAL", "STORE_LOCAL",
+      "ADD", "SUB", "MUL", "DIV", "MOD", "NEG", "BIT_AND", "BIT_OR", "BIT_XOR", "CONCAT",
+      "EQ", "NE", "LT", "LE", "GT", "GE", "NOT", "MIN", "MAX",
+      "JUMP", "JUMP_IF_FALSE", "JUMP_IF_FALSE_OR_POP", "JUMP_IF_TRUE_OR_POP", "JUMP_IF_NOT_NIL_OR_POP",
+      "ITER_INIT", "ITER_NEXT",
+      "GET_ELEMENT", "CALL_METHOD", "CALL_FUNCTION", "MAKE_ARRAY", "GET_PROPERTY",
+      "BLOCK_END", "CACHE_BEGIN", "CACHE_END",
+      "LOAD_VARS",
+  };
+
+  private static final int[] OPERAND_COUNTS = {
+      1, 0, 1, 0, 0, 0, 0, 0,
+      1, 1, 1,
+      0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+      0, 0, 0, 0, 0, 0, 0, 0, 0,
+      1, 1, 1, 1, 1,
+      1, 3,
+      0, 3, 2, 1, 2,
+      1, 1, 0,
+      0,
+  };
+
+  private Opcode() {
+  }
+
+  public static boolean isValid(int opcode) {
+    return opcode >= 0 && opcode < NAMES.length;
+  }
+
+  public static String nameOf(int opcode) {
+    return NAMES[opcode];
+  }
+
+  public static int operandCount(int opcode) {
+    return OPERAND_COUNTS[opcode];
+  }
+
+  /**
+   * Stack depth change of an instruction when it does not jump.
+   */
+  public static int stackEffect(int opcode, int[] code, int pc) {
+    switch (opcode) {
+      case RAW:
+      case NEG:
+      case NOT:
+      case JUMP:
+      case ITER_NEXT:
+      case GET_PROPERTY:
+      case BLOCK_END:
+      case CACHE_END:
+        return 0;
+      case PUSH_CONST:
+      case PUSH_NIL:
+      case PUSH_TRUE:
+      case PUSH_FALSE:
+      case DUP:
+      case LOAD_VAR:
+      case LOAD_VARS:
+      case LOAD_LOCAL:
+        return 1;
+      case CALL_METHOD:
+        return -code[pc + 2];
+      case CALL_FUNCTION:
+        return 1 - code[pc + 2];
+      case MAKE_ARRAY:
+        return 1 - code[pc + 1];
+      case CACHE_BEGIN:
+        return -2;
+      default:
+        // PRINT, POP, STORE_LOCAL, binary operators, conditional jumps, ITER_INIT and GET_ELEMENT
+        return -1;
+    }
+  }
+}
@@ -0,0 +1,394 @@
+package net.moznion.jakotem.vm;
+
+import net.moznion.jakotem.RenderException;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Value semantics of the template language, shared by every execution engine. Numbers follow Perl-ish rules:
+ * integral operands stay integral ({@link Long}), anything else is computed as {@link Double}, and strings are
+ * converted to numbers on demand.
+ */
+public final class Operators {
+  // held by the receiver class, so that the entries of a webapp or plugin class go away with its class loader
+  private static final ClassValue<ConcurrentHashMap<MethodKey, Method>> methods =
+      new ClassValue<ConcurrentHashMap<MethodKey, Method>>() {
+        @Override
+        protected ConcurrentHashMap<MethodKey, Method> computeValue(Class<?> klass) {
+          return new ConcurrentHashMap<>();
+        }
+      };
+  private static final Method NO_METHOD;
+  static {
+    try {
+      NO_METHOD = Object.class.getMethod("hashCode");
+    } catch (NoSuchMethodException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private Operators() {
+  }
+
+  public static boolean isTrue(Object value) {
+    if (value == null) {
+      return false;
+    }
+    if (value instanceof Boolean) {
+      return (Boolean) value;
+    }
+    if (value instanceof Number) {
+      return isIntegral(value) ? ((Number) value).longValue() != 0 : ((Number) value).doubleValue() != 0.0;
+    }
+    if (value instanceof CharSequence) {
+      CharSequence s = (CharSequence) value;
+      return !(s.length() == 0 || (s.length() == 1 && s.charAt(0) == '0'));
+    }
+    return true;
+  }
+
+  public static String stringify(Object value) {
+    if (value == null) {
+      return "";
+    }
+    if (value instanceof String) {
+      return (String) value;
+    }
+    if (value instanceof Double || value instanceof Float) {
+      double d = ((Number) value).doubleValue();
+      if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15) {
+        return Long.toString((long) d);
+      }
+    }
+    return value.toString();
+  }
+
+  public static Number toNumber(Object value) {
+    if (value instanceof Number) {
+      return (Number) value;
+    }
+    if (value == null) {
+      return 0L;
+    }
+    if (value instanceof Boolean) {
+      return (Boolean) value ? 1L : 0L;
+    }
+
+    String s = value.toString().trim();
+    try {
+      return Long.parseLong(s);
+    } catch (NumberFormatException e) {
+      try {
+        return Double.parseDouble(s);
+      } catch (NumberFormatException e2) {
+        return 0L;
+      }
+    }
+  }
+
+  private static boolean isIntegral(Object n) {
+    return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+  }
+
+  public static Object add(Object a, Object b) {
+    Number x = toNumber(a);
+    Number y = toNumber(b);
+    if (isIntegral(x) && isIntegral(y)) {
+      return x.longValue() + y.longValue();
+    }
+    return x.doubleValue() + y.doubleValue();
+  }
+
+  public static Object sub(Object a, Object b) {
+    Number x = toNumber(a);
+    Number y = toNumber(b);
+    if (isIntegral(x) && isIntegral(y)) {
+      return x.longValue() - y.longValue();
+    }
+    return x.doubleValue() - y.doubleValue();
+  }
+
+  public static Object mul(Object a, Object b) {
+    Number x = toNumber(a);
+    Number y = toNumber(b);
+    if (isIntegral(x) && isIntegral(y)) {
+      return x.longValue() * y.longValue();
+    }
+    return x.doubleValue() * y.doubleValue();
+  }
+
+  public static Object div(Object a, Object b) {
+    Number x = toNumber(a);
+    Number y = toNumber(b);
+    if (y.doubleValue() == 0.0) {
+      throw new RenderException("Illegal division by zero");
+    }
+    if (isIntegral(x) && isIntegral(y) && x.longValue() % y.longValue() == 0) {
+      return x.longValue() / y.longValue();
+    }
+    return x.doubleValue() / y.doubleValue();
+  }
+
+  public static Object mod(Object a, Object b) {
+    long y = toNumber(b).longValue();
+    if (y == 0) {
+      throw new RenderException("Illegal modulus zero");
+    }
+    return toNumber(a).longValue() % y;
+  }
+
+  public static Object neg(Object a) {
+    Number x = toNumber(a);
+    if (isIntegral(x)) {
+      return -x.longValue();
+    }
+    return -x.doubleValue();
+  }
+
+  public static Object bitAnd(Object a, Object b) {
+    return toNumber(a).longValue() & toNumber(b).longValue();
+  }
+
+  public static Object bitOr(Object a, Object b) {
+    return toNumber(a).longValue() | toNumber(b).longValue();
+  }
+
+  public static Object bitXor(Object a, Object b) {
+    return toNumber(a).longValue() ^ toNumber(b).longValue();
+  }
+
+  public static String concat(Object a, Object b) {
+    return stringify(a).concat(stringify(b));
+  }
+
+  public static boolean equals(Object a, Object b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    if (a instanceof Number && b instanceof Number) {
+      return compareNumbers((Number) a, (Number) b) == 0;
+    }
+    return stringify(a).equals(stringify(b));
+  }
+
+  public static int compare(Object a, Object b) {
+    return compareNumbers(toNumber(a), toNumber(b));
+  }
+
+  private static int compareNumbers(Number x, Number y) {
+    if (isIntegral(x) && isIntegral(y)) {
+      return Long.compare(x.longValue(), y.longValue());
+    }
+    return Double.compare(x.doubleValue(), y.doubleValue());
+  }
+
+  public static Object min(Object a, Object b) {
+    return compare(a, b) <= 0 ? a : b;
+  }
+
+  public static Object max(Object a, Object b) {
+    return compare(a, b) >= 0 ? a : b;
+  }
+
+  /**
+   * Returns a random access {@link List}, an {@link Iterator} or an array; lists and arrays are walked by index so
+   * that the common case does not allocate an iterator.
+   */
+  public static Object iteration(Object iterable) {
+    if (iterable == null) {
+      return Collections.emptyList();
+    }
+    if (iterable instanceof List && iterable instanceof RandomAccess) {
+      return iterable;
+    }
+    if (iterable.getClass().isArray()) {
+      return iterable;
+    }
+    if (iterable instanceof Map) {
+      return ((Map<?, ?>) iterable).entrySet().iterator();
+    }
+    if (iterable instanceof Iterable) {
+      return ((Iterable<?>) iterable).iterator();
+    }
+    if (iterable instanceof Iterator) {
+      return iterable;
+    }
+    return Collections.singletonList(iterable);
+  }
+
+  public static boolean hasNext(Object iteration, int index) {
+    if (iteration instanceof List) {
+      return index < ((List<?>) iteration).size();
+    }
+    if (iteration instanceof Object[]) {
+      return index < ((Object[]) iteration).length;
+    }
+    if (iteration instanceof Iterator) {
+      return ((Iterator<?>) iteration).hasNext();
+    }
+    return index < Array.getLength(iteration);
+  }
+
+  public static Object next(Object iteration, int index) {
+    if (iteration instanceof List) {
+      return ((List<?>) iteration).get(index);
+    }
+    if (iteration instanceof Object[]) {
+      return ((Object[]) iteration)[index];
+    }
+    if (iteration instanceof Iterator) {
+      return ((Iterator<?>) iteration).next();
+    }
+    return Array.get(iteration, index);
+  }
+
+  public static Object getElement(Object container, Object key) {
+    if (container == null) {
+      return null;
+    }
+    if (container instanceof Map) {
+      return ((Map<?, ?>) container).get(key);
+    }
+    if (container instanceof List) {
+      List<?> list = (List<?>) container;
+      int index = toNumber(key).intValue();
+      return index >= 0 && index < list.size() ? list.get(index) : null;
+    }
+    if (container.getClass().isArray()) {
+      int index = toNumber(key).intValue();
+      return index >= 0 && index < Array.getLength(container) ? Array.get(container, index) : null;
+    }
+    return callMethod(container, stringify(key), new Object[0]);
+  }
+
+  /**
+   * Calls a public method by name. With no arguments, a map entry and a JavaBeans getter are looked up as well.
+   */
+  public static Object callMethod(Object receiver, String name, Object[] args) {
+    if (receiver == null) {
+      return null;
+    }
+    if (receiver instanceof Map && args.length == 0) {
+      return ((Map<?, ?>) receiver).get(name);
+    }
+
+    Method method = findMethod(receiver.getClass(), name, args.length);
+    if (method == null) {
+      throw new RenderException("Cannot call method '" + name + "' on " + receiver.getClass().getName());
+    }
+    return invoke(method, receiver, args);
+  }
+
+  public static Method findMethod(Class<?> klass, String name, int argc) {
+    ConcurrentHashMap<MethodKey, Method> classMethods = methods.get(klass);
+    MethodKey key = new MethodKey(name, argc);
+    Method method = classMethods.get(key);
+    if (method == null) {
+      method = lookupMethod(klass, name, argc);
+      classMethods.putIfAbsent(key, method == null ? NO_METHOD : method);
+    }
+    return method == NO_METHOD ? null : method;
+  }
+
+  private static Method lookupMethod(Class<?> klass, String name, int argc) {
+    String capitalized = name.isEmpty() ? name : Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    String[] candidates = argc == 0 ? new String[] {name, "get" + capitalized, "is" + capitalized}
+        : new String[] {name};
+    for (String candidate : candidates) {
+      for (Method method : klass.getMethods()) {
+        if (method.getName().equals(candidate) && method.getParameterCount() == argc) {
+          return accessible(klass, method);
+        }
+      }
+    }
+    return null;
+  }
+
+  // methods of non-public classes are called through their public interface or superclass
+  private static Method accessible(Class<?> klass, Method method) {
+    if (Modifier.isPublic(klass.getModifiers())) {
+      return method;
+    }
+    for (Class<?> c = klass; c != null; c = c.getSuperclass()) {
+      for (Class<?> type : c.getInterfaces()) {
+        try {
+          return type.getMethod(method.getName(), method.getParameterTypes());
+        } catch (NoSuchMethodException e) {
+          // try next
+        }
+      }
+      if (c != klass && Modifier.isPublic(c.getModifiers())) {
+        try {
+          return c.getMethod(method.getName(), method.getParameterTypes());
+        } catch (NoSuchMethodException e) {
+          // try next
+        }
+      }
+    }
+    method.setAccessible(true);
+    return method;
+  }
+
+  public static Object invoke(Method method, Object receiver, Object[] args) {
+    Class<?>[] types = method.getParameterTypes();
+    for (int i = 0; i < args.length; i++) {
+      args[i] = coerce(args[i], types[i]);
+    }
+    try {
+      return method.invoke(receiver, args);
+    } catch (IllegalAccessException e) {
+      throw new RenderException("Cannot call method '" + method.getName() + "'", e);
+    } catch (InvocationTargetException e) {
+      throw new RenderException("Method '" + method.getName() + "' threw an exception", e.getCause());
+    }
+  }
+
+  static Object coerce(Object arg, Class<?> type) {
+    if (type == int.class || type == Integer.class) {
+      return toNumber(arg).intValue();
+    }
+    if (type == long.class || type == Long.class) {
+      return toNumber(arg).longValue();
+    }
+    if (type == double.class || type == Double.class) {
+      return toNumber(arg).doubleValue();
+    }
+    if (type == String.class && arg != null && !(arg instanceof String)) {
+      return stringify(arg);
+    }
+    return arg;
+  }
+
+  private static final class MethodKey {
+    private final String name;
+    private final int argc;
+
+    private MethodKey(String name, int argc) {
+      this.name = name;
+      this.argc = argc;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof MethodKey)) {
+        return false;
+      }
+      MethodKey other = (MethodKey) o;
+      return argc == other.argc && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return name.hashCode() * 31 + argc;
+    }
+  }
+}
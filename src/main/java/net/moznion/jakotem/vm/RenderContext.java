@@ -0,0 +1,77 @@
+package net.moznion.jakotem.vm;
+
+import net.moznion.jakotem.OpcodeSequence;
+
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Mutable state of a render: operand stack, local slots, loop indexes and the outputs of the {@link Interpreter}
+ * render methods. Reused across renders through a {@link RenderContextPool} to avoid allocating them for every
+ * request; an instance must not be used by two renders at the same time.
+ */
+public class RenderContext {
+  // a builder grown beyond this by a huge page is dropped rather than kept in the pool
+  private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+  Object[] stack = new Object[16];
+  Object[] locals = new Object[8];
+  int[] loopIndexes = new int[8];
+  private StringBuilderOutput stringOutput;
+  private ByteOutput streamOutput;
+  private ByteOutput channelOutput;
+
+  void prepare(OpcodeSequence opcodeSequence) {
+    if (stack.length < opcodeSequence.getMaxStack()) {
+      stack = new Object[opcodeSequence.getMaxStack()];
+    }
+    if (locals.length < opcodeSequence.getLocalCount()) {
+      locals = new Object[opcodeSequence.getLocalCount()];
+      loopIndexes = new int[opcodeSequence.getLocalCount()];
+    }
+  }
+
+  void release(OpcodeSequence opcodeSequence) {
+    // do not keep template parameters reachable after the render
+    Arrays.fill(stack, 0, Math.min(stack.length, opcodeSequence.getMaxStack()), null);
+    Arrays.fill(locals, 0, Math.min(locals.length, opcodeSequence.getLocalCount()), null);
+  }
+
+  StringBuilderOutput stringOutput() {
+    if (stringOutput == null || stringOutput.getBuilder().capacity() > MAX_RETAINED_CHARS) {
+      stringOutput = new StringBuilderOutput(new StringBuilder(256));
+    }
+    stringOutput.getBuilder().setLength(0);
+    return stringOutput;
+  }
+
+  ByteOutput streamOutput(OutputStream out, Charset charset) {
+    if (streamOutput == null || !streamOutput.getCharset().equals(charset)) {
+      streamOutput = ByteOutput.to(out, charset);
+      return streamOutput;
+    }
+    return streamOutput.retarget(out);
+  }
+
+  ByteOutput channelOutput(WritableByteChannel channel, Charset charset) {
+    if (channelOutput == null || !channelOutput.getCharset().equals(charset)) {
+      channelOutput = ByteOutput.to(channel, charset);
+      return channelOutput;
+    }
+    return channelOutput.retarget(channel);
+  }
+
+  /**
+   * Drops the references to the output of the last render before the context goes back to the pool.
+   */
+  void recycle() {
+    if (streamOutput != null) {
+      streamOutput.retarget((OutputStream) null);
+    }
+    if (channelOutput != null) {
+      channelOutput.retarget((WritableByteChannel) null);
+    }
+  }
+}
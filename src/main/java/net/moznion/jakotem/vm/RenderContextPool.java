@@ -0,0 +1,65 @@
+package net.moznion.jakotem.vm;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free pool of {@link RenderContext}s. Unlike a {@link ThreadLocal}, it retains at most
+ * {@code capacity} contexts however many threads render, which matters with virtual threads. When the pool is
+ * empty, a fresh context is made; when it is full, a released context is left to the garbage collector.
+ */
+public final class RenderContextPool {
+  private final AtomicReferenceArray<RenderContext> slots;
+  private final int mask;
+
+  public RenderContextPool() {
+    this(Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  /**
+   * @param capacity rounded up to a power of two
+   */
+  public RenderContextPool(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Invalid capacity " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+  }
+
+  public RenderContext acquire() {
+    // start probing at a slot derived from the thread so that threads seldom contend for the same slots
+    final int start = probe();
+    for (int i = 0; i <= mask; i++) {
+      int index = (start + i) & mask;
+      RenderContext context = slots.get(index);
+      if (context != null && slots.compareAndSet(index, context, null)) {
+        return context;
+      }
+    }
+    return new RenderContext();
+  }
+
+  public void release(RenderContext context) {
+    context.recycle();
+    final int start = probe();
+    for (int i = 0; i <= mask; i++) {
+      int index = (start + i) & mask;
+      if (slots.get(index) == null && slots.compareAndSet(index, null, context)) {
+        return;
+      }
+    }
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  private int probe() {
+    long id = Thread.currentThread().getId();
+    return (int) (id ^ (id >>> 32)) * 0x9E3779B9 >>> 16;
+  }
+}
@@ -0,0 +1,28 @@
+package net.moznion.jakotem.vm;
+
+class StringBuilderOutput extends TemplateOutput {
+  private final StringBuilder out;
+
+  StringBuilderOutput(StringBuilder out) {
+    this.out = out;
+  }
+
+  StringBuilder getBuilder() {
+    return out;
+  }
+
+  @Override
+  public void writeRaw(int constant) {
+    out.append((String) constants[constant]);
+  }
+
+  @Override
+  public void print(Object value) {
+    HtmlEscaper.escape(out, value);
+  }
+
+  @Override
+  public void writeFragment(Fragment fragment) {
+    out.append(fragment.getText());
+  }
+}
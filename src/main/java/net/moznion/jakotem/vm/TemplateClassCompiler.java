@@ -0,0 +1,529 @@
+package net.moznion.jakotem.vm;
+
+import static org.objectweb.asm.Opcodes.AALOAD;
+import static org.objectweb.asm.Opcodes.AASTORE;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ANEWARRAY;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.DUP_X2;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.H_INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.IFGE;
+import static org.objectweb.asm.Opcodes.IFGT;
+import static org.objectweb.asm.Opcodes.IFLE;
+import static org.objectweb.asm.Opcodes.IFLT;
+import static org.objectweb.asm.Opcodes.IFNE;
+import static org.objectweb.asm.Opcodes.IFNONNULL;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.IXOR;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+import static org.objectweb.asm.Opcodes.SWAP;
+import static org.objectweb.asm.Opcodes.V1_8;
+
+import net.moznion.jakotem.OpcodeSequence;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Translates an {@link OpcodeSequence} into a JVM class implementing {@link CompiledTemplate}. The operand stack of
+ * the sequence maps onto the JVM operand stack and local slots onto JVM locals, so HotSpot can optimize a template
+ * like hand-written code. Every class is defined by its own class loader to be unloadable on its own.
+ */
+final class TemplateClassCompiler {
+  /**
+   * Bytecode size above which HotSpot does not JIT-compile a method under its default -XX:+DontCompileHugeMethods
+   * (only -XX:-DontCompileHugeMethods lifts it); such a template is faster in the interpreter.
+   */
+  static final int HUGE_METHOD_LIMIT = 8000;
+
+  private static final String OBJECT = "java/lang/Object";
+  private static final String STRING = "java/lang/String";
+  private static final String BOOLEAN = "java/lang/Boolean";
+  private static final String OUTPUT = Type.getInternalName(TemplateOutput.class);
+  private static final String OPERATORS = Type.getInternalName(Operators.class);
+  private static final String INTERPRETER = Type.getInternalName(Interpreter.class);
+  private static final Handle INLINE_CACHE_BOOTSTRAP = new Handle(H_INVOKESTATIC,
+      Type.getInternalName(InlineCache.class), "bootstrap", MethodType.methodType(CallSite.class,
+          MethodHandles.Lookup.class, String.class, MethodType.class, String.class, int.class)
+          .toMethodDescriptorString(), false);
+  private static final String OO_O = "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+  private static final String RENDER_DESCRIPTOR = Type.getMethodDescriptor(Type.VOID_TYPE,
+      Type.getType(Interpreter.class), Type.getType(Map.class), Type.getType(TemplateOutput.class));
+
+  private static final String FRAGMENT_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(TemplateOutput.class),
+      Type.getType(Object.class), Type.getType(Object.class), Type.getType(TemplateOutput.class));
+
+  private static final int INTERPRETER_SLOT = 1;
+  private static final int VARS_SLOT = 2;
+  private static final int OUT_SLOT = 3;
+  private static final int CONSTANTS_SLOT = 4;
+  private static final int FIRST_LOCAL_SLOT = 5;
+
+  private static final AtomicLong classCounter = new AtomicLong();
+
+  private TemplateClassCompiler() {
+  }
+
+  /**
+   * @throws IllegalStateException if the template cannot or should not be compiled
+   */
+  static CompiledTemplate compile(OpcodeSequence opcodeSequence) {
+    String className = "net/moznion/jakotem/vm/GeneratedTemplate$" + classCounter.incrementAndGet();
+    byte[] bytes = generate(className, opcodeSequence);
+    Class<?> generated = new TemplateClassLoader(TemplateClassCompiler.class.getClassLoader())
+        .define(className.replace('/', '.'), bytes);
+    try {
+      return (CompiledTemplate) generated.getConstructor(Object[].class)
+          .newInstance((Object) opcodeSequence.getConstants());
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Cannot instantiate " + className, e);
+    }
+  }
+
+  static byte[] generate(String className, OpcodeSequence opcodeSequence) {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+      @Override
+      protected String getCommonSuperClass(String type1, String type2) {
+        // template values are only ever used as Object
+        return OBJECT;
+      }
+    };
+    cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, OBJECT,
+        new String[] {Type.getInternalName(CompiledTemplate.class)});
+    cw.visitField(ACC_PRIVATE | ACC_FINAL, "constants", "[Ljava/lang/Object;", null, null).visitEnd();
+
+    MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", null, null);
+    init.visitCode();
+    init.visitVarInsn(ALOAD, 0);
+    init.visitMethodInsn(INVOKESPECIAL, OBJECT, "<init>", "()V", false);
+    init.visitVarInsn(ALOAD, 0);
+    init.visitVarInsn(ALOAD, 1);
+    init.visitFieldInsn(PUTFIELD, className, "constants", "[Ljava/lang/Object;");
+    init.visitInsn(RETURN);
+    init.visitMaxs(0, 0);
+    init.visitEnd();
+
+    MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "render", RENDER_DESCRIPTOR, null, null);
+    Label end = new MethodGenerator(className, opcodeSequence, mv).generate();
+    byte[] bytes = cw.toByteArray();
+    if (end.getOffset() > HUGE_METHOD_LIMIT) {
+      throw new IllegalStateException("Template is too large to compile: " + end.getOffset() + " bytes");
+    }
+    return bytes;
+  }
+
+  private static final class MethodGenerator {
+    private final String className;
+    private final int[] code;
+    private final Object[] constants;
+    private final MethodVisitor mv;
+    private final int localCount;
+    private final int firstTempSlot;
+    private final Label[] labels;
+
+    private MethodGenerator(String className, OpcodeSequence opcodeSequence, MethodVisitor mv) {
+      this.className = className;
+      this.code = opcodeSequence.getCode();
+      this.constants = opcodeSequence.getConstants();
+      this.mv = mv;
+      this.localCount = opcodeSequence.getLocalCount();
+      // Object local per slot, then int loop index per slot, then temporaries for call arguments
+      this.firstTempSlot = FIRST_LOCAL_SLOT + localCount * 2;
+      this.labels = new Label[code.length + 1];
+    }
+
+    Label generate() {
+      int maxArgc = collectLabels();
+
+      mv.visitCode();
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitFieldInsn(GETFIELD, className, "constants", "[Ljava/lang/Object;");
+      mv.visitVarInsn(ASTORE, CONSTANTS_SLOT);
+      // locals must be definitely assigned for the verifier
+      for (int i = 0; i < localCount; i++) {
+        mv.visitInsn(ACONST_NULL);
+        mv.visitVarInsn(ASTORE, FIRST_LOCAL_SLOT + i);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, indexSlot(i));
+      }
+      for (int i = 0; i < maxArgc; i++) {
+        mv.visitInsn(ACONST_NULL);
+        mv.visitVarInsn(ASTORE, firstTempSlot + i);
+      }
+
+      for (int pc = 0; pc < code.length; pc += 1 + Opcode.operandCount(code[pc])) {
+        if (labels[pc] != null) {
+          mv.visitLabel(labels[pc]);
+        }
+        instruction(pc);
+      }
+
+      Label end = labelAt(code.length);
+      mv.visitLabel(end);
+      mv.visitInsn(RETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+      return end;
+    }
+
+    private int collectLabels() {
+      int maxArgc = 0;
+      for (int pc = 0; pc < code.length; pc += 1 + Opcode.operandCount(code[pc])) {
+        switch (code[pc]) {
+          case Opcode.JUMP:
+          case Opcode.JUMP_IF_FALSE:
+          case Opcode.JUMP_IF_FALSE_OR_POP:
+          case Opcode.JUMP_IF_TRUE_OR_POP:
+          case Opcode.JUMP_IF_NOT_NIL_OR_POP:
+            labelAt(code[pc + 1]);
+            break;
+          case Opcode.ITER_NEXT:
+            labelAt(code[pc + 3]);
+            break;
+          case Opcode.CACHE_BEGIN:
+            labelAt(code[pc + 1]);
+            break;
+          case Opcode.CALL_FUNCTION:
+            maxArgc = Math.max(maxArgc, code[pc + 2]);
+            break;
+          case Opcode.MAKE_ARRAY:
+            maxArgc = Math.max(maxArgc, code[pc + 1]);
+            break;
+          default:
+            break;
+        }
+      }
+      return maxArgc;
+    }
+
+    private Label labelAt(int pc) {
+      if (labels[pc] == null) {
+        labels[pc] = new Label();
+      }
+      return labels[pc];
+    }
+
+    private int indexSlot(int local) {
+      return FIRST_LOCAL_SLOT + localCount + local;
+    }
+
+    private void instruction(int pc) {
+      switch (code[pc]) {
+        case Opcode.RAW:
+          mv.visitVarInsn(ALOAD, OUT_SLOT);
+          pushInt(code[pc + 1]);
+          mv.visitMethodInsn(INVOKEVIRTUAL, OUTPUT, "writeRaw", "(I)V", false);
+          break;
+        case Opcode.PRINT:
+          mv.visitVarInsn(ALOAD, OUT_SLOT);
+          mv.visitInsn(SWAP);
+          mv.visitMethodInsn(INVOKEVIRTUAL, OUTPUT, "print", "(Ljava/lang/Object;)V", false);
+          break;
+        case Opcode.BLOCK_END:
+          mv.visitVarInsn(ALOAD, OUT_SLOT);
+          loadConstant(code[pc + 1]);
+          mv.visitTypeInsn(CHECKCAST, STRING);
+          mv.visitMethodInsn(INVOKEVIRTUAL, OUTPUT, "endBlock", "(Ljava/lang/String;)V", false);
+          break;
+        case Opcode.CACHE_BEGIN: {
+          // key, ttl -> interpreter, key, ttl
+          mv.visitVarInsn(ALOAD, INTERPRETER_SLOT);
+          mv.visitInsn(DUP_X2);
+          mv.visitInsn(POP);
+          mv.visitVarInsn(ALOAD, OUT_SLOT);
+          mv.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "beginFragment", FRAGMENT_DESCRIPTOR, false);
+          Label miss = new Label();
+          mv.visitInsn(DUP);
+          mv.visitJumpInsn(IFNONNULL, miss);
+          mv.visitInsn(POP);
+          mv.visitJumpInsn(GOTO, labels[code[pc + 1]]);
+          mv.visitLabel(miss);
+          mv.visitVarInsn(ASTORE, OUT_SLOT);
+          break;
+        }
+        case Opcode.CACHE_END:
+          mv.visitVarInsn(ALOAD, INTERPRETER_SLOT);
+          mv.visitVarInsn(ALOAD, OUT_SLOT);
+          mv.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "endFragment",
+              "(" + Type.getDescriptor(TemplateOutput.class) + ")" + Type.getDescriptor(TemplateOutput.class), false);
+          mv.visitVarInsn(ASTORE, OUT_SLOT);
+          break;
+        case Opcode.PUSH_CONST:
+          loadConstant(code[pc + 1]);
+          break;
+        case Opcode.PUSH_NIL:
+          mv.visitInsn(ACONST_NULL);
+          break;
+        case Opcode.PUSH_TRUE:
+          mv.visitFieldInsn(GETSTATIC, BOOLEAN, "TRUE", "Ljava/lang/Boolean;");
+          break;
+        case Opcode.PUSH_FALSE:
+          mv.visitFieldInsn(GETSTATIC, BOOLEAN, "FALSE", "Ljava/lang/Boolean;");
+          break;
+        case Opcode.POP:
+          mv.visitInsn(POP);
+          break;
+        case Opcode.DUP:
+          mv.visitInsn(DUP);
+          break;
+        case Opcode.LOAD_VAR:
+          mv.visitVarInsn(ALOAD, VARS_SLOT);
+          loadConstant(code[pc + 1]);
+          mv.visitMethodInsn(INVOKEINTERFACE, "java/util/Map", "get", "(Ljava/lang/Object;)Ljava/lang/Object;",
+              true);
+          break;
+        case Opcode.LOAD_VARS:
+          mv.visitVarInsn(ALOAD, VARS_SLOT);
+          break;
+        case Opcode.LOAD_LOCAL:
+          mv.visitVarInsn(ALOAD, FIRST_LOCAL_SLOT + code[pc + 1]);
+          break;
+        case Opcode.STORE_LOCAL:
+          mv.visitVarInsn(ASTORE, FIRST_LOCAL_SLOT + code[pc + 1]);
+          break;
+        case Opcode.ADD:
+          binary("add");
+          break;
+        case Opcode.SUB:
+          binary("sub");
+          break;
+        case Opcode.MUL:
+          binary("mul");
+          break;
+        case Opcode.DIV:
+          binary("div");
+          break;
+        case Opcode.MOD:
+          binary("mod");
+          break;
+        case Opcode.NEG:
+          mv.visitMethodInsn(INVOKESTATIC, OPERATORS, "neg", "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+          break;
+        case Opcode.BIT_AND:
+          binary("bitAnd");
+          break;
+        case Opcode.BIT_OR:
+          binary("bitOr");
+          break;
+        case Opcode.BIT_XOR:
+          binary("bitXor");
+          break;
+        case Opcode.CONCAT:
+          mv.visitMethodInsn(INVOKESTATIC, OPERATORS, "concat",
+              "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/String;", false);
+          break;
+        case Opcode.EQ:
+        case Opcode.NE:
+          mv.visitMethodInsn(INVOKESTATIC, OPERATORS, "equals", "(Ljava/lang/Object;Ljava/lang/Object;)Z", false);
+          if (code[pc] == Opcode.NE) {
+            negate();
+          }
+          box();
+          break;
+        case Opcode.LT:
+          comparison(IFGE);
+          break;
+        case Opcode.LE:
+          comparison(IFGT);
+          break;
+        case Opcode.GT:
+          comparison(IFLE);
+          break;
+        case Opcode.GE:
+          comparison(IFLT);
+          break;
+        case Opcode.NOT:
+          isTrue();
+          negate();
+          box();
+          break;
+        case Opcode.MIN:
+          binary("min");
+          break;
+        case Opcode.MAX:
+          binary("max");
+          break;
+        case Opcode.JUMP:
+          mv.visitJumpInsn(GOTO, labels[code[pc + 1]]);
+          break;
+        case Opcode.JUMP_IF_FALSE:
+          isTrue();
+          mv.visitJumpInsn(IFEQ, labels[code[pc + 1]]);
+          break;
+        case Opcode.JUMP_IF_FALSE_OR_POP:
+          mv.visitInsn(DUP);
+          isTrue();
+          mv.visitJumpInsn(IFEQ, labels[code[pc + 1]]);
+          mv.visitInsn(POP);
+          break;
+        case Opcode.JUMP_IF_TRUE_OR_POP:
+          mv.visitInsn(DUP);
+          isTrue();
+          mv.visitJumpInsn(IFNE, labels[code[pc + 1]]);
+          mv.visitInsn(POP);
+          break;
+        case Opcode.JUMP_IF_NOT_NIL_OR_POP:
+          mv.visitInsn(DUP);
+          mv.visitJumpInsn(IFNONNULL, labels[code[pc + 1]]);
+          mv.visitInsn(POP);
+          break;
+        case Opcode.ITER_INIT:
+          mv.visitMethodInsn(INVOKESTATIC, OPERATORS, "iteration", "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+          mv.visitVarInsn(ASTORE, FIRST_LOCAL_SLOT + code[pc + 1]);
+          mv.visitInsn(ICONST_0);
+          mv.visitVarInsn(ISTORE, indexSlot(code[pc + 1]));
+          break;
+        case Opcode.ITER_NEXT: {
+          int slot = code[pc + 1];
+          mv.visitVarInsn(ALOAD, FIRST_LOCAL_SLOT + slot);
+          mv.visitVarInsn(ILOAD, indexSlot(slot));
+          mv.visitMethodInsn(INVOKESTATIC, OPERATORS, "hasNext", "(Ljava/lang/Object;I)Z", false);
+          mv.visitJumpInsn(IFEQ, labels[code[pc + 3]]);
+          mv.visitVarInsn(ALOAD, FIRST_LOCAL_SLOT + slot);
+          mv.visitVarInsn(ILOAD, indexSlot(slot));
+          mv.visitMethodInsn(INVOKESTATIC, OPERATORS, "next", "(Ljava/lang/Object;I)Ljava/lang/Object;", false);
+          mv.visitVarInsn(ASTORE, FIRST_LOCAL_SLOT + code[pc + 2]);
+          mv.visitIincInsn(indexSlot(slot), 1);
+          break;
+        }
+        case Opcode.GET_ELEMENT:
+          binary("getElement");
+          break;
+        case Opcode.GET_PROPERTY:
+          mv.visitInvokeDynamicInsn("getProperty", MethodType.genericMethodType(1).toMethodDescriptorString(),
+              INLINE_CACHE_BOOTSTRAP, constants[code[pc + 1]], 1);
+          break;
+        case Opcode.CALL_METHOD:
+          // the arguments stay on the operand stack; every site is linked to its own inline cache
+          mv.visitInvokeDynamicInsn("callMethod",
+              MethodType.genericMethodType(code[pc + 2] + 1).toMethodDescriptorString(),
+              INLINE_CACHE_BOOTSTRAP, constants[code[pc + 1]], 0);
+          break;
+        case Opcode.CALL_FUNCTION:
+          spillArguments(code[pc + 2]);
+          mv.visitVarInsn(ALOAD, INTERPRETER_SLOT);
+          loadConstant(code[pc + 1]);
+          mv.visitTypeInsn(CHECKCAST, STRING);
+          loadArguments(code[pc + 2]);
+          mv.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "callFunction",
+              "(Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/Object;", false);
+          break;
+        case Opcode.MAKE_ARRAY:
+          spillArguments(code[pc + 1]);
+          loadArguments(code[pc + 1]);
+          mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(Arrays.class), "asList",
+              "([Ljava/lang/Object;)Ljava/util/List;", false);
+          break;
+        default:
+          throw new IllegalStateException("Unknown opcode " + code[pc] + " at " + pc);
+      }
+    }
+
+    private void loadConstant(int index) {
+      mv.visitVarInsn(ALOAD, CONSTANTS_SLOT);
+      pushInt(index);
+      mv.visitInsn(AALOAD);
+    }
+
+    private void pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        mv.visitInsn(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        mv.visitIntInsn(BIPUSH, value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        mv.visitIntInsn(SIPUSH, value);
+      } else {
+        mv.visitLdcInsn(value);
+      }
+    }
+
+    private void binary(String operator) {
+      mv.visitMethodInsn(INVOKESTATIC, OPERATORS, operator, OO_O, false);
+    }
+
+    private void comparison(int jumpIfFalse) {
+      Label otherwise = new Label();
+      Label end = new Label();
+      mv.visitMethodInsn(INVOKESTATIC, OPERATORS, "compare", "(Ljava/lang/Object;Ljava/lang/Object;)I", false);
+      mv.visitJumpInsn(jumpIfFalse, otherwise);
+      mv.visitFieldInsn(GETSTATIC, BOOLEAN, "TRUE", "Ljava/lang/Boolean;");
+      mv.visitJumpInsn(GOTO, end);
+      mv.visitLabel(otherwise);
+      mv.visitFieldInsn(GETSTATIC, BOOLEAN, "FALSE", "Ljava/lang/Boolean;");
+      mv.visitLabel(end);
+    }
+
+    private void isTrue() {
+      mv.visitMethodInsn(INVOKESTATIC, OPERATORS, "isTrue", "(Ljava/lang/Object;)Z", false);
+    }
+
+    private void negate() {
+      mv.visitInsn(ICONST_1);
+      mv.visitInsn(IXOR);
+    }
+
+    private void box() {
+      mv.visitMethodInsn(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)Ljava/lang/Boolean;", false);
+    }
+
+    // arguments are on top of the stack, but the array has to be created below them
+    private void spillArguments(int argc) {
+      for (int i = argc - 1; i >= 0; i--) {
+        mv.visitVarInsn(ASTORE, firstTempSlot + i);
+      }
+    }
+
+    private void loadArguments(int argc) {
+      pushInt(argc);
+      mv.visitTypeInsn(ANEWARRAY, OBJECT);
+      for (int i = 0; i < argc; i++) {
+        mv.visitInsn(DUP);
+        pushInt(i);
+        mv.visitVarInsn(ALOAD, firstTempSlot + i);
+        mv.visitInsn(AASTORE);
+      }
+    }
+  }
+
+  private static final class TemplateClassLoader extends ClassLoader {
+    private TemplateClassLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    private Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+}
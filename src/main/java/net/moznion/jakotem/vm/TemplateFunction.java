@@ -0,0 +1,9 @@
+package net.moznion.jakotem.vm;
+
+/**
+ * Function callable from templates, either as {@code f(a, b)} or as a pipe, {@code a | f}.
+ */
+@FunctionalInterface
+public interface TemplateFunction {
+  Object call(Object[] args);
+}
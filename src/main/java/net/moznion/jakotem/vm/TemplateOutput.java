@@ -0,0 +1,49 @@
+package net.moznion.jakotem.vm;
+
+import net.moznion.jakotem.OpcodeSequence;
+import net.moznion.jakotem.RawString;
+
+/**
+ * Destination of a render. Static text is addressed by its constant index so that byte oriented outputs can copy
+ * text pre-encoded by {@link OpcodeSequence#getEncodedConstants(java.nio.charset.Charset)}.
+ */
+public abstract class TemplateOutput {
+  Object[] constants;
+  // innermost fragment being rendered on top of this output for the fragment cache
+  FragmentCapture capture;
+
+  void bind(OpcodeSequence opcodeSequence) {
+    constants = opcodeSequence.getConstants();
+  }
+
+  /**
+   * Writes the static text in the constant pool at the index.
+   */
+  public abstract void writeRaw(int constant);
+
+  /**
+   * Writes a dynamic value, escaped unless it is a {@link net.moznion.jakotem.RawString}.
+   */
+  public abstract void print(Object value);
+
+  /**
+   * Writes a fragment stored by the {@link FragmentCache}. The default prints its text without escaping.
+   */
+  public void writeFragment(Fragment fragment) {
+    print(new RawString(fragment.getText()));
+  }
+
+  /**
+   * Called where the content of a block ends. Streaming outputs may flush there; the default does nothing.
+   */
+  public void endBlock(String name) {
+  }
+
+  // lets renders waiting for the fragments of a failed render go on
+  void abandonCaptures() {
+    for (FragmentCapture open = capture; open != null; open = open.enclosing) {
+      open.abandon();
+    }
+    capture = null;
+  }
+}
@@ -0,0 +1,81 @@
+package net.moznion.jakotem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import net.moznion.jakotem.kolon.KolonSyntax;
+import net.moznion.jakotem.vm.Opcode;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class CompiledTemplateStoreTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void shouldLoadStoredTemplateAfterReopen() throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("templates.jkt");
+    byte[] hash = CompiledTemplateStore.contentHash("hello".getBytes(StandardCharsets.UTF_8));
+    KolonSyntax syntax = new KolonSyntax();
+
+    try (CompiledTemplateStore store = CompiledTemplateStore.open(file)) {
+      assertNull(store.get("/tmp/index.tx", syntax, hash));
+      store.put("/tmp/index.tx", syntax, hash, new OpcodeSequence());
+    }
+
+    try (CompiledTemplateStore store = CompiledTemplateStore.open(file)) {
+      assertNotNull(store.get("/tmp/index.tx", syntax, hash));
+      assertNull(store.get("/tmp/index.tx", syntax, CompiledTemplateStore.contentHash(new byte[0])));
+      assertNull(store.get("/tmp/other.tx", syntax, hash));
+      assertNull(store.get("/tmp/index.tx", new KolonSyntax("[%", "%]", "%"), hash));
+    }
+  }
+
+  @Test
+  public void shouldIgnoreCorruptFile() throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("templates.jkt");
+    Files.write(file, new byte[] {0x4a, 0x4b, 0x54, 0x4d, 0, 0, 0, 1, 0x7f, 0, 0, 0, 1, 2, 3});
+    byte[] hash = CompiledTemplateStore.contentHash("hello".getBytes(StandardCharsets.UTF_8));
+    KolonSyntax syntax = new KolonSyntax();
+
+    try (CompiledTemplateStore store = CompiledTemplateStore.open(file)) {
+      assertNull(store.get("/tmp/index.tx", syntax, hash));
+      store.put("/tmp/index.tx", syntax, hash, new OpcodeSequence());
+    }
+
+    try (CompiledTemplateStore store = CompiledTemplateStore.open(file)) {
+      assertNotNull(store.get("/tmp/index.tx", syntax, hash));
+    }
+  }
+
+  @Test
+  public void shouldRoundTripOpcodeSequence() throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("templates.jkt");
+    byte[] hash = CompiledTemplateStore.contentHash("hello".getBytes(StandardCharsets.UTF_8));
+    KolonSyntax syntax = new KolonSyntax();
+
+    OpcodeSequence.Builder builder = OpcodeSequence.builder();
+    builder.emit(Opcode.RAW, builder.constant("Hello, ")).emit(Opcode.LOAD_VAR, builder.constant("name"))
+        .emit(Opcode.PUSH_CONST, builder.constant(1.5)).emit(Opcode.ADD).emit(Opcode.PRINT);
+    OpcodeSequence opcodeSequence = builder.build();
+
+    try (CompiledTemplateStore store = CompiledTemplateStore.open(file)) {
+      store.put("/tmp/index.tx", syntax, hash, opcodeSequence);
+    }
+
+    try (CompiledTemplateStore store = CompiledTemplateStore.open(file)) {
+      OpcodeSequence loaded = store.get("/tmp/index.tx", syntax, hash);
+      assertArrayEquals(opcodeSequence.getCode(), loaded.getCode());
+      assertArrayEquals(opcodeSequence.getConstants(), loaded.getConstants());
+      assertEquals(opcodeSequence.getMaxStack(), loaded.getMaxStack());
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package net.moznion.jakotem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ConcurrentTemplateCacheTest {
+  @Test
+  public void shouldCountHitsAndMisses() {
+    ConcurrentTemplateCache cache = new ConcurrentTemplateCache(2);
+    OpcodeSequence opcodeSequence = new OpcodeSequence();
+    assertNull(cache.get("a"));
+    cache.set("a", opcodeSequence);
+    assertSame(opcodeSequence, cache.get("a"));
+
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  @Test
+  public void shouldEvictLessFrequentlyUsedTemplate() {
+    ConcurrentTemplateCache cache = new ConcurrentTemplateCache(2);
+    cache.set("hot", new OpcodeSequence());
+    cache.set("cold", new OpcodeSequence());
+    for (int i = 0; i < 5; i++) {
+      cache.get("hot");
+    }
+
+    cache.set("new", new OpcodeSequence());
+
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    assertNotNull(cache.get("hot"));
+    assertNull(cache.get("cold"));
+    assertNotNull(cache.get("new"));
+  }
+
+  @Test
+  public void shouldRemoveTemplate() {
+    ConcurrentTemplateCache cache = new ConcurrentTemplateCache(2);
+    cache.set("a", new OpcodeSequence());
+    cache.set("b", new OpcodeSequence());
+    cache.remove("a");
+    cache.set("c", new OpcodeSequence());
+
+    assertEquals(2, cache.size());
+    assertEquals(0, cache.getEvictionCount());
+    assertNull(cache.get("a"));
+    assertNotNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+  }
+}
@@ -0,0 +1,246 @@
+package net.moznion.jakotem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.moznion.jakotem.kolon.KolonSyntax;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+public class JakotemTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void shouldWarmUpAllTemplates() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    Files.createDirectories(includePath.resolve("user"));
+    Files.write(includePath.resolve("index.tx"), "hello <: name :>".getBytes(StandardCharsets.UTF_8));
+    Files.write(includePath.resolve("user/show.tx"), ": user".getBytes(StandardCharsets.UTF_8));
+    Files.write(includePath.resolve("broken.tx"), "<: name".getBytes(StandardCharsets.UTF_8));
+    Files.write(includePath.resolve("README"), "not a template".getBytes(StandardCharsets.UTF_8));
+
+    ConcurrentTemplateCache cache = new ConcurrentTemplateCache(10);
+    Jakotem jakotem = Jakotem.builder()
+        .templateLoader(new TemplateLoader(Collections.singletonList(includePath), cache))
+        .warmUpPool(new ForkJoinPool(2))
+        .build();
+
+    KolonSyntax syntax = new KolonSyntax();
+    WarmUpReport report = jakotem.warmUp();
+    assertEquals(3, report.getResults().size());
+    assertFalse(report.isSuccessful());
+    assertEquals(report.toString(), 1, report.getFailures().size());
+    assertEquals("broken.tx", report.getFailures().get(0).getFileName());
+
+    assertNotNull(cache.get(TemplateLoader.cacheKey(syntax, includePath + "/index.tx")));
+    assertNotNull(cache.get(TemplateLoader.cacheKey(syntax, includePath + "/user/show.tx")));
+    assertNull(cache.get(TemplateLoader.cacheKey(syntax, includePath + "/README")));
+    assertEquals(1, jakotem.warmUp(fileName -> fileName.startsWith("user/")).getResults().size());
+  }
+
+  @Test
+  public void shouldWarmUpTemplatesInManifest() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    Files.write(includePath.resolve("index.tx"), "hello".getBytes(StandardCharsets.UTF_8));
+    Files.write(includePath.resolve("other.tx"), "hello".getBytes(StandardCharsets.UTF_8));
+
+    ConcurrentTemplateCache cache = new ConcurrentTemplateCache(10);
+    Jakotem jakotem = Jakotem.builder()
+        .templateLoader(new TemplateLoader(Collections.singletonList(includePath), cache))
+        .build();
+
+    KolonSyntax syntax = new KolonSyntax();
+    WarmUpReport report = jakotem.warmUp(Arrays.asList("index.tx", "missing.tx"));
+    assertEquals(2, report.getResults().size());
+    assertEquals("missing.tx", report.getFailures().get(0).getFileName());
+    assertNotNull(cache.get(TemplateLoader.cacheKey(syntax, includePath + "/index.tx")));
+    assertNull(cache.get(TemplateLoader.cacheKey(syntax, includePath + "/other.tx")));
+  }
+
+  @Test
+  public void shouldRenderBatchInOrderWithBackpressure() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    Files.write(includePath.resolve("item.tx"), "<: 12 / n :>".getBytes(StandardCharsets.UTF_8));
+    Jakotem jakotem = Jakotem.builder()
+        .templateLoader(new TemplateLoader(Collections.singletonList(includePath), new ConcurrentTemplateCache(10)))
+        .build();
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      int maxInFlight = 3;
+      List<String> outputs = new ArrayList<>();
+      List<Map<String, Object>> failures = new ArrayList<>();
+      int[] read = new int[1];
+      Iterator<Map<String, Object>> contexts = new Iterator<Map<String, Object>>() {
+        @Override
+        public boolean hasNext() {
+          return read[0] < 100;
+        }
+
+        @Override
+        public Map<String, Object> next() {
+          assertTrue(read[0] - outputs.size() - failures.size() <= maxInFlight);
+          return Collections.singletonMap("n", read[0]++ % 4);
+        }
+      };
+
+      BatchReport report = jakotem.renderBatch("item.tx", () -> contexts,
+          BatchOptions.builder().executor(executor).maxInFlight(maxInFlight).build(),
+          new BatchConsumer<Map<String, Object>>() {
+            @Override
+            public void accept(Map<String, Object> context, CharSequence output) {
+              outputs.add(output.toString());
+            }
+
+            @Override
+            public void failed(Map<String, Object> context, RuntimeException error) {
+              assertTrue(error instanceof RenderException);
+              failures.add(context);
+              outputs.add("!");
+            }
+          });
+
+      assertEquals(75, report.getRenderedCount());
+      assertEquals(25, report.getFailedCount());
+      assertFalse(report.isSuccessful());
+      assertEquals(100, outputs.size());
+      for (int i = 0; i < 100; i++) {
+        assertEquals(i % 4 == 0 ? "!" : String.valueOf(12 / (i % 4)), outputs.get(i));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldRenderBatchUnordered() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    Files.write(includePath.resolve("item.tx"), "<: n :>".getBytes(StandardCharsets.UTF_8));
+    Jakotem jakotem = Jakotem.builder()
+        .templateLoader(new TemplateLoader(Collections.singletonList(includePath), new ConcurrentTemplateCache(10)))
+        .build();
+
+    Set<String> outputs = new HashSet<>();
+    BatchReport report = jakotem.renderBatch("item.tx",
+        IntStream.range(0, 1000).mapToObj(i -> Collections.singletonMap("n", i)),
+        BatchOptions.builder().ordered(false).maxInFlight(8).build(),
+        (context, output) -> assertTrue(outputs.add(output.toString())));
+
+    assertTrue(report.isSuccessful());
+    assertEquals(1000, report.getRenderedCount());
+    assertEquals(1000, outputs.size());
+    assertTrue(outputs.contains("999"));
+  }
+
+  @Test
+  public void shouldReportCheckedRenderFailures() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    Files.write(includePath.resolve("item.tx"), "<: n :>".getBytes(StandardCharsets.UTF_8));
+    Jakotem jakotem = Jakotem.builder()
+        .templateLoader(new TemplateLoader(Collections.singletonList(includePath), new ConcurrentTemplateCache(10)))
+        .build();
+
+    Map<String, Object> broken = new HashMap<String, Object>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public Object get(Object key) {
+        return JakotemTest.<RuntimeException>sneakyThrow(new IOException("broken"));
+      }
+    };
+    List<Throwable> failures = new ArrayList<>();
+    BatchReport report = jakotem.renderBatch("item.tx", Arrays.asList(broken, Collections.singletonMap("n", 1)),
+        BatchOptions.builder().maxInFlight(2).build(),
+        new BatchConsumer<Map<String, ?>>() {
+          @Override
+          public void accept(Map<String, ?> context, CharSequence output) {
+          }
+
+          @Override
+          public void failed(Map<String, ?> context, RuntimeException error) {
+            failures.add(error);
+          }
+        });
+
+    assertEquals(1, report.getRenderedCount());
+    assertEquals(1, report.getFailedCount());
+    assertTrue(failures.get(0) instanceof RenderException);
+    assertTrue(failures.get(0).getCause() instanceof IOException);
+  }
+
+  @Test
+  public void shouldFinishRendersInFlightOnRejection() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    Files.write(includePath.resolve("item.tx"), "<: n :>".getBytes(StandardCharsets.UTF_8));
+    Jakotem jakotem = Jakotem.builder()
+        .templateLoader(new TemplateLoader(Collections.singletonList(includePath), new ConcurrentTemplateCache(10)))
+        .build();
+
+    AtomicInteger finished = new AtomicInteger();
+    Map<String, Object> slow = new HashMap<String, Object>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public Object get(Object key) {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        finished.incrementAndGet();
+        return 1;
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    AtomicInteger submitted = new AtomicInteger();
+    try {
+      jakotem.renderBatch("item.tx", Collections.nCopies(10, slow),
+          BatchOptions.builder().maxInFlight(4).executor(task -> {
+            if (submitted.incrementAndGet() > 3) {
+              throw new RejectedExecutionException();
+            }
+            executor.execute(task);
+          }).build(),
+          (context, output) -> {
+          });
+      fail();
+    } catch (RejectedExecutionException e) {
+      // the three renders submitted before the rejection have finished
+      assertEquals(3, finished.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <E extends Throwable> Object sneakyThrow(Throwable e) throws E {
+    throw (E) e;
+  }
+}
@@ -0,0 +1,147 @@
+package net.moznion.jakotem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.moznion.jakotem.vm.Interpreter;
+import net.moznion.jakotem.vm.Opcode;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class NodeCompilerTest {
+  @Test
+  public void shouldResolveLoopVariablesToLocals() {
+    // : for items -> item { <: item ~ (x * 2) :>
+    // :   for item.children -> child { [<: child ~ item ~ x :>] : } : }<: item :>
+    Node ast = new Node();
+    int inner = ast.add(NodeType.FOR, "child", 2, ast.add(NodeType.ELEMENT, null, 2, variable(ast, "item"),
+        string(ast, "children")), block(ast, ast.add(NodeType.RAW, "[", 2),
+            ast.add(NodeType.PRINT, null, 2, ast.add(NodeType.CONCAT, null, 2,
+                ast.add(NodeType.CONCAT, null, 2, variable(ast, "child"), variable(ast, "item")),
+                variable(ast, "x"))),
+            ast.add(NodeType.RAW, "]", 2)));
+    int body = block(ast,
+        ast.add(NodeType.PRINT, null, 1, ast.add(NodeType.CONCAT, null, 1, variable(ast, "item"),
+            ast.add(NodeType.MUL, null, 1, variable(ast, "x"), integer(ast, 2)))),
+        inner);
+    ast.appendChild(Node.ROOT, ast.add(NodeType.FOR, "item", 1, variable(ast, "items"), body));
+    ast.appendChild(Node.ROOT, ast.add(NodeType.PRINT, null, 3, variable(ast, "item")));
+
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("items", Arrays.asList(Collections.singletonMap("children", Arrays.asList("a", "b")),
+        Collections.singletonMap("children", Collections.emptyList())));
+    vars.put("x", 3L);
+    vars.put("item", "<outer>");
+
+    String expected = "{children=[a, b]}6[a{children=[a, b]}3][b{children=[a, b]}3]{children=[]}6&lt;outer&gt;";
+    for (Node tree : new Node[] {ast, NodeOptimizer.optimize(ast)}) {
+      OpcodeSequence seq = NodeCompiler.compile(tree);
+      assertEquals(expected, new Interpreter(Collections.emptyMap(), Interpreter.NEVER_COMPILE).render(seq, vars));
+      assertEquals(expected, new Interpreter(Collections.emptyMap(), 0).render(seq, vars));
+      assertEquals(1, count(seq, Opcode.LOAD_VAR, "item"));
+      assertEquals(2, count(seq, Opcode.LOAD_VAR, "x"));
+    }
+  }
+
+  @Test
+  public void shouldCompileStatementsAndExpressions() {
+    // : switch user.role { : case "admin" { <: user->greet("root") :> : } : default { guest : } }
+    // : if missing { never : } |<: user.name // "?" :>|<: user.admin ? [1, 2][1] : -1 :>
+    Node ast = new Node();
+    ast.appendChild(Node.ROOT, ast.add(NodeType.SWITCH, null, 1, property(ast, "user", "role"),
+        ast.add(NodeType.CASE, null, 1, string(ast, "admin"), block(ast, ast.add(NodeType.PRINT, null, 1,
+            ast.add(NodeType.METHOD_CALL, "greet", 1, variable(ast, "user"), string(ast, "root"))))),
+        ast.add(NodeType.DEFAULT, null, 1, block(ast, ast.add(NodeType.RAW, "guest", 1)))));
+    ast.appendChild(Node.ROOT, ast.add(NodeType.IF, null, 2, variable(ast, "missing"),
+        block(ast, ast.add(NodeType.RAW, "never", 2))));
+    ast.appendChild(Node.ROOT, ast.add(NodeType.RAW, "|", 2));
+    ast.appendChild(Node.ROOT, ast.add(NodeType.PRINT, null, 2, ast.add(NodeType.NULL_OR, null, 2,
+        property(ast, "user", "name"), string(ast, "?"))));
+    ast.appendChild(Node.ROOT, ast.add(NodeType.RAW, "|", 2));
+    ast.appendChild(Node.ROOT, ast.add(NodeType.PRINT, null, 2, ast.add(NodeType.CONDITIONAL, null, 2,
+        property(ast, "user", "admin"),
+        ast.add(NodeType.ELEMENT, null, 2, ast.add(NodeType.ARRAY, null, 2, integer(ast, 1), integer(ast, 2)),
+            integer(ast, 1)),
+        ast.add(NodeType.NEG, null, 2, integer(ast, 1)))));
+
+    OpcodeSequence seq = NodeCompiler.compile(ast);
+    assertEquals(4, seq.getInlineCaches().length);
+    Interpreter interpreter = new Interpreter(Collections.emptyMap(), Interpreter.NEVER_COMPILE);
+    assertEquals("Hello, root|&lt;admin&gt;|2",
+        interpreter.render(seq, Collections.singletonMap("user", new User("<admin>", true))));
+    assertEquals("guest|?|-1",
+        interpreter.render(seq, Collections.singletonMap("user", new User(null, false))));
+    assertFalse(seq.getInlineCaches()[0].isMegamorphic());
+  }
+
+  @Test
+  public void shouldInternParameterNames() {
+    Node ast = new Node();
+    ast.appendChild(Node.ROOT, ast.add(NodeType.PRINT, null, 1, variable(ast, new String("name"))));
+    OpcodeSequence seq = NodeCompiler.compile(ast);
+    assertTrue(seq.getConstants()[seq.getCode()[1]] == "name");
+  }
+
+  public static class User {
+    private final String name;
+    private final boolean admin;
+
+    public User(String name, boolean admin) {
+      this.name = name;
+      this.admin = admin;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public boolean isAdmin() {
+      return admin;
+    }
+
+    public String getRole() {
+      return admin ? "admin" : "guest";
+    }
+
+    public String greet(String whom) {
+      return "Hello, " + whom;
+    }
+  }
+
+  private static int count(OpcodeSequence seq, int opcode, String constant) {
+    int count = 0;
+    int[] code = seq.getCode();
+    for (int pc = 0; pc < code.length; pc += 1 + Opcode.operandCount(code[pc])) {
+      if (code[pc] == opcode && constant.equals(seq.getConstants()[code[pc + 1]])) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static int property(Node ast, String variable, String name) {
+    return ast.add(NodeType.ELEMENT, null, 1, variable(ast, variable), string(ast, name));
+  }
+
+  private static int integer(Node ast, long value) {
+    return ast.add(NodeType.INTEGER, value, 1);
+  }
+
+  private static int string(Node ast, String value) {
+    return ast.add(NodeType.STRING, value, 1);
+  }
+
+  private static int variable(Node ast, String name) {
+    return ast.add(NodeType.VARIABLE, name, 1);
+  }
+
+  private static int block(Node ast, int... statements) {
+    return ast.add(NodeType.STATEMENTS, null, 1, statements);
+  }
+}
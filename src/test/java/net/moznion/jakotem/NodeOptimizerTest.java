@@ -0,0 +1,139 @@
+package net.moznion.jakotem;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class NodeOptimizerTest {
+  @Test
+  public void shouldFoldConstants() {
+    // <: 60 * 60 :>|<: 0x10 + 1.5 :>|<: "a" ~ 1 + 2 :>|<: x + (1 + 2) :>|<: 1 / 0 :>|<: "<" ~ "b" :>
+    Node ast = new Node();
+    print(ast, ast.add(NodeType.MUL, null, 1, integer(ast, 60), integer(ast, 60)));
+    raw(ast, "|");
+    print(ast, ast.add(NodeType.ADD, null, 1, integer(ast, 16), ast.add(NodeType.DOUBLE, 1.5, 1)));
+    raw(ast, "|");
+    print(ast, ast.add(NodeType.CONCAT, null, 1, string(ast, "a"),
+        ast.add(NodeType.ADD, null, 1, integer(ast, 1), integer(ast, 2))));
+    raw(ast, "|");
+    print(ast, ast.add(NodeType.ADD, null, 1, variable(ast, "x"),
+        ast.add(NodeType.ADD, null, 1, integer(ast, 1), integer(ast, 2))));
+    raw(ast, "|");
+    print(ast, ast.add(NodeType.DIV, null, 1, integer(ast, 1), integer(ast, 0)));
+    raw(ast, "|");
+    print(ast, ast.add(NodeType.CONCAT, null, 1, string(ast, "<"), string(ast, "b")));
+
+    assertEquals("(TEMPLATE (RAW \"3600|17.5|a3|\") (PRINT (ADD (VARIABLE \"x\") (INTEGER 3)))"
+        + " (RAW \"|\") (PRINT (DIV (INTEGER 1) (INTEGER 0))) (RAW \"|&lt;b\"))",
+        NodeOptimizer.optimize(ast).toString());
+  }
+
+  @Test
+  public void shouldFoldLogicalOperators() {
+    // <: x && 0 :><: 0 && x :><: 1 && x :><: nil // x :><: "" || x :><: 1 ? x : y :><: !(1 < 2) :>
+    Node ast = new Node();
+    print(ast, ast.add(NodeType.AND, null, 1, variable(ast, "x"), integer(ast, 0)));
+    print(ast, ast.add(NodeType.AND, null, 1, integer(ast, 0), variable(ast, "x")));
+    print(ast, ast.add(NodeType.AND, null, 1, integer(ast, 1), variable(ast, "x")));
+    print(ast, ast.add(NodeType.NULL_OR, null, 1, ast.add(NodeType.NIL, null, 1), variable(ast, "x")));
+    print(ast, ast.add(NodeType.OR, null, 1, string(ast, ""), variable(ast, "x")));
+    print(ast, ast.add(NodeType.CONDITIONAL, null, 1, integer(ast, 1), variable(ast, "x"), variable(ast, "y")));
+    print(ast, ast.add(NodeType.NOT, null, 1, ast.add(NodeType.LT, null, 1, integer(ast, 1), integer(ast, 2))));
+
+    assertEquals("(TEMPLATE (PRINT (AND (VARIABLE \"x\") (INTEGER 0))) (RAW \"0\") (PRINT (VARIABLE \"x\"))"
+        + " (PRINT (VARIABLE \"x\")) (PRINT (VARIABLE \"x\")) (PRINT (VARIABLE \"x\")) (RAW \"false\"))",
+        NodeOptimizer.optimize(ast).toString());
+  }
+
+  @Test
+  public void shouldDropDeadBranchesAndMergeRaw() {
+    // a<:# comment :>b : if 1 { c : } else { <: x :> : } : if 0 { d : } : while 0 { e : }
+    // : switch 2 { : case 1 { f : } : case 2 { g : } }
+    Node ast = new Node();
+    raw(ast, "a");
+    raw(ast, "");
+    raw(ast, "b");
+    ast.appendChild(Node.ROOT, ast.add(NodeType.IF, null, 1, integer(ast, 1), block(ast, ast.add(NodeType.RAW, "c", 1)),
+        block(ast, ast.add(NodeType.PRINT, null, 1, variable(ast, "x")))));
+    ast.appendChild(Node.ROOT, ast.add(NodeType.IF, null, 1, integer(ast, 0), block(ast, ast.add(NodeType.RAW, "d", 1))));
+    ast.appendChild(Node.ROOT, ast.add(NodeType.WHILE, null, 1, integer(ast, 0),
+        block(ast, ast.add(NodeType.RAW, "e", 1))));
+    ast.appendChild(Node.ROOT, ast.add(NodeType.SWITCH, null, 1, integer(ast, 2),
+        ast.add(NodeType.CASE, null, 1, integer(ast, 1), block(ast, ast.add(NodeType.RAW, "f", 1))),
+        ast.add(NodeType.CASE, null, 1, integer(ast, 2), block(ast, ast.add(NodeType.RAW, "g", 1)))));
+    raw(ast, "h");
+
+    assertEquals("(TEMPLATE (RAW \"abcgh\"))", NodeOptimizer.optimize(ast).toString());
+  }
+
+  @Test
+  public void shouldHoistLoopInvariants() {
+    // : for items -> item { <: item ~ (x * 2) :><: f(x) :><: y / 2 :><: y / z :>
+    // :   for item.children -> child { <: child ~ item ~ x :> : } : }
+    Node ast = new Node();
+    int inner = ast.add(NodeType.FOR, "child", 2, ast.add(NodeType.ELEMENT, null, 2, variable(ast, "item"),
+        string(ast, "children")), block(ast, ast.add(NodeType.PRINT, null, 2, ast.add(NodeType.CONCAT, null, 2,
+            ast.add(NodeType.CONCAT, null, 2, variable(ast, "child"), variable(ast, "item")), variable(ast, "x")))));
+    int body = block(ast,
+        ast.add(NodeType.PRINT, null, 1, ast.add(NodeType.CONCAT, null, 1, variable(ast, "item"),
+            ast.add(NodeType.MUL, null, 1, variable(ast, "x"), integer(ast, 2)))),
+        ast.add(NodeType.PRINT, null, 1, ast.add(NodeType.FUNCTION_CALL, "f", 1, variable(ast, "x"))),
+        ast.add(NodeType.PRINT, null, 1, ast.add(NodeType.DIV, null, 1, variable(ast, "y"), integer(ast, 2))),
+        ast.add(NodeType.PRINT, null, 1, ast.add(NodeType.DIV, null, 1, variable(ast, "y"), variable(ast, "z"))),
+        inner);
+    ast.appendChild(Node.ROOT, ast.add(NodeType.FOR, "item", 1, variable(ast, "items"), body));
+
+    assertEquals("(TEMPLATE (FOR \"item\" (VARIABLE \"items\") (STATEMENTS"
+        + " (PRINT (CONCAT (VARIABLE \"item\") (MUL (VARIABLE \"%1\") (INTEGER 2))))"
+        + " (PRINT (FUNCTION_CALL \"f\" (VARIABLE \"%2\")))"
+        + " (PRINT (DIV (VARIABLE \"%3\") (INTEGER 2)))"
+        + " (PRINT (DIV (VARIABLE \"%4\") (VARIABLE \"%5\")))"
+        + " (FOR \"child\" (ELEMENT (VARIABLE \"item\") (STRING \"children\"))"
+        + " (STATEMENTS (PRINT (CONCAT (CONCAT (VARIABLE \"child\") (VARIABLE \"item\")) (VARIABLE \"%0\"))))))"
+        + " (LET \"%1\" (VARIABLE \"x\"))"
+        + " (LET \"%2\" (VARIABLE \"x\"))"
+        + " (LET \"%3\" (VARIABLE \"y\"))"
+        + " (LET \"%4\" (VARIABLE \"y\"))"
+        + " (LET \"%5\" (VARIABLE \"z\"))"
+        + " (LET \"%0\" (VARIABLE \"x\"))))",
+        NodeOptimizer.optimize(ast).toString());
+  }
+
+  @Test
+  public void shouldNotHoistUserVariables() {
+    // : for items -> item { : if item { : my $c = 1; <: c :> : } }
+    Node ast = new Node();
+    int branch = block(ast, ast.add(NodeType.LET, "c", 1, integer(ast, 1)),
+        ast.add(NodeType.PRINT, null, 1, variable(ast, "c")));
+    int body = block(ast, ast.add(NodeType.IF, null, 1, variable(ast, "item"), branch));
+    ast.appendChild(Node.ROOT, ast.add(NodeType.FOR, "item", 1, variable(ast, "items"), body));
+
+    assertEquals("(TEMPLATE (FOR \"item\" (VARIABLE \"items\") (STATEMENTS (IF (VARIABLE \"item\")"
+        + " (STATEMENTS (LET \"c\" (INTEGER 1)) (PRINT (VARIABLE \"c\")))))))",
+        NodeOptimizer.optimize(ast).toString());
+  }
+
+  private static int integer(Node ast, long value) {
+    return ast.add(NodeType.INTEGER, value, 1);
+  }
+
+  private static int string(Node ast, String value) {
+    return ast.add(NodeType.STRING, value, 1);
+  }
+
+  private static int variable(Node ast, String name) {
+    return ast.add(NodeType.VARIABLE, name, 1);
+  }
+
+  private static int block(Node ast, int... statements) {
+    return ast.add(NodeType.STATEMENTS, null, 1, statements);
+  }
+
+  private static void print(Node ast, int expression) {
+    ast.appendChild(Node.ROOT, ast.add(NodeType.PRINT, null, 1, expression));
+  }
+
+  private static void raw(Node ast, String text) {
+    ast.appendChild(Node.ROOT, ast.add(NodeType.RAW, text, 1));
+  }
+}
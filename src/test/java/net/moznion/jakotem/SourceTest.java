@@ -0,0 +1,38 @@
+package net.moznion.jakotem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class SourceTest {
+  @Test
+  public void shouldResolveOffsetsToLinesAndColumns() {
+    Source source = Source.fromString("ab\r\n\ncd\n");
+    assertEquals(1, source.getLineNumber(0));
+    assertEquals(1, source.getLineNumber(3));
+    assertEquals(2, source.getLineNumber(4));
+    assertEquals(3, source.getLineNumber(5));
+    assertEquals(2, source.getColumnNumber(6));
+    // the end of the text is on the last line
+    assertEquals(3, source.getLineNumber(8));
+    assertEquals(4, source.getColumnNumber(8));
+  }
+
+  @Test
+  public void shouldServeLinesFromTheText() throws Exception {
+    StringBuilder text = new StringBuilder("1\n2\n3\n4\n5\n6");
+    Source source = Source.fromFile("/nonexistent/foo.tx");
+    assertSame(source, source.withText(text));
+    assertSame(source, source.withText(text));
+    assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6"), source.getSourceLines());
+    assertEquals("  1\n* 2\n  3\n  4\n", source.getTargetLines(2));
+    assertEquals("  4\n  5\n* 6\n", source.getTargetLines(6));
+
+    Source other = source.withText("x\ny");
+    assertEquals(Arrays.asList("x", "y"), other.getSourceLines());
+    assertEquals(2, other.getLineNumber(2));
+  }
+}
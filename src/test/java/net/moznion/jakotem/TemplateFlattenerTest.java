@@ -0,0 +1,130 @@
+package net.moznion.jakotem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import net.moznion.jakotem.kolon.KolonSyntax;
+import net.moznion.jakotem.vm.Interpreter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+public class TemplateFlattenerTest {
+  private static final KolonSyntax SYNTAX = new KolonSyntax();
+
+  private final Map<String, String> templates = new HashMap<>();
+  private final Interpreter interpreter = new Interpreter();
+
+  private Node parse(String fileName) throws IllegalSyntaxException {
+    String template = templates.get(fileName);
+    if (template == null) {
+      throw new IllegalSyntaxException("No " + fileName);
+    }
+    Source source = Source.fromString(template);
+    return SYNTAX.parse(source, SYNTAX.tokenCursor(source, template));
+  }
+
+  private String render(String fileName, Map<String, ?> vars) throws IllegalSyntaxException {
+    Node ast = TemplateFlattener.flatten(fileName, parse(fileName), this::parse);
+    Source source = Source.fromString(templates.get(fileName));
+    return interpreter.render(SYNTAX.compile(source, SYNTAX.optimize(source, ast)), vars);
+  }
+
+  @Test
+  public void shouldFlattenThreeLevelsOfCascade() throws IllegalSyntaxException {
+    templates.put("base.tx", "<html><: block title -> { :>Site<: } :>|"
+        + "<: block body -> { :>empty<: } :>|<: block footer -> { :>(c)<: } :></html>");
+    templates.put("layout.tx", ": cascade base\n"
+        + "ignored\n"
+        + "<: around title -> { :>Layout - <: super :><: } :>\n"
+        + "<: block body -> { :>[<: block content -> { :>none<: } :>]<: } :>\n");
+    templates.put("page.tx", ": cascade \"layout.tx\"\n"
+        + "<: around title -> { :><: name :> / <: super :><: super :><: } :>\n"
+        + "<: before content -> { :>(<: } :>\n"
+        + "<: block content -> { for items -> item { :><: item :><: } } :>\n"
+        + "<: after content -> { :>)<: } :>\n"
+        + "<: after footer -> { :> 2024<: } :>\n");
+
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("name", "Top");
+    vars.put("items", Arrays.asList(1, 2));
+    assertEquals("<html>Top / Layout - SiteLayout - Site|[(12)]|(c) 2024</html>", render("page.tx", vars));
+    assertEquals("<html>Layout - Site|[none]|(c)</html>", render("layout.tx", vars));
+  }
+
+  @Test
+  public void shouldInlineIncludes() throws IllegalSyntaxException {
+    templates.put("item.tx", "<li><: item :></li>");
+    templates.put("list.tx", "<ul><: for items -> item { include item :><: } :></ul>");
+    templates.put("index.tx", ": cascade base\n: block body -> { include \"list.tx\" }\n");
+    templates.put("base.tx", "<body><: block body -> { } :></body>");
+
+    assertEquals("<body><ul><li>a</li><li>b</li></ul></body>",
+        render("index.tx", Collections.singletonMap("items", Arrays.asList("a", "b"))));
+  }
+
+  @Test
+  public void shouldCacheFragmentsOfBlocksAndIncludes() throws IllegalSyntaxException {
+    templates.put("list.tx", "<: for items -> item { :><: item :><: } :>");
+    templates.put("base.tx", "<: block nav cache(\"nav\", 60) -> { :>nav<: } :>|<: include list cache(\"list\", 60) :>");
+    templates.put("page.tx", ": cascade base\n<: block nav -> { for items -> item { :>(<: item :>)<: } } :>\n");
+
+    assertEquals("(a)(b)|ab", render("page.tx", Collections.singletonMap("items", Arrays.asList("a", "b"))));
+    assertEquals("(a)(b)|ab", render("page.tx", Collections.singletonMap("items", Arrays.asList("c"))));
+    interpreter.getFragmentCache().invalidate("nav");
+    assertEquals("(c)|ab", render("page.tx", Collections.singletonMap("items", Arrays.asList("c"))));
+
+    templates.put("bad.tx", ": cascade base\n: block nav cache(\"other\", 60) -> { }\n");
+    try {
+      render("bad.tx", Collections.emptyMap());
+      fail();
+    } catch (IllegalSyntaxException e) {
+      assertEquals("'cache' must be declared where the block is defined at line 2 in bad.tx", e.getMessage());
+    }
+  }
+
+  @Test
+  public void shouldKeepTemplatesWithoutInheritance() throws IllegalSyntaxException {
+    templates.put("plain.tx", "<: block body -> { :>x<: } :>");
+    Node ast = parse("plain.tx");
+    assertSame(ast, TemplateFlattener.flatten("plain.tx", ast, this::parse));
+  }
+
+  @Test
+  public void shouldReportErrors() {
+    templates.put("base.tx", "<: block body -> { } :>");
+    templates.put("self.tx", "<: include self :>");
+    templates.put("loop.tx", ": cascade loop\n");
+    templates.put("unknown.tx", ": cascade base\n: around missing -> { }\n");
+    templates.put("super.tx", ": cascade base\n: before body -> { super }\n");
+    templates.put("orphan.tx", ": after body -> { }\n");
+
+    assertError("self.tx", "Recursive cascade or include of self.tx");
+    assertError("loop.tx", "Recursive cascade or include of loop.tx");
+    assertError("unknown.tx", "Block 'missing' is not defined in base.tx at line 2 in unknown.tx");
+    assertError("super.tx", "'super' outside of 'around' at line 2 in super.tx");
+    assertError("orphan.tx", "'after' must be at the top level of a cascading template at line 1 in orphan.tx");
+
+    try {
+      render("super.tx", Collections.emptyMap());
+      fail();
+    } catch (IllegalSyntaxException e) {
+      assertEquals(Optional.of("  : cascade base\n* : before body -> { super }\n\n"), e.getSourceContext());
+    }
+  }
+
+  private void assertError(String fileName, String message) {
+    try {
+      render(fileName, Collections.emptyMap());
+      fail();
+    } catch (IllegalSyntaxException e) {
+      assertEquals(message, e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,262 @@
+package net.moznion.jakotem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.moznion.jakotem.kolon.KolonSyntax;
+import net.moznion.jakotem.vm.Interpreter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.RuntimeErrorException;
+
+public class TemplateLoaderTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static class CountingSyntax extends KolonSyntax {
+    private final AtomicInteger compileCount = new AtomicInteger();
+    private final Set<Thread> arrived = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch allArrived;
+
+    CountingSyntax(int threads) {
+      this.allArrived = new CountDownLatch(threads);
+    }
+
+    @Override
+    public int hashCode() {
+      // every compile looks up the resolved templates of its syntax first
+      if (arrived.add(Thread.currentThread())) {
+        allArrived.countDown();
+      }
+      return super.hashCode();
+    }
+
+    @Override
+    public OpcodeSequence compile(Source source, Node ast) throws IllegalSyntaxException {
+      compileCount.incrementAndGet();
+      try {
+        // hold the compile until every thread has missed the cache
+        allArrived.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return super.compile(source, ast);
+    }
+  }
+
+  @Test
+  public void shouldCompileOnceOnConcurrentMisses() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    Files.write(includePath.resolve("index.tx"), "hello <: name :>".getBytes(StandardCharsets.UTF_8));
+
+    CountingSyntax syntax = new CountingSyntax(8);
+    ConcurrentTemplateCache cache = new ConcurrentTemplateCache(10);
+    TemplateLoader loader = new TemplateLoader(Collections.singletonList(includePath), cache);
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<OpcodeSequence>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(() -> loader.compile("index.tx", syntax)));
+      }
+
+      OpcodeSequence first = futures.get(0).get();
+      for (Future<OpcodeSequence> future : futures) {
+        assertSame(first, future.get());
+      }
+      assertEquals(1, syntax.compileCount.get());
+      // the re-check of the compiling thread is not a miss of its own
+      assertEquals(8, cache.getMissCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void shouldCacheTemplatesPerSyntax() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    Files.write(includePath.resolve("index.tx"), "<: 1 + 1 :>[% 2 + 2 %]".getBytes(StandardCharsets.UTF_8));
+
+    ConcurrentTemplateCache cache = new ConcurrentTemplateCache(10);
+    TemplateLoader loader = new TemplateLoader(Collections.singletonList(includePath), cache);
+    Interpreter interpreter = new Interpreter();
+    OpcodeSequence kolon = loader.compile("index.tx", new KolonSyntax());
+    OpcodeSequence brackets = loader.compile("index.tx", new KolonSyntax("[%", "%]", "%"));
+
+    assertEquals("2[% 2 + 2 %]", interpreter.render(kolon, Collections.emptyMap()));
+    assertEquals("<: 1 + 1 :>4", interpreter.render(brackets, Collections.emptyMap()));
+    assertSame(kolon, loader.compile("index.tx", new KolonSyntax()));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void shouldRecompileModifiedTemplate() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    Path template = includePath.resolve("index.tx");
+    Files.write(template, "hello".getBytes(StandardCharsets.UTF_8));
+
+    TemplateLoader loader = new TemplateLoader(Collections.singletonList(includePath),
+        new ConcurrentTemplateCache(10), CacheMode.CHECK_MODIFIED, Duration.ZERO);
+    KolonSyntax syntax = new KolonSyntax();
+    OpcodeSequence first = loader.compile("index.tx", syntax);
+    assertSame(first, loader.compile("index.tx", syntax));
+
+    Files.write(template, "hello, world".getBytes(StandardCharsets.UTF_8));
+    assertNotSame(first, loader.compile("index.tx", syntax));
+  }
+
+  @Test
+  public void shouldRecompileDependentsOfModifiedLayout() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    Path base = includePath.resolve("base.tx");
+    Files.write(base, "<: block body -> { } :>|v1".getBytes(StandardCharsets.UTF_8));
+    Files.write(includePath.resolve("layout.tx"), ": cascade base\n".getBytes(StandardCharsets.UTF_8));
+    Files.write(includePath.resolve("page.tx"),
+        ": cascade layout\n<: block body -> { include part } :>".getBytes(StandardCharsets.UTF_8));
+    Files.write(includePath.resolve("part.tx"), "part".getBytes(StandardCharsets.UTF_8));
+    Files.write(includePath.resolve("other.tx"), "other".getBytes(StandardCharsets.UTF_8));
+
+    TemplateLoader loader = new TemplateLoader(Collections.singletonList(includePath),
+        new ConcurrentTemplateCache(10), CacheMode.CHECK_MODIFIED, Duration.ZERO);
+    KolonSyntax syntax = new KolonSyntax();
+    Interpreter interpreter = new Interpreter();
+    OpcodeSequence page = loader.compile("page.tx", syntax);
+    OpcodeSequence other = loader.compile("other.tx", syntax);
+    assertEquals("part|v1", interpreter.render(page, Collections.emptyMap()));
+    assertSame(page, loader.compile("page.tx", syntax));
+
+    Files.write(base, "<: block body -> { } :>|v2!".getBytes(StandardCharsets.UTF_8));
+    OpcodeSequence recompiled = loader.compile("page.tx", syntax);
+    assertNotSame(page, recompiled);
+    assertEquals("part|v2!", interpreter.render(recompiled, Collections.emptyMap()));
+    assertSame(other, loader.compile("other.tx", syntax));
+  }
+
+  @Test
+  public void shouldEvictDeletedTemplateInWatchMode() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    Path template = includePath.resolve("index.tx");
+    Files.write(template, "hello".getBytes(StandardCharsets.UTF_8));
+
+    ConcurrentTemplateCache cache = new ConcurrentTemplateCache(10);
+    try (TemplateLoader loader = new TemplateLoader(Collections.singletonList(includePath), cache,
+        CacheMode.WATCH)) {
+      loader.compile("index.tx", new KolonSyntax());
+      assertEquals(1, cache.size());
+
+      Files.delete(template);
+      for (int i = 0; i < 100 && cache.size() > 0; i++) {
+        Thread.sleep(50);
+      }
+      assertNull(cache.get(TemplateLoader.cacheKey(new KolonSyntax(), template.toString())));
+    }
+  }
+
+  @Test
+  public void shouldResolveTemplateOnceAcrossIncludePaths() throws Exception {
+    Path first = temporaryFolder.newFolder("first").toPath();
+    Path second = temporaryFolder.newFolder("second").toPath();
+    Files.write(second.resolve("index.tx"), "hello".getBytes(StandardCharsets.UTF_8));
+
+    ConcurrentTemplateCache cache = new ConcurrentTemplateCache(10);
+    TemplateLoader loader = new TemplateLoader(Arrays.asList(first, second), cache);
+    KolonSyntax syntax = new KolonSyntax();
+    OpcodeSequence opcodeSequence = loader.compile("index.tx", syntax);
+    long misses = cache.getMissCount();
+
+    assertSame(opcodeSequence, loader.compile("index.tx", syntax));
+    assertEquals(misses, cache.getMissCount());
+  }
+
+  @Test
+  public void shouldRememberMissingTemplate() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    TemplateLoader loader = TemplateLoader.builder()
+        .includePaths(Collections.singletonList(includePath))
+        .templateCache(new ConcurrentTemplateCache(10))
+        .missingTemplateTtl(Duration.ofHours(1))
+        .build();
+    KolonSyntax syntax = new KolonSyntax();
+
+    try {
+      loader.compile("index.tx", syntax);
+      fail();
+    } catch (RuntimeErrorException e) {
+      // not found
+    }
+
+    Files.write(includePath.resolve("index.tx"), "hello".getBytes(StandardCharsets.UTF_8));
+    try {
+      loader.compile("index.tx", syntax);
+      fail();
+    } catch (RuntimeErrorException e) {
+      // still remembered as missing
+    }
+
+    loader.scanIncludePaths(syntax);
+    loader.compile("index.tx", syntax);
+  }
+
+  @Test
+  public void shouldDecodeTemplateWithConfiguredCharset() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    StringBuilder large = new StringBuilder();
+    while (large.length() < 100 * 1024) {
+      large.append("こんにちは <: name :>\n");
+    }
+    Charset shiftJis = Charset.forName("Shift_JIS");
+    Files.write(includePath.resolve("small.tx"), "こんにちは".getBytes(shiftJis));
+    Files.write(includePath.resolve("large.tx"), large.toString().getBytes(shiftJis));
+    Files.write(includePath.resolve("broken.tx"), new byte[] {(byte) 0x82});
+
+    List<String> sources = new ArrayList<>();
+    KolonSyntax syntax = new KolonSyntax() {
+      @Override
+      public TokenCursor tokenCursor(Source source, CharSequence src) {
+        sources.add(src.toString());
+        return super.tokenCursor(source, src);
+      }
+    };
+    TemplateLoader loader = TemplateLoader.builder()
+        .includePaths(Collections.singletonList(includePath))
+        .templateCache(new ConcurrentTemplateCache(10))
+        .charsetDecoder(shiftJis::newDecoder)
+        .build();
+
+    loader.compile("small.tx", syntax);
+    loader.compile("large.tx", syntax);
+    assertEquals(Arrays.asList("こんにちは", large.toString()), sources);
+
+    try {
+      loader.compile("broken.tx", syntax);
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage().startsWith("Cannot load"));
+    }
+  }
+}
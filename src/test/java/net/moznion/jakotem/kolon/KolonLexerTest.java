@@ -0,0 +1,134 @@
+package net.moznion.jakotem.kolon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.moznion.jakotem.Source;
+import net.moznion.jakotem.Token;
+import net.moznion.jakotem.TokenBuffer;
+import net.moznion.jakotem.TokenCursor;
+import net.moznion.jakotem.TokenType;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class KolonLexerTest {
+  private static List<Token> tokenize(String src) {
+    return new KolonSyntax().tokenize(Source.fromString(src), src);
+  }
+
+  private static List<TokenType> types(String src) {
+    return tokenize(src).stream().map(Token::getType).collect(Collectors.toList());
+  }
+
+  private static List<String> strings(String src) {
+    return tokenize(src).stream().map(t -> t.getTokenString().orElse(null)).collect(Collectors.toList());
+  }
+
+  @Test
+  public void shouldMatchKeywordsOnFullIdentifier() {
+    assertEquals(Arrays.asList(TokenType.OPEN, TokenType.IDENT, TokenType.FOR, TokenType.IDENT, TokenType.CLOSE),
+        types("<: format for iff :>"));
+    assertEquals(Arrays.asList(null, "format", null, "iff", null), strings("<: format for iff :>"));
+  }
+
+  @Test
+  public void shouldTokenizeNumbers() {
+    assertEquals(Arrays.asList(TokenType.OPEN, TokenType.INTEGER, TokenType.INTEGER, TokenType.DOUBLE,
+        TokenType.HEX, TokenType.OCTAL, TokenType.BINARY, TokenType.CLOSE),
+        types("<: 0 123 1.5 0xFf 017 0b101 :>"));
+    assertEquals(Arrays.asList(null, "0", "123", "1.5", "0xFf", "017", "0b101", null),
+        strings("<: 0 123 1.5 0xFf 017 0b101 :>"));
+  }
+
+  @Test
+  public void shouldTokenizePositionTokens() {
+    assertEquals(Arrays.asList(TokenType.OPEN, TokenType.FILE, TokenType.LINE, TokenType.ROOT, TokenType.CLOSE),
+        types("<: __FILE__ __LINE__ __ROOT__ :>"));
+  }
+
+  @Test
+  public void shouldTokenizeConditionalAndConcat() {
+    assertEquals(Arrays.asList(TokenType.OPEN, TokenType.IDENT, TokenType.CONDITIONAL, TokenType.STRING,
+        TokenType.CONDITIONAL_SELECTOR, TokenType.IDENT, TokenType.CONCAT, TokenType.IDENT, TokenType.CLOSE),
+        types("<: a ? \"b\" : c ~ d :>"));
+  }
+
+  @Test
+  public void shouldEmitRawAsSingleSlice() {
+    List<Token> tokens = tokenize("<html>\n<body>\n<: x :>\n</body><:# comment\n:></html>\n");
+    assertEquals(Arrays.asList(TokenType.RAW, TokenType.OPEN, TokenType.IDENT, TokenType.CLOSE, TokenType.RAW,
+        TokenType.RAW), tokens.stream().map(Token::getType).collect(Collectors.toList()));
+    assertEquals("<html>\n<body>\n", tokens.get(0).getTokenString().get());
+    assertEquals("\n</body>", tokens.get(4).getTokenString().get());
+    assertEquals("</html>\n", tokens.get(5).getTokenString().get());
+    assertEquals(Arrays.asList(1, 3, 3, 3, 3, 5),
+        tokens.stream().map(Token::getLineNumber).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void shouldTokenizeCodeLines() {
+    assertEquals(Arrays.asList(TokenType.OPEN, TokenType.FOR, TokenType.IDENT, TokenType.ARROW, TokenType.IDENT,
+        TokenType.LBRACE, TokenType.CLOSE, TokenType.RAW, TokenType.OPEN, TokenType.RBRACE, TokenType.CLOSE),
+        types(": for items -> item {\n<li>a: b</li>\n  : }"));
+  }
+
+  @Test
+  public void shouldHonorCustomDelimiters() {
+    String src = "a [% x %] b\n%% y\nc";
+    List<Token> tokens = new KolonSyntax("[%", "%]", "%%").tokenize(Source.fromString(src), src);
+    assertEquals(Arrays.asList(TokenType.RAW, TokenType.OPEN, TokenType.IDENT, TokenType.CLOSE, TokenType.RAW,
+        TokenType.OPEN, TokenType.IDENT, TokenType.CLOSE, TokenType.RAW),
+        tokens.stream().map(Token::getType).collect(Collectors.toList()));
+    assertEquals(" b\n", tokens.get(4).getTokenString().get());
+    assertEquals("c", tokens.get(8).getTokenString().get());
+    assertEquals(3, tokens.get(8).getLineNumber());
+  }
+
+  @Test
+  public void shouldUnescapeStrings() {
+    assertEquals(Arrays.asList(null, "a\tb\nc\"d\\", null), strings("<: \"a\\tb\\nc\\\"d\\\\\" :>"));
+  }
+
+  @Test
+  public void shouldStreamTokensFromCharSequenceAndReader() throws IOException {
+    String src = "a<: x + 1 :>\n: y\nb";
+    List<Token> expected = tokenize(src);
+
+    KolonSyntax syntax = new KolonSyntax();
+    TokenCursor fromCharSequence = syntax.tokenCursor(Source.fromString(src), new StringBuilder(src));
+    List<Token> actual = new ArrayList<>();
+    while (fromCharSequence.next()) {
+      actual.add(fromCharSequence.getToken());
+    }
+    assertEquals(expected, actual);
+
+    TokenCursor fromReader = syntax.tokenCursor(Source.fromString(src), new StringReader(src));
+    actual.clear();
+    while (fromReader.next()) {
+      actual.add(fromReader.getToken());
+    }
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void shouldFillTokenBuffer() {
+    String src = "<p>\n<: \"a\\tb\" ~ \"c\" ~ name :></p>\n: for items -> item {\n";
+    Source source = Source.fromFile("/tmp/foo.tx");
+    List<Token> expected = new KolonSyntax().tokenize(source, src);
+
+    TokenBuffer buffer = new KolonSyntax().tokenizeToBuffer(source, src);
+    assertEquals(expected.size(), buffer.size());
+    for (int i = 0; i < buffer.size(); i++) {
+      assertEquals(expected.get(i), buffer.getToken(i));
+    }
+    assertTrue(buffer.tokenStringEquals(6, "name"));
+    assertTrue(buffer.tokenStringEquals(2, "a\tb"));
+  }
+}
@@ -0,0 +1,204 @@
+package net.moznion.jakotem.kolon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.moznion.jakotem.IllegalSyntaxException;
+import net.moznion.jakotem.Node;
+import net.moznion.jakotem.Source;
+import net.moznion.jakotem.vm.Interpreter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+public class KolonParserTest {
+  private static final KolonSyntax SYNTAX = new KolonSyntax();
+
+  private static Node parse(String template) throws IllegalSyntaxException {
+    Source source = Source.fromString(template);
+    return SYNTAX.parse(source, SYNTAX.tokenCursor(source, template));
+  }
+
+  private static String render(String template, Map<String, ?> vars) throws IllegalSyntaxException {
+    Source source = Source.fromString(template);
+    Node ast = SYNTAX.parse(source, SYNTAX.tokenizeToBuffer(source, template));
+    return new Interpreter().render(SYNTAX.compile(source, SYNTAX.optimize(source, ast)), vars);
+  }
+
+  @Test
+  public void shouldParseOperatorPrecedence() throws IllegalSyntaxException {
+    assertEquals("(TEMPLATE (PRINT (ADD (VARIABLE \"a\") (MUL (VARIABLE \"b\") (VARIABLE \"c\"))))"
+        + " (PRINT (SUB (SUB (INTEGER 1) (INTEGER 2)) (INTEGER 3)))"
+        + " (PRINT (NE (NOT (VARIABLE \"empty\")) (TRUE)))"
+        + " (PRINT (NULL_OR (OR (AND (VARIABLE \"x\") (VARIABLE \"y\")) (VARIABLE \"z\")) (STRING \"none\")))"
+        + " (PRINT (CONDITIONAL (VARIABLE \"a\") (INTEGER 1) (CONDITIONAL (VARIABLE \"b\") (INTEGER 2) (INTEGER 3))))"
+        + " (PRINT (FUNCTION_CALL \"join\" (VARIABLE \"values\") (STRING \",\")))"
+        + " (PRINT (NEG (METHOD_CALL \"c\" (ELEMENT (ELEMENT (VARIABLE \"a\") (STRING \"b\")) (INTEGER 0))"
+        + " (INTEGER 1)))))",
+        parse("<: a + b * c :><: 1 - 2 - 3 :><: !empty != true :><: x && y || z // \"none\" :>"
+            + "<: a ? 1 : b ? 2 : 3 :><: values | join(\",\") :><: -$a.b[0]->c(1) :>").toString());
+    assertEquals("(TEMPLATE (PRINT (MUL (ADD (INTEGER 1) (INTEGER 2)) (INTEGER 3)))"
+        + " (PRINT (MAX (VARIABLE \"a\") (VARIABLE \"b\"))) (PRINT (ARRAY (INTEGER 31) (INTEGER 15) (INTEGER 5)))"
+        + " (PRINT (BIT_OR (DOUBLE 1.5) (BIT_AND (INTEGER 2) (INTEGER 3)))))",
+        parse("<: (1 + 2) * 3 :><: max(a, b) :><: [0x1F, 017, 0b101] :><: 1.5 +| 2 +& 3 :>").toString());
+  }
+
+  @Test
+  public void shouldParseBlocksAcrossTagsAndCodeLines() throws IllegalSyntaxException {
+    String template = "<ul>\n"
+        + ": for $items -> $item {\n"
+        + "<li><: $item.name :></li>\n"
+        + ": if $item.stock == 0 {\n"
+        + "sold out\n"
+        + ": } else if $item.stock < 3 {\n"
+        + "few\n"
+        + "<: } else { :>\nin stock<: } :>\n"
+        + ": }\n"
+        + "</ul>\n";
+    assertEquals("(TEMPLATE (RAW \"<ul>\n\")"
+        + " (FOR \"item\" (VARIABLE \"items\") (STATEMENTS (RAW \"<li>\")"
+        + " (PRINT (ELEMENT (VARIABLE \"item\") (STRING \"name\"))) (RAW \"</li>\n\")"
+        + " (IF (EQ (ELEMENT (VARIABLE \"item\") (STRING \"stock\")) (INTEGER 0)) (STATEMENTS (RAW \"sold out\n\"))"
+        + " (STATEMENTS (IF (LT (ELEMENT (VARIABLE \"item\") (STRING \"stock\")) (INTEGER 3))"
+        + " (STATEMENTS (RAW \"few\n\")) (STATEMENTS (RAW \"\nin stock\")))))"
+        + " (RAW \"\n\"))) (RAW \"</ul>\n\"))",
+        parse(template).toString());
+
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("items", Arrays.asList(item("a", 0), item("b", 2), item("c", 5)));
+    assertEquals("<ul>\n<li>a</li>\nsold out\n\n<li>b</li>\nfew\n\n<li>c</li>\n\nin stock\n</ul>\n",
+        render(template, vars));
+  }
+
+  @Test
+  public void shouldParseCacheClauses() throws IllegalSyntaxException {
+    assertEquals("(TEMPLATE (CACHE (CONCAT (STRING \"nav:\") (VARIABLE \"lang\")) (INTEGER 60)"
+        + " (BLOCK \"nav\" (STATEMENTS (RAW \"menu\"))))"
+        + " (CACHE (STRING \"footer\") (INTEGER 300) (INCLUDE \"footer.tx\")))",
+        parse("<: block nav cache(\"nav:\" ~ $lang, 60) -> { :>menu<: } :><: include footer cache(\"footer\", 300) :>")
+            .toString());
+
+    try {
+      parse("<: around nav cache(\"nav\", 60) -> { :><: } :>");
+      fail();
+    } catch (IllegalSyntaxException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("'cache' is only allowed on 'block' and 'include'"));
+    }
+  }
+
+  @Test
+  public void shouldParseSwitch() throws IllegalSyntaxException {
+    String template = ": switch kind {\n: case 1 {\none\n: }\n: default {\nother\n: }\n: case 2 {\ntwo\n: }\n: }\n";
+    assertEquals("(TEMPLATE (SWITCH (VARIABLE \"kind\") (CASE (INTEGER 1) (STATEMENTS (RAW \"one\n\")))"
+        + " (DEFAULT (STATEMENTS (RAW \"other\n\"))) (CASE (INTEGER 2) (STATEMENTS (RAW \"two\n\")))))",
+        parse(template).toString());
+    assertEquals("two\n", render(template, Collections.singletonMap("kind", 2L)));
+    assertEquals("other\n", render(template, Collections.singletonMap("kind", 3L)));
+  }
+
+  @Test
+  public void shouldParseRoot() throws IllegalSyntaxException {
+    assertEquals("(TEMPLATE (PRINT (ELEMENT (VARS) (STRING \"name\"))) (PRINT (ELEMENT (VARS) (VARIABLE \"key\"))))",
+        parse("<: __ROOT__.name :><: __ROOT__[$key] :>").toString());
+
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("name", "jakotem");
+    vars.put("key", "name");
+    assertEquals("jakotem", render("<: __ROOT__[$key] :>", vars));
+  }
+
+  @Test
+  public void shouldNotEvaluateSkippedExpressionsOfLoops() throws IllegalSyntaxException {
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("items", Arrays.asList(1L, 2L));
+    vars.put("show", false);
+    vars.put("x", new Object() {
+      @Override
+      public String toString() {
+        throw new IllegalStateException("evaluated");
+      }
+    });
+    assertEquals("12", render(": for $items -> $item {\n<: $item :>\n: if $show {\n<: $x ~ \"!\" :><: $x == \"a\" :>\n"
+        + ": }\n: }\n", vars).replace("\n", ""));
+  }
+
+  @Test
+  public void shouldScaleOnDeepNestingAndLargeSwitches() throws IllegalSyntaxException {
+    StringBuilder nested = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      nested.append("<: if x { :>");
+    }
+    for (int i = 0; i < 20000; i++) {
+      nested.append("<: } :>");
+    }
+    assertEquals(1 + 20000 * 3, parse(nested.toString()).size());
+
+    StringBuilder cases = new StringBuilder(": switch x {\n");
+    for (int i = 0; i < 20000; i++) {
+      cases.append(": case ").append(i).append(" {\n").append(i).append("\n: }\n");
+    }
+    cases.append(": }\n");
+    Node ast = parse(cases.toString());
+    assertEquals(20001, ast.getChildCount(ast.getFirstChild(Node.ROOT)));
+
+    StringBuilder parentheses = new StringBuilder("<: ");
+    for (int i = 0; i < KolonParser.MAX_EXPRESSION_DEPTH; i++) {
+      parentheses.append('(');
+    }
+    parentheses.append("1");
+    for (int i = 0; i < KolonParser.MAX_EXPRESSION_DEPTH; i++) {
+      parentheses.append(')');
+    }
+    assertSyntaxError(parentheses.append(" :>").toString(), "Expression is nested too deeply at line 1");
+  }
+
+  @Test
+  public void shouldReportSyntaxErrors() {
+    assertSyntaxError("<: if x { :>\n\n", "Missing '}' for the block opened at line 1");
+    assertSyntaxError("a\n: }\n", "Unexpected '}' at line 2");
+    assertSyntaxError("<: a b :>", "Unexpected IDENT 'b' at line 1");
+    assertSyntaxError("<: 1 + :>", "Unexpected CLOSE at line 1");
+    assertSyntaxError(": switch x {\nfoo\n: }", "Unexpected text in switch at line 2");
+    assertSyntaxError("<: f(1 :>", "Expected RPAREN but got CLOSE at line 1");
+
+    try {
+      parse("a\nb\n<: 1 +\n* :>\nc\nd\ne\n");
+      fail();
+    } catch (IllegalSyntaxException e) {
+      assertEquals(4, e.getLineNumber());
+      assertEquals(Optional.of("  b\n  <: 1 +\n* * :>\n  c\n  d\n"), e.getSourceContext());
+    }
+  }
+
+  @Test
+  public void shouldResolveNodeLinesFromOffsets() throws IllegalSyntaxException {
+    Node ast = parse("a\n<: x :>\n: if y {\nb\n: }\n");
+    int print = ast.getChild(Node.ROOT, 1);
+    int ifNode = ast.getChild(Node.ROOT, 3);
+    assertEquals(5, ast.getOffset(print));
+    assertEquals(2, ast.getLineNumber(print));
+    assertEquals(3, ast.getLineNumber(ifNode));
+  }
+
+  private static void assertSyntaxError(String template, String message) {
+    try {
+      parse(template);
+      fail();
+    } catch (IllegalSyntaxException e) {
+      assertEquals(message, e.getMessage());
+    }
+  }
+
+  private static Map<String, Object> item(String name, long stock) {
+    Map<String, Object> item = new HashMap<>();
+    item.put("name", name);
+    item.put("stock", stock);
+    return item;
+  }
+}
@@ -0,0 +1,112 @@
+package net.moznion.jakotem.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.moznion.jakotem.ConcurrentTemplateCache;
+import net.moznion.jakotem.Jakotem;
+import net.moznion.jakotem.TemplateLoader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+public class TemplateMetricsTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void shouldRecordLoaderAndRenderEvents() throws Exception {
+    Path includePath = temporaryFolder.getRoot().toPath();
+    for (String name : new String[] {"a.tx", "b.tx", "c.tx"}) {
+      Files.write(includePath.resolve(name), "héllo <: name :>".getBytes(StandardCharsets.UTF_8));
+    }
+
+    TemplateMetrics metrics = new TemplateMetrics();
+    Jakotem jakotem = Jakotem.builder()
+        .templateLoader(TemplateLoader.builder()
+            .includePaths(Collections.singletonList(includePath))
+            .templateCache(new ConcurrentTemplateCache(2))
+            .metricsListener(metrics)
+            .build())
+        .build();
+
+    assertEquals("héllo x", jakotem.render("a.tx", Collections.singletonMap("name", "x")));
+    assertEquals("héllo y", jakotem.render("a.tx", Collections.singletonMap("name", "y")));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    jakotem.render("b.tx", Collections.singletonMap("name", "z"), out, StandardCharsets.UTF_8);
+    assertEquals("héllo z", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    jakotem.compile("c.tx");
+    try {
+      jakotem.compile("missing.tx");
+      fail();
+    } catch (RuntimeException e) {
+      // expected
+    }
+
+    assertEquals(1, metrics.getCacheHitCount());
+    assertEquals(3, metrics.getCacheMissCount());
+    assertEquals(1, metrics.getCacheEvictionCount());
+    assertEquals(2, metrics.getCacheSize());
+    assertEquals(1, metrics.getResolutionMissCount());
+    assertEquals(3, metrics.getCompileCount());
+    assertEquals(3, metrics.getTokenizeLatency().getCount());
+    assertEquals(3, metrics.getRenderLatency().getCount());
+    assertEquals(2, metrics.getRenders().get("a.tx").getLatency().getCount());
+    assertEquals(14, metrics.getRenders().get("a.tx").getTotalOutputChars());
+    assertEquals(0, metrics.getRenders().get("a.tx").getTotalOutputBytes());
+    assertEquals(8, metrics.getRenders().get("b.tx").getTotalOutputBytes());
+
+    metrics.reset();
+    assertEquals(0, metrics.getCompileCount());
+    assertTrue(metrics.getRenders().isEmpty());
+  }
+
+  @Test
+  public void shouldPublishOverJmx() throws Exception {
+    TemplateMetrics metrics = new TemplateMetrics();
+    metrics.onCompile("/a.tx", 10, 100, 1000);
+    metrics.onRender("a.tx", 5000, 42);
+
+    ObjectName name = new ObjectName("net.moznion.jakotem:type=TemplateMetrics,name=test");
+    metrics.register(name);
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      assertEquals(1L, server.getAttribute(name, "CompileCount"));
+      assertEquals(-1, server.getAttribute(name, "CacheSize"));
+      CompositeData parse = (CompositeData) server.getAttribute(name, "ParseLatency");
+      assertEquals(100L, parse.get("maxNanos"));
+      TabularData renders = (TabularData) server.getAttribute(name, "Renders");
+      assertEquals(1, renders.size());
+    } finally {
+      metrics.unregister();
+    }
+  }
+
+  @Test
+  public void shouldApproximatePercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i * 1000);
+    }
+    LatencySnapshot snapshot = histogram.snapshot();
+    assertEquals(100, snapshot.getCount());
+    assertEquals(50500, snapshot.getMeanNanos());
+    assertEquals(100000, snapshot.getMaxNanos());
+    assertTrue(snapshot.getMedianNanos() >= 50000 && snapshot.getMedianNanos() < 100000);
+    assertEquals(100000, snapshot.getP99Nanos());
+  }
+}
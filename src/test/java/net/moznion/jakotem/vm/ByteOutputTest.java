@@ -0,0 +1,124 @@
+package net.moznion.jakotem.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import net.moznion.jakotem.OpcodeSequence;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class ByteOutputTest {
+  private static final Charset SHIFT_JIS = Charset.forName("Shift_JIS");
+
+  private final Map<String, ?> vars = Collections.singletonMap("name", "<もずにおん>");
+
+  @Test
+  public void shouldRenderToStream() {
+    for (Interpreter interpreter : interpreters()) {
+      OpcodeSequence seq = greeting("こんにちは、");
+      for (Charset charset : Arrays.asList(StandardCharsets.UTF_8, SHIFT_JIS)) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        interpreter.render(seq, vars, out, charset);
+        assertEquals("こんにちは、&lt;もずにおん&gt;!", new String(out.toByteArray(), charset));
+      }
+    }
+  }
+
+  @Test
+  public void shouldRenderToChannelAcrossBufferBoundaries() {
+    char[] filler = new char[20000];
+    Arrays.fill(filler, 'あ');
+    String raw = new String(filler);
+
+    for (Interpreter interpreter : interpreters()) {
+      OpcodeSequence seq = greeting(raw);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      interpreter.render(seq, vars, Channels.newChannel(out), StandardCharsets.UTF_8);
+      assertEquals(raw + "&lt;もずにおん&gt;!", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void shouldRenderToByteBuffer() {
+    for (Interpreter interpreter : interpreters()) {
+      OpcodeSequence seq = greeting("Hello, ");
+      ByteBuffer buffer = ByteBuffer.allocate(64);
+      buffer.put((byte) '>');
+      interpreter.render(seq, vars, buffer, StandardCharsets.UTF_8);
+      buffer.flip();
+      assertEquals(">Hello, &lt;もずにおん&gt;!", StandardCharsets.UTF_8.decode(buffer).toString());
+
+      try {
+        interpreter.render(seq, vars, ByteBuffer.allocate(10), StandardCharsets.UTF_8);
+        fail();
+      } catch (BufferOverflowException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void shouldStreamChunksWithFlushPoints() {
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    b.emit(Opcode.RAW, b.constant("<head></head>")).emit(Opcode.BLOCK_END, b.constant("head"))
+        .emit(Opcode.LOAD_VAR, b.constant("body")).emit(Opcode.PRINT).emit(Opcode.BLOCK_END, b.constant("body"))
+        .emit(Opcode.RAW, b.constant("!"));
+    OpcodeSequence seq = b.build();
+    char[] body = new char[40];
+    Arrays.fill(body, 'x');
+
+    for (Interpreter interpreter : interpreters()) {
+      List<String> events = new ArrayList<>();
+      ByteOutput output = ByteOutput.to(new ByteOutput.Sink() {
+        @Override
+        public void write(ByteBuffer bytes) {
+          events.add(StandardCharsets.UTF_8.decode(bytes).toString());
+        }
+
+        @Override
+        public void flush() {
+          events.add("FLUSH");
+        }
+      }, StandardCharsets.UTF_8, 16).flushAfter("head"::equals);
+      interpreter.render(seq, Collections.singletonMap("body", new String(body)), new RenderContext(), output);
+      output.flush();
+
+      String x16 = new String(body, 0, 16);
+      assertEquals(Arrays.asList("<head></head>", "FLUSH", x16, x16, "xxxxxxxx!", "FLUSH"), events);
+    }
+  }
+
+  @Test
+  public void shouldCacheEncodedConstants() {
+    OpcodeSequence seq = greeting("Hello, ");
+    byte[][] encoded = seq.getEncodedConstants(StandardCharsets.UTF_8);
+    assertSame(encoded, seq.getEncodedConstants(StandardCharsets.UTF_8));
+  }
+
+  private static Interpreter[] interpreters() {
+    return new Interpreter[] {
+        new Interpreter(Collections.emptyMap(), Interpreter.NEVER_COMPILE),
+        new Interpreter(Collections.emptyMap(), 0),
+    };
+  }
+
+  private static OpcodeSequence greeting(String raw) {
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    b.emit(Opcode.RAW, b.constant(raw)).emit(Opcode.LOAD_VAR, b.constant("name")).emit(Opcode.PRINT)
+        .emit(Opcode.RAW, b.constant("!"));
+    return b.build();
+  }
+}
@@ -0,0 +1,153 @@
+package net.moznion.jakotem.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import net.moznion.jakotem.OpcodeSequence;
+import net.moznion.jakotem.RenderException;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FragmentCacheTest {
+  // [<: block fragment cache($key, $ttl) -> { :><: $value :><: } :>]
+  private static final OpcodeSequence SEQUENCE;
+  static {
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    OpcodeSequence.Label end = b.newLabel();
+    b.emit(Opcode.RAW, b.constant("[")).emit(Opcode.LOAD_VAR, b.constant("key"))
+        .emit(Opcode.LOAD_VAR, b.constant("ttl")).cacheBegin(end).emit(Opcode.LOAD_VAR, b.constant("value"))
+        .emit(Opcode.PRINT).emit(Opcode.BLOCK_END, b.constant("fragment")).emit(Opcode.CACHE_END).place(end)
+        .emit(Opcode.RAW, b.constant("]"));
+    SEQUENCE = b.build();
+  }
+
+  // renders a number that goes up each time the fragment is rendered
+  private static final class Counter {
+    private final AtomicInteger renders = new AtomicInteger();
+    private final long sleepMillis;
+
+    private Counter(long sleepMillis) {
+      this.sleepMillis = sleepMillis;
+    }
+
+    @Override
+    public String toString() {
+      try {
+        Thread.sleep(sleepMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "<" + renders.incrementAndGet() + ">";
+    }
+  }
+
+  @Test
+  public void shouldWriteCachedFragments() throws Exception {
+    for (int compileThreshold : new int[] {Interpreter.NEVER_COMPILE, 0}) {
+      Interpreter interpreter = new Interpreter(Collections.emptyMap(), compileThreshold);
+      FragmentCache cache = interpreter.getFragmentCache();
+      Counter counter = new Counter(0);
+
+      assertEquals("[&lt;1&gt;]", interpreter.render(SEQUENCE, vars("k", 60, counter)));
+      assertEquals("[&lt;1&gt;]", interpreter.render(SEQUENCE, vars("k", 60, counter)));
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      interpreter.render(SEQUENCE, vars("k", 60, counter), out, StandardCharsets.UTF_8);
+      assertEquals("[&lt;1&gt;]", new String(out.toByteArray(), StandardCharsets.UTF_8));
+      assertEquals(2, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+
+      // other keys, no key and no TTL
+      assertEquals("[&lt;2&gt;]", interpreter.render(SEQUENCE, vars("other", 60, counter)));
+      assertEquals("[&lt;3&gt;]", interpreter.render(SEQUENCE, vars(null, 60, counter)));
+      assertEquals("[&lt;4&gt;]", interpreter.render(SEQUENCE, vars("k2", 0, counter)));
+      assertEquals(2, cache.size());
+
+      cache.invalidate("k");
+      assertEquals("[&lt;5&gt;]", interpreter.render(SEQUENCE, vars("k", 0.05, counter)));
+      Thread.sleep(100);
+      assertEquals("[&lt;6&gt;]", interpreter.render(SEQUENCE, vars("k", 60, counter)));
+      assertEquals("[&lt;6&gt;]", interpreter.render(SEQUENCE, vars("k", 60, counter)));
+
+      cache.invalidateIf(key -> key.startsWith("o"));
+      assertEquals("[&lt;7&gt;]", interpreter.render(SEQUENCE, vars("other", 60, counter)));
+      cache.invalidateAll();
+      assertEquals(0, cache.size());
+    }
+  }
+
+  @Test
+  public void shouldRenderMissingFragmentOnce() throws Exception {
+    Interpreter interpreter = new Interpreter();
+    Counter counter = new Counter(200);
+    int threads = 8;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<String>> outputs = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        outputs.add(executor.submit(() -> {
+          start.await();
+          return interpreter.render(SEQUENCE, vars("k", 60, counter));
+        }));
+      }
+      start.countDown();
+      for (Future<String> output : outputs) {
+        assertEquals("[&lt;1&gt;]", output.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, interpreter.getFragmentCache().getMissCount());
+    assertEquals(threads - 1, interpreter.getFragmentCache().getHitCount());
+  }
+
+  @Test
+  public void shouldReleaseFragmentOfFailedRender() {
+    Interpreter interpreter = new Interpreter(Collections.emptyMap(), Interpreter.NEVER_COMPILE,
+        new FragmentCache(2, Duration.ofMillis(100)));
+    Object failing = new Object() {
+      @Override
+      public String toString() {
+        throw new RenderException("failed");
+      }
+    };
+    try {
+      interpreter.render(SEQUENCE, vars("k", 60, failing));
+      fail();
+    } catch (RenderException e) {
+      // expected
+    }
+    assertEquals(0, interpreter.getFragmentCache().size());
+    assertEquals("[ok]", interpreter.render(SEQUENCE, vars("k", 60, "ok")));
+
+    // bounded: the entry closest to expiry goes first
+    interpreter.render(SEQUENCE, vars("k2", 30, "ok"));
+    interpreter.render(SEQUENCE, vars("k3", 90, "ok"));
+    assertEquals(2, interpreter.getFragmentCache().size());
+    assertEquals(1, interpreter.getFragmentCache().getEvictionCount());
+    assertEquals("[new]", interpreter.render(SEQUENCE, vars("k2", 60, "new")));
+    assertEquals("[ok]", interpreter.render(SEQUENCE, vars("k3", 60, "new")));
+  }
+
+  private static Map<String, Object> vars(String key, Number ttl, Object value) {
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("key", key);
+    vars.put("ttl", ttl);
+    vars.put("value", value);
+    return vars;
+  }
+}
@@ -0,0 +1,37 @@
+package net.moznion.jakotem.vm;
+
+import static org.junit.Assert.assertEquals;
+
+import net.moznion.jakotem.RawString;
+
+import org.junit.Test;
+
+public class HtmlEscaperTest {
+  @Test
+  public void shouldEscapeSpecialCharacters() {
+    assertEquals("plain text", escape("plain text"));
+    assertEquals("&lt;a href=&quot;x&quot;&gt;Tom &amp; Jerry&#39;s&lt;/a&gt;",
+        escape("<a href=\"x\">Tom & Jerry's</a>"));
+    assertEquals("&amp;&amp;", escape("&&"));
+    assertEquals("日本語&lt;b&gt;テキスト", escape("日本語<b>テキスト"));
+    assertEquals("", escape(""));
+  }
+
+  @Test
+  public void shouldPrintSafeValuesAsIs() {
+    assertEquals("<b>", escape(new RawString("<b>")));
+    assertEquals("", escape(null));
+    assertEquals("-42", escape(-42L));
+    assertEquals("7", escape(7));
+    assertEquals("3", escape(3.0));
+    assertEquals("0.5", escape(0.5));
+    assertEquals("true", escape(true));
+    assertEquals("&lt;x&gt;", escape(new StringBuilder("<x>")));
+  }
+
+  private static String escape(Object value) {
+    StringBuilder out = new StringBuilder();
+    HtmlEscaper.escape(out, value);
+    return out.toString();
+  }
+}
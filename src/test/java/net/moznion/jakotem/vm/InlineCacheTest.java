@@ -0,0 +1,80 @@
+package net.moznion.jakotem.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.moznion.jakotem.RenderException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+public class InlineCacheTest {
+  @Test
+  public void shouldRelinkOnReceiverClassChange() {
+    InlineCache size = InlineCache.forMethod("size", 0);
+    assertEquals(2, size.invoke(Arrays.asList(1, 2), new Object[0]));
+    assertEquals(2, size.invoke(Arrays.asList(3, 4), new Object[0]));
+    assertEquals(0, size.invoke(new ArrayList<>(), new Object[0]));
+    assertEquals(3, size.invoke(Collections.singletonMap("size", 3), new Object[0]));
+    assertNull(size.invoke(null, new Object[0]));
+    assertFalse(size.isMegamorphic());
+
+    InlineCache name = InlineCache.forProperty("name");
+    assertEquals("a", name.getProperty(Collections.singletonMap("name", "a")));
+    assertEquals("b", name.getProperty(new Bean("b")));
+    assertEquals("x", name.getProperty(Collections.singletonList("x")));
+    assertFalse(name.isMegamorphic());
+  }
+
+  @Test
+  public void shouldGoMegamorphic() {
+    InlineCache size = InlineCache.forMethod("size", 0);
+    Object[] receivers = {new ArrayList<>(), new LinkedList<>(), new HashSet<>(), new TreeSet<>(), "s"};
+    for (int i = 0; i <= InlineCache.MAX_RELINKS; i++) {
+      Object receiver = receivers[i % (receivers.length - 1)];
+      assertEquals(0, size.invoke(receiver, new Object[0]));
+    }
+    assertTrue(size.isMegamorphic());
+    assertEquals(1, size.invoke(Collections.singleton(1), new Object[0]));
+    try {
+      size.invoke(receivers[4], new Object[0]);
+      fail();
+    } catch (RenderException e) {
+      assertEquals("Cannot call method 'size' on java.lang.String", e.getMessage());
+    }
+  }
+
+  @Test
+  public void shouldCoerceArgumentsAndWrapExceptions() {
+    InlineCache substring = InlineCache.forMethod("substring", 2);
+    assertEquals("bc", substring.invoke("abcd", new Object[] {1L, "3"}));
+    try {
+      substring.invoke("abcd", new Object[] {3L, 1L});
+      fail();
+    } catch (RenderException e) {
+      assertEquals("Method 'substring' threw an exception", e.getMessage());
+      assertTrue(e.getCause() instanceof StringIndexOutOfBoundsException);
+    }
+  }
+
+  public static class Bean {
+    private final String name;
+
+    public Bean(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package net.moznion.jakotem.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import net.moznion.jakotem.OpcodeSequence;
+import net.moznion.jakotem.RawString;
+import net.moznion.jakotem.RenderException;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+public class InterpreterTest {
+  private final Interpreter interpreter = new Interpreter();
+
+  @Test
+  public void shouldEvaluateArithmetic() {
+    // <: (a + 3) * 2 :>,<: 7 / 2 :>,<: 6 / 3 :>,<: 7 % 3 :>,<: -a :>,<: 1.5 + "2" :>
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    b.emit(Opcode.LOAD_VAR, b.constant("a")).emit(Opcode.PUSH_CONST, b.constant(3L)).emit(Opcode.ADD)
+        .emit(Opcode.PUSH_CONST, b.constant(2L)).emit(Opcode.MUL).emit(Opcode.PRINT)
+        .emit(Opcode.RAW, b.constant(","));
+    b.emit(Opcode.PUSH_CONST, b.constant(7L)).emit(Opcode.PUSH_CONST, b.constant(2L)).emit(Opcode.DIV)
+        .emit(Opcode.PRINT).emit(Opcode.RAW, b.constant(","));
+    b.emit(Opcode.PUSH_CONST, b.constant(6L)).emit(Opcode.PUSH_CONST, b.constant(3L)).emit(Opcode.DIV)
+        .emit(Opcode.PRINT).emit(Opcode.RAW, b.constant(","));
+    b.emit(Opcode.PUSH_CONST, b.constant(7L)).emit(Opcode.PUSH_CONST, b.constant(3L)).emit(Opcode.MOD)
+        .emit(Opcode.PRINT).emit(Opcode.RAW, b.constant(","));
+    b.emit(Opcode.LOAD_VAR, b.constant("a")).emit(Opcode.NEG).emit(Opcode.PRINT).emit(Opcode.RAW, b.constant(","));
+    b.emit(Opcode.PUSH_CONST, b.constant(1.5)).emit(Opcode.PUSH_CONST, b.constant("2")).emit(Opcode.ADD)
+        .emit(Opcode.PRINT);
+    OpcodeSequence seq = b.build();
+
+    assertEquals(2, seq.getMaxStack());
+    assertEquals("10,3.5,2,1,-2,3.5", interpreter.render(seq, Collections.singletonMap("a", 2)));
+  }
+
+  @Test
+  public void shouldFailOnDivisionByZero() {
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    b.emit(Opcode.PUSH_CONST, b.constant(1L)).emit(Opcode.PUSH_CONST, b.constant(0L)).emit(Opcode.DIV)
+        .emit(Opcode.PRINT);
+    try {
+      interpreter.render(b.build(), Collections.emptyMap());
+      fail();
+    } catch (RenderException e) {
+      assertEquals("Illegal division by zero", e.getMessage());
+    }
+  }
+
+  @Test
+  public void shouldEvaluateConditionalOperators() {
+    // <: a ~ "!" :> <: b // "default" :> <: a == "x" ? "yes" : "no" :> <: c || 0 :> <: min(3, 1) :><: max(3, 1) :>
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    b.emit(Opcode.LOAD_VAR, b.constant("a")).emit(Opcode.PUSH_CONST, b.constant("!")).emit(Opcode.CONCAT)
+        .emit(Opcode.PRINT).emit(Opcode.RAW, b.constant(" "));
+
+    OpcodeSequence.Label notNil = b.newLabel();
+    b.emit(Opcode.LOAD_VAR, b.constant("b")).jump(Opcode.JUMP_IF_NOT_NIL_OR_POP, notNil)
+        .emit(Opcode.PUSH_CONST, b.constant("default")).place(notNil).emit(Opcode.PRINT)
+        .emit(Opcode.RAW, b.constant(" "));
+
+    OpcodeSequence.Label otherwise = b.newLabel();
+    OpcodeSequence.Label end = b.newLabel();
+    b.emit(Opcode.LOAD_VAR, b.constant("a")).emit(Opcode.PUSH_CONST, b.constant("x")).emit(Opcode.EQ)
+        .jump(Opcode.JUMP_IF_FALSE, otherwise).emit(Opcode.PUSH_CONST, b.constant("yes")).jump(Opcode.JUMP, end)
+        .place(otherwise).emit(Opcode.PUSH_CONST, b.constant("no")).place(end).emit(Opcode.PRINT)
+        .emit(Opcode.RAW, b.constant(" "));
+
+    OpcodeSequence.Label truthy = b.newLabel();
+    b.emit(Opcode.LOAD_VAR, b.constant("c")).jump(Opcode.JUMP_IF_TRUE_OR_POP, truthy)
+        .emit(Opcode.PUSH_CONST, b.constant(0L)).place(truthy).emit(Opcode.PRINT)
+        .emit(Opcode.RAW, b.constant(" "));
+
+    b.emit(Opcode.PUSH_CONST, b.constant(3L)).emit(Opcode.PUSH_CONST, b.constant(1L)).emit(Opcode.MIN)
+        .emit(Opcode.PRINT);
+    b.emit(Opcode.PUSH_CONST, b.constant(3L)).emit(Opcode.PUSH_CONST, b.constant(1L)).emit(Opcode.MAX)
+        .emit(Opcode.PRINT);
+    OpcodeSequence seq = b.build();
+
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("a", "x");
+    vars.put("c", "");
+    assertEquals("x! default yes 0 13", interpreter.render(seq, vars));
+
+    vars.put("a", "y");
+    vars.put("b", "");
+    vars.put("c", "0.5");
+    assertEquals("y!  no 0.5 13", interpreter.render(seq, vars));
+  }
+
+  @Test
+  public void shouldRunLoops() {
+    // : for $items -> $item { <: $item :>, : }
+    // : my $i = 0; while $i < 3 { <: $i :> ; $i = $i + 1 }
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    int iteration = b.newLocal();
+    int item = b.newLocal();
+    OpcodeSequence.Label loop = b.newLabel();
+    OpcodeSequence.Label done = b.newLabel();
+    b.emit(Opcode.LOAD_VAR, b.constant("items")).emit(Opcode.ITER_INIT, iteration).place(loop)
+        .iterNext(iteration, item, done).emit(Opcode.LOAD_LOCAL, item).emit(Opcode.PRINT)
+        .emit(Opcode.RAW, b.constant(",")).jump(Opcode.JUMP, loop).place(done);
+
+    int i = b.newLocal();
+    OpcodeSequence.Label condition = b.newLabel();
+    OpcodeSequence.Label exit = b.newLabel();
+    b.emit(Opcode.PUSH_CONST, b.constant(0L)).emit(Opcode.STORE_LOCAL, i).place(condition)
+        .emit(Opcode.LOAD_LOCAL, i).emit(Opcode.PUSH_CONST, b.constant(3L)).emit(Opcode.LT)
+        .jump(Opcode.JUMP_IF_FALSE, exit).emit(Opcode.LOAD_LOCAL, i).emit(Opcode.PRINT)
+        .emit(Opcode.LOAD_LOCAL, i).emit(Opcode.PUSH_CONST, b.constant(1L)).emit(Opcode.ADD)
+        .emit(Opcode.STORE_LOCAL, i).jump(Opcode.JUMP, condition).place(exit);
+    OpcodeSequence seq = b.build();
+
+    RenderContext context = new RenderContext();
+    assertEquals("a,b,012", render(seq, Collections.singletonMap("items", Arrays.asList("a", "b")), context));
+    assertEquals("1,2,3,012", render(seq, Collections.singletonMap("items", new int[] {1, 2, 3}), context));
+    assertEquals("c,d,012", render(seq, Collections.singletonMap("items", new String[] {"c", "d"}), context));
+    assertEquals("x,012", render(seq, Collections.singletonMap("items", new LinkedList<>(
+        Collections.singletonList("x"))), context));
+    assertEquals("012", render(seq, Collections.emptyMap(), context));
+  }
+
+  @Test
+  public void shouldDispatchSwitchCases() {
+    // : given $x { : when 1 { one : } : when "two" { two : } : default { other : } }
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    int x = b.newLocal();
+    OpcodeSequence.Label two = b.newLabel();
+    OpcodeSequence.Label other = b.newLabel();
+    OpcodeSequence.Label end = b.newLabel();
+    b.emit(Opcode.LOAD_VAR, b.constant("x")).emit(Opcode.STORE_LOCAL, x)
+        .emit(Opcode.LOAD_LOCAL, x).emit(Opcode.PUSH_CONST, b.constant(1L)).emit(Opcode.EQ)
+        .jump(Opcode.JUMP_IF_FALSE, two).emit(Opcode.RAW, b.constant("one")).jump(Opcode.JUMP, end)
+        .place(two).emit(Opcode.LOAD_LOCAL, x).emit(Opcode.PUSH_CONST, b.constant("two")).emit(Opcode.EQ)
+        .jump(Opcode.JUMP_IF_FALSE, other).emit(Opcode.RAW, b.constant("two")).jump(Opcode.JUMP, end)
+        .place(other).emit(Opcode.RAW, b.constant("other")).place(end);
+    OpcodeSequence seq = b.build();
+
+    assertEquals("one", interpreter.render(seq, Collections.singletonMap("x", 1L)));
+    assertEquals("one", interpreter.render(seq, Collections.singletonMap("x", 1.0)));
+    assertEquals("two", interpreter.render(seq, Collections.singletonMap("x", "two")));
+    assertEquals("other", interpreter.render(seq, Collections.singletonMap("x", null)));
+  }
+
+  @Test
+  public void shouldCallFunctionsAndMethods() {
+    // <: $name | upper :> <: $s->length() :> <: $user.name :> <: $html :> <: $html | mark_raw :>
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    b.emit(Opcode.LOAD_VAR, b.constant("name")).emit(Opcode.CALL_FUNCTION, b.constant("upper"), 1)
+        .emit(Opcode.PRINT).emit(Opcode.RAW, b.constant(" "));
+    b.emit(Opcode.LOAD_VAR, b.constant("name")).callMethod("length", 0)
+        .emit(Opcode.PRINT).emit(Opcode.RAW, b.constant(" "));
+    b.emit(Opcode.LOAD_VAR, b.constant("name")).emit(Opcode.PUSH_CONST, b.constant(1L))
+        .emit(Opcode.PUSH_CONST, b.constant(3L)).callMethod("substring", 2)
+        .emit(Opcode.PRINT).emit(Opcode.RAW, b.constant(" "));
+    b.emit(Opcode.LOAD_VAR, b.constant("user")).getProperty("name").emit(Opcode.PRINT).emit(Opcode.RAW, b.constant(" "));
+    b.emit(Opcode.LOAD_VAR, b.constant("html")).emit(Opcode.PRINT).emit(Opcode.RAW, b.constant(" "));
+    b.emit(Opcode.LOAD_VAR, b.constant("html")).emit(Opcode.CALL_FUNCTION, b.constant("mark_raw"), 1)
+        .emit(Opcode.PRINT);
+    OpcodeSequence seq = b.build();
+
+    Interpreter interpreter = new Interpreter(Collections.singletonMap("upper",
+        args -> Operators.stringify(args[0]).toUpperCase()));
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("name", "moznion");
+    vars.put("user", Collections.singletonMap("name", "<b>"));
+    vars.put("html", "<i>");
+    assertEquals("MOZNION 7 oz &lt;b&gt; &lt;i&gt; <i>", interpreter.render(seq, vars));
+
+    assertEquals("<i>", interpreter.render(seq(Opcode.PRINT, new RawString("<i>")), Collections.emptyMap()));
+  }
+
+  @Test
+  public void shouldReleaseContextAfterRender() {
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    int local = b.newLocal();
+    b.emit(Opcode.LOAD_VAR, b.constant("a")).emit(Opcode.STORE_LOCAL, local);
+    OpcodeSequence seq = b.build();
+
+    RenderContext context = new RenderContext();
+    render(seq, Collections.singletonMap("a", "secret"), context);
+    assertEquals(null, context.locals[local]);
+  }
+
+  private static OpcodeSequence seq(int opcode, Object constant) {
+    return new OpcodeSequence(new int[] {Opcode.PUSH_CONST, 0, opcode}, new Object[] {constant}, 1, 0);
+  }
+
+  private String render(OpcodeSequence seq, Map<String, ?> vars, RenderContext context) {
+    StringBuilder out = new StringBuilder();
+    interpreter.render(seq, vars, context, out);
+    return out.toString();
+  }
+}
@@ -0,0 +1,96 @@
+package net.moznion.jakotem.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import net.moznion.jakotem.OpcodeSequence;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class RenderContextPoolTest {
+  @Test
+  public void shouldReuseContextsUpToCapacity() {
+    RenderContextPool pool = new RenderContextPool(3);
+    assertEquals(4, pool.capacity());
+
+    RenderContext context = pool.acquire();
+    pool.release(context);
+    assertSame(context, pool.acquire());
+
+    List<RenderContext> acquired = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      acquired.add(pool.acquire());
+    }
+    acquired.forEach(pool::release);
+    List<RenderContext> reacquired = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      reacquired.add(pool.acquire());
+    }
+    // four of them were kept, two were made again
+    reacquired.retainAll(acquired);
+    assertEquals(4, reacquired.size());
+  }
+
+  @Test
+  public void shouldReuseOutputsOfContext() {
+    RenderContext context = new RenderContext();
+    StringBuilderOutput stringOutput = context.stringOutput();
+    stringOutput.getBuilder().append("previous");
+    assertSame(stringOutput, context.stringOutput());
+    assertEquals(0, stringOutput.getBuilder().length());
+
+    ByteOutput streamOutput = context.streamOutput(new ByteArrayOutputStream(), StandardCharsets.UTF_8);
+    assertSame(streamOutput, context.streamOutput(new ByteArrayOutputStream(), StandardCharsets.UTF_8));
+    assertNotSame(streamOutput, context.streamOutput(new ByteArrayOutputStream(), StandardCharsets.UTF_16));
+  }
+
+  @Test
+  public void shouldShareSequenceBetweenThreads() throws Exception {
+    // : for $items -> $item { <: $item :>, : }
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    int iteration = b.newLocal();
+    int item = b.newLocal();
+    OpcodeSequence.Label loop = b.newLabel();
+    OpcodeSequence.Label done = b.newLabel();
+    b.emit(Opcode.LOAD_VAR, b.constant("items")).emit(Opcode.ITER_INIT, iteration).place(loop)
+        .iterNext(iteration, item, done).emit(Opcode.LOAD_LOCAL, item).emit(Opcode.PRINT)
+        .emit(Opcode.RAW, b.constant(",")).jump(Opcode.JUMP, loop).place(done);
+    OpcodeSequence seq = b.build();
+    Interpreter interpreter = new Interpreter(Collections.emptyMap(), 100);
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        final String prefix = "t" + thread;
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < 500; i++) {
+            List<String> items = Arrays.asList(prefix, String.valueOf(i));
+            String expected = prefix + "," + i + ",";
+            assertEquals(expected, interpreter.render(seq, Collections.singletonMap("items", items)));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            interpreter.render(seq, Collections.singletonMap("items", items), out, StandardCharsets.UTF_8);
+            assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,306 @@
+package net.moznion.jakotem.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.moznion.jakotem.ConcurrentTemplateCache;
+import net.moznion.jakotem.OpcodeSequence;
+import net.moznion.jakotem.TemplateLoader;
+import net.moznion.jakotem.kolon.KolonSyntax;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class TemplateClassCompilerTest {
+  private static final Map<String, TemplateFunction> FUNCTIONS = Collections.singletonMap("twice",
+      args -> Operators.concat(args[0], args[0]));
+
+  private static final Object[] LITERALS = {0L, 1L, -3L, 7L, 2.5, "", "0", "10", "abc", "<&>", null, true, false};
+  private static final String[] VARS = {"i", "d", "s", "n", "list", "map"};
+
+  @Test
+  public void shouldRenderLikeInterpreter() {
+    Interpreter interpreted = new Interpreter(FUNCTIONS, Interpreter.NEVER_COMPILE);
+    Interpreter compiled = new Interpreter(FUNCTIONS, 0);
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("i", 42L);
+    vars.put("d", 0.25);
+    vars.put("s", "<b>x</b>");
+    vars.put("list", Arrays.asList(1L, "two", 3.0));
+    vars.put("map", Collections.singletonMap("k", "v"));
+
+    Random random = new Random(42);
+    for (int n = 0; n < 500; n++) {
+      OpcodeSequence seq = new Generator(random).template();
+      String expected = renderOrError(interpreted, seq, vars);
+      assertEquals(seq.disassemble(), expected, renderOrError(compiled, seq, vars));
+      assertTrue(seq.getExecutionProfile().isCompiled());
+    }
+  }
+
+  @Test
+  public void shouldRenderCorpusLikeInterpreter() throws Exception {
+    Path corpus = Paths.get(System.getProperty("basedir", "."), "jakotem-benchmarks/src/main/resources/corpus");
+    List<Path> templates = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(corpus, "*.tx")) {
+      files.forEach(templates::add);
+    }
+    assertFalse(templates.isEmpty());
+
+    Map<String, TemplateFunction> functions = new HashMap<>();
+    functions.put("max", args -> Operators.compare(args[0], args[1]) >= 0 ? args[0] : args[1]);
+    functions.put("min", args -> Operators.compare(args[0], args[1]) <= 0 ? args[0] : args[1]);
+    functions.put("join", args -> String.join(Operators.stringify(args[1]),
+        ((List<?>) args[0]).stream().map(Operators::stringify).toArray(String[]::new)));
+    functions.put("format",
+        args -> String.format(Operators.stringify(args[1]), Operators.toNumber(args[0]).longValue()));
+    Interpreter interpreted = new Interpreter(functions, Interpreter.NEVER_COMPILE);
+    Interpreter compiled = new Interpreter(functions, 0);
+
+    Map<String, Object> item = new HashMap<>();
+    item.put("name", "<apple>");
+    item.put("price", 100L);
+    item.put("stock", 0L);
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("items", Arrays.asList(item, Collections.singletonMap("name", "pear")));
+    vars.put("copyright", "&copy; moznion");
+    vars.put("title", "corpus");
+    vars.put("name", "<you>");
+    vars.put("rows", Arrays.asList(Arrays.asList(Arrays.asList(1L, "a", "b"), Arrays.asList(2L, "c", "d"))));
+    vars.put("count", 42L);
+    vars.put("flag", false);
+    vars.put("kind", 2L);
+    vars.put("a", 3L);
+    vars.put("b", 2.5);
+    vars.put("values", Arrays.asList("x", 1L, 2.0));
+    vars.put("price", 1980L);
+    vars.put("user", new User());
+    vars.put("empty", "");
+
+    TemplateLoader loader = new TemplateLoader(Collections.singletonList(corpus), new ConcurrentTemplateCache(16));
+    KolonSyntax syntax = new KolonSyntax();
+    for (Path template : templates) {
+      String fileName = template.getFileName().toString();
+      OpcodeSequence seq = loader.compile(fileName, syntax);
+      String expected = renderOrError(interpreted, seq, vars);
+      assertEquals(fileName, expected, renderOrError(compiled, seq, vars));
+      assertTrue(fileName, seq.getExecutionProfile().isCompiled());
+    }
+  }
+
+  @Test
+  public void shouldCompileAfterThreshold() {
+    Interpreter interpreter = new Interpreter(FUNCTIONS, 3);
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    b.emit(Opcode.RAW, b.constant("Hello, ")).emit(Opcode.LOAD_VAR, b.constant("name")).emit(Opcode.PRINT);
+    OpcodeSequence seq = b.build();
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals("Hello, &lt;you&gt;", interpreter.render(seq, Collections.singletonMap("name", "<you>")));
+      assertFalse(seq.getExecutionProfile().isCompiled());
+    }
+    assertEquals("Hello, &lt;you&gt;", interpreter.render(seq, Collections.singletonMap("name", "<you>")));
+    assertTrue(seq.getExecutionProfile().isCompiled());
+  }
+
+  @Test
+  public void shouldUnloadGeneratedClassWithSequence() throws Exception {
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    b.emit(Opcode.RAW, b.constant("hello"));
+    OpcodeSequence seq = b.build();
+    new Interpreter(FUNCTIONS, 0).render(seq, Collections.emptyMap());
+
+    WeakReference<ClassLoader> loader = new WeakReference<>(
+        seq.getExecutionProfile().compiledTemplate.getClass().getClassLoader());
+    seq = null;
+    for (int i = 0; i < 50 && loader.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(loader.get());
+  }
+
+  @Test
+  public void shouldKeepInterpretingHugeTemplates() {
+    OpcodeSequence.Builder b = OpcodeSequence.builder();
+    for (int i = 0; i < TemplateClassCompiler.HUGE_METHOD_LIMIT; i++) {
+      b.emit(Opcode.LOAD_VAR, b.constant("i")).emit(Opcode.PRINT);
+    }
+    OpcodeSequence seq = b.build();
+
+    Interpreter interpreter = new Interpreter(FUNCTIONS, 0);
+    assertEquals(TemplateClassCompiler.HUGE_METHOD_LIMIT,
+        interpreter.render(seq, Collections.singletonMap("i", 1)).length());
+    assertFalse(seq.getExecutionProfile().isCompiled());
+  }
+
+  public static class User {
+    public String name() {
+      return "moznion";
+    }
+  }
+
+  private static String renderOrError(Interpreter interpreter, OpcodeSequence seq, Map<String, ?> vars) {
+    try {
+      return interpreter.render(seq, vars);
+    } catch (RuntimeException e) {
+      return e.getClass().getName() + ": " + e.getMessage();
+    }
+  }
+
+  /**
+   * Generates random but well-formed templates.
+   */
+  private static class Generator {
+    private final Random random;
+    private final OpcodeSequence.Builder b = OpcodeSequence.builder();
+    private final List<Integer> loopVariables = new ArrayList<>();
+
+    Generator(Random random) {
+      this.random = random;
+    }
+
+    OpcodeSequence template() {
+      int statements = 1 + random.nextInt(5);
+      for (int i = 0; i < statements; i++) {
+        statement(0);
+      }
+      return b.build();
+    }
+
+    private void statement(int depth) {
+      switch (depth < 2 ? random.nextInt(4) : random.nextInt(2)) {
+        case 0:
+          b.emit(Opcode.RAW, b.constant("[raw" + random.nextInt(10) + "]"));
+          break;
+        case 1:
+          expression(0);
+          b.emit(Opcode.PRINT);
+          break;
+        case 2: {
+          // for
+          int iteration = b.newLocal();
+          int variable = b.newLocal();
+          OpcodeSequence.Label loop = b.newLabel();
+          OpcodeSequence.Label done = b.newLabel();
+          b.emit(Opcode.LOAD_VAR, b.constant(random.nextBoolean() ? "list" : "map"))
+              .emit(Opcode.ITER_INIT, iteration).place(loop).iterNext(iteration, variable, done);
+          loopVariables.add(variable);
+          statement(depth + 1);
+          statement(depth + 1);
+          loopVariables.remove(loopVariables.size() - 1);
+          b.jump(Opcode.JUMP, loop).place(done);
+          break;
+        }
+        default: {
+          // if/else
+          OpcodeSequence.Label otherwise = b.newLabel();
+          OpcodeSequence.Label end = b.newLabel();
+          expression(0);
+          b.jump(Opcode.JUMP_IF_FALSE, otherwise);
+          statement(depth + 1);
+          b.jump(Opcode.JUMP, end).place(otherwise);
+          statement(depth + 1);
+          b.place(end);
+          break;
+        }
+      }
+    }
+
+    private void expression(int depth) {
+      int kind = depth >= 3 ? random.nextInt(2) : random.nextInt(9);
+      switch (kind) {
+        case 0:
+          literal(LITERALS[random.nextInt(LITERALS.length)]);
+          break;
+        case 1:
+          if (!loopVariables.isEmpty() && random.nextBoolean()) {
+            b.emit(Opcode.LOAD_LOCAL, loopVariables.get(random.nextInt(loopVariables.size())));
+          } else {
+            b.emit(Opcode.LOAD_VAR, b.constant(VARS[random.nextInt(VARS.length)]));
+          }
+          break;
+        case 2:
+        case 3: {
+          int[] binary = {Opcode.ADD, Opcode.SUB, Opcode.MUL, Opcode.DIV, Opcode.MOD, Opcode.BIT_AND, Opcode.BIT_OR,
+              Opcode.BIT_XOR, Opcode.CONCAT, Opcode.EQ, Opcode.NE, Opcode.LT, Opcode.LE, Opcode.GT, Opcode.GE,
+              Opcode.MIN, Opcode.MAX, Opcode.GET_ELEMENT};
+          expression(depth + 1);
+          expression(depth + 1);
+          b.emit(binary[random.nextInt(binary.length)]);
+          break;
+        }
+        case 4:
+          expression(depth + 1);
+          b.emit(random.nextBoolean() ? Opcode.NEG : Opcode.NOT);
+          break;
+        case 5: {
+          // ?:
+          OpcodeSequence.Label otherwise = b.newLabel();
+          OpcodeSequence.Label end = b.newLabel();
+          expression(depth + 1);
+          b.jump(Opcode.JUMP_IF_FALSE, otherwise);
+          expression(depth + 1);
+          b.jump(Opcode.JUMP, end).place(otherwise);
+          expression(depth + 1);
+          b.place(end);
+          break;
+        }
+        case 6: {
+          // &&, || and //
+          int[] jumps = {Opcode.JUMP_IF_FALSE_OR_POP, Opcode.JUMP_IF_TRUE_OR_POP, Opcode.JUMP_IF_NOT_NIL_OR_POP};
+          OpcodeSequence.Label end = b.newLabel();
+          expression(depth + 1);
+          b.jump(jumps[random.nextInt(jumps.length)], end);
+          expression(depth + 1);
+          b.place(end);
+          break;
+        }
+        case 7:
+          expression(depth + 1);
+          switch (random.nextInt(3)) {
+            case 0:
+              b.emit(Opcode.CALL_FUNCTION, b.constant(random.nextBoolean() ? "twice" : "html"), 1);
+              break;
+            case 1:
+              b.callMethod("toString", 0);
+              break;
+            default:
+              b.getProperty(random.nextBoolean() ? "k" : "empty");
+              break;
+          }
+          break;
+        default:
+          expression(depth + 1);
+          expression(depth + 1);
+          b.emit(Opcode.MAKE_ARRAY, 2).emit(Opcode.PUSH_CONST, b.constant((long) random.nextInt(3)))
+              .emit(Opcode.GET_ELEMENT);
+          break;
+      }
+    }
+
+    private void literal(Object value) {
+      if (value == null) {
+        b.emit(Opcode.PUSH_NIL);
+      } else if (value instanceof Boolean) {
+        b.emit((Boolean) value ? Opcode.PUSH_TRUE : Opcode.PUSH_FALSE);
+      } else {
+        b.emit(Opcode.PUSH_CONST, b.constant(value));
+      }
+    }
+  }
+}